@@ -14,6 +14,7 @@
 
 #include <sys/eventfd.h>
 #include <sys/errno.h>
+#include <android/looper.h>
 #include <libxcvt/libxcvt.h>
 #include <X11/X.h>
 #include <X11/Xmd.h>
@@ -57,6 +58,9 @@ static struct present_screen_info loriePresentInfo;
 static dri3_screen_info_rec lorieDri3Info;
 static ExaDriverRec lorieExa;
 
+// Number of buffers holding complete frames in double buffered mode, in addition to screen pixmap.
+#define LORIE_BACK_BUFFERS 2
+
 typedef struct {
     DamagePtr damage;
     OsTimerPtr fpsTimer;
@@ -65,16 +69,24 @@ typedef struct {
     CloseScreenProcPtr CloseScreen;
 
     int eventFd, stateFd;
+    int doorbellFd; // eventfd signaled to wake renderer thread, sent to activity with server state
 
     struct lorie_shared_server_state* state;
     struct {
         Bool legacyDrawing;
+        Bool doubleBuffered;
         uint8_t flip;
         uint32_t width, height;
         char name[1024];
         uint32_t framerate;
     } root;
 
+    struct {
+        LorieBuffer *buffer;
+        void *locked;
+        RegionRec damage; // part of screen pixmap which was not copied to this buffer yet
+    } back[LORIE_BACK_BUFFERS];
+
     Bool dri3;
 
     uint64_t vblank_interval;
@@ -105,9 +117,6 @@ typedef struct {
 #define LORIE_BUFFER_FROM_PIXMAP(pixmap) (pixmap ? ((LoriePixmapPriv*) exaGetPixmapDriverPrivate(pixmap))->buffer : NULL)
 
 void OsVendorInit(void) {
-    pthread_mutexattr_t mutex_attr;
-    pthread_condattr_t cond_attr;
-
     if (lorieScreen.stateFd != -1) // already initialized
         return;
 
@@ -121,21 +130,27 @@ void OsVendorInit(void) {
         _exit(1);
     }
 
-    pthread_mutexattr_init(&mutex_attr);
-    pthread_mutexattr_setpshared(&mutex_attr, PTHREAD_PROCESS_SHARED);
-    pthread_mutexattr_settype(&mutex_attr, PTHREAD_MUTEX_RECURSIVE);
-    pthread_mutex_init(&lorieScreen.state->lock, &mutex_attr);
-    pthread_mutex_init(&lorieScreen.state->cursor.lock, &mutex_attr);
+    // Locks are ready to use in zeroed memory.
+
+    if (-1 == (lorieScreen.doorbellFd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK))) {
+        dprintf(2, "FATAL: Failed to create renderer doorbell.\n");
+        _exit(1);
+    }
+}
 
-    pthread_condattr_init(&cond_attr);
-    pthread_condattr_setpshared(&cond_attr, PTHREAD_PROCESS_SHARED);
-    pthread_cond_init(&lorieScreen.state->cond, &cond_attr);
+static inline void lorieWakeRenderer(void) {
+    // Renderer drains the doorbell before checking the state, so flags must be set before ringing it.
+    eventfd_write(pvfb->doorbellFd, 1);
 }
 
 void lorieActivityConnected(void) {
     pvfb->state->drawRequested = pvfb->state->cursor.updated = true;
-    lorieSendSharedServerState(pvfb->stateFd);
+    lorieRequestVsync();
+    lorieSendSharedServerState(pvfb->stateFd, pvfb->doorbellFd);
     lorieRegisterBuffer(LORIE_BUFFER_FROM_PIXMAP(pScreenPtr->devPrivate));
+    for (int i = 0; i < LORIE_BACK_BUFFERS; i++)
+        if (pvfb->back[i].buffer)
+            lorieRegisterBuffer(pvfb->back[i].buffer);
 }
 
 static LoriePixmapPriv* lorieRootWindowPixmapPriv(void) {
@@ -252,6 +267,7 @@ void ddxInputThreadInit(void) {}
 void ddxUseMsg(void) {
     ErrorF("-xstartup \"command\"    start `command` after server startup\n");
     ErrorF("-legacy-drawing        use legacy drawing, without using AHardwareBuffers\n");
+    ErrorF("-double-buffered       copy finished frames to separate buffers so X server never waits for renderer\n");
     ErrorF("-force-bgra            force flipping colours (RGBA->BGRA)\n");
     ErrorF("-disable-dri3          disabling DRI3 support (to let lavapipe work)\n");
     ErrorF("-force-sysvshm         force using SysV shm syscalls\n");
@@ -270,6 +286,11 @@ int ddxProcessArgument(unused int argc, unused char *argv[], unused int i) {
         return 1;
     }
 
+    if (strcmp(argv[i], "-double-buffered") == 0) {
+        pvfb->root.doubleBuffered = TRUE;
+        return 1;
+    }
+
     if (strcmp(argv[i], "-force-bgra") == 0) {
         pvfb->root.flip = TRUE;
         return 1;
@@ -325,8 +346,10 @@ static void lorieMoveCursor(unused DeviceIntPtr pDev, unused ScreenPtr pScr, int
     pvfb->state->cursor.y = y;
     pvfb->state->cursor.moved = TRUE;
     // No need to explicitly lock the mutex, it will cause waiting for rendering to be finished.
-    // We are simply signaling the renderer in the case if it sleeps.
-    pthread_cond_signal(&pvfb->state->cond);
+    // We are simply waking the renderer in the case if it sleeps.
+    lorieWakeRenderer();
+    // Renderer will not draw again until lorieRedraw lets it.
+    lorieRequestVsync();
 }
 
 static void lorieConvertCursor(CursorPtr pCurs, uint32_t *data) {
@@ -356,32 +379,101 @@ static void lorieConvertCursor(CursorPtr pCurs, uint32_t *data) {
     }
 }
 
+/*
+ * Converted images of recently used cursors. Animated cursors and applications changing cursors on hover
+ * switch between a few images, so they are converted only once. Every image gets its own id so renderer
+ * can keep its texture and skip uploading it again.
+ */
+#define LORIE_CURSOR_CACHE_SIZE 8
+static struct lorieCachedCursor {
+    CursorBitsPtr bits;
+    uint32_t fg, bg; // colors of cursors without ARGB image
+    uint32_t id;
+    uint64_t lastUsed;
+    uint32_t *data;
+} lorieCursorCache[LORIE_CURSOR_CACHE_SIZE];
+
+static struct lorieCachedCursor* lorieCursorCacheGet(CursorPtr pCurs) {
+    static uint32_t lastId = 0;
+    static uint64_t clock = 0;
+    CursorBitsPtr bits = pCurs->bits;
+    struct lorieCachedCursor *e, *victim = &lorieCursorCache[0];
+    uint32_t fg = 0, bg = 0, *data;
+
+    if (!bits->argb) {
+        // The same colors lorieConvertCursor uses
+        fg = ((pCurs->foreBlue & 0xff00) << 8) | (pCurs->foreGreen & 0xff00) | (pCurs->foreRed >> 8);
+        bg = ((pCurs->backBlue & 0xff00) << 8) | (pCurs->backGreen & 0xff00) | (pCurs->backRed >> 8);
+    }
+
+    for (e = lorieCursorCache; e < lorieCursorCache + LORIE_CURSOR_CACHE_SIZE; e++) {
+        if (e->bits == bits && e->fg == fg && e->bg == bg) {
+            e->lastUsed = ++clock;
+            return e;
+        }
+        if (e->lastUsed < victim->lastUsed)
+            victim = e;
+    }
+
+    if (!(data = realloc(victim->data, bits->width * bits->height * sizeof(uint32_t))))
+        return NULL;
+
+    *victim = (struct lorieCachedCursor) { .bits = bits, .fg = fg, .bg = bg, .id = ++lastId, .lastUsed = ++clock, .data = data };
+    lorieConvertCursor(pCurs, victim->data);
+    return victim;
+}
+
+static Bool lorieUnrealizeCursor(unused DeviceIntPtr pDev, unused ScreenPtr pScr, CursorPtr pCurs) {
+    // Bits are freed together with the last cursor using them and their address can be reused by another cursor.
+    if (pCurs && pCurs->bits->refcnt <= 1)
+        for (int i = 0; i < LORIE_CURSOR_CACHE_SIZE; i++)
+            if (lorieCursorCache[i].bits == pCurs->bits)
+                lorieCursorCache[i].bits = NULL, lorieCursorCache[i].lastUsed = 0;
+    return TRUE;
+}
+
 static void lorieSetCursor(unused DeviceIntPtr pDev, unused ScreenPtr pScr, CursorPtr pCurs, int x0, int y0) {
-    CursorBitsPtr bits = pCurs ? pCurs->bits : NULL;
+    struct lorieCachedCursor *cached = NULL;
+    CursorBitsPtr bits;
     if (pCurs && (pCurs->bits->width >= 512 || pCurs->bits->height >= 512))
         // We do not have enough memory allocated for such a big cursor, let's display default "X" cursor
         pCurs = rootCursor;
 
-    lorie_mutex_lock(&pvfb->state->cursor.lock, &pvfb->state->cursor.lockingPid);
-    if (pCurs && bits) {
+    bits = pCurs ? pCurs->bits : NULL;
+    if (bits)
+        // Conversion is done without holding the lock, renderer may draw the cursor meanwhile.
+        cached = lorieCursorCacheGet(pCurs);
+
+    lorie_mutex_lock(&pvfb->state->cursor.lock);
+    if (bits) {
         pvfb->state->cursor.xhot = bits->xhot;
         pvfb->state->cursor.yhot = bits->yhot;
         pvfb->state->cursor.width = bits->width;
         pvfb->state->cursor.height = bits->height;
-        lorieConvertCursor(pCurs, pvfb->state->cursor.bits);
+        // Shared bits always hold the image of cursor.id, since they are written only here. If the id did not
+        // change they already hold this image, and renderer uploads from them whenever cursorTextureFind
+        // evicted its texture, so copying is needed only when the id changes.
+        if (!cached)
+            lorieConvertCursor(pCurs, pvfb->state->cursor.bits);
+        else if (pvfb->state->cursor.id != cached->id)
+            memcpy(pvfb->state->cursor.bits, cached->data, bits->width * bits->height * sizeof(uint32_t));
     } else {
         pvfb->state->cursor.xhot = pvfb->state->cursor.yhot = 0;
         pvfb->state->cursor.width = pvfb->state->cursor.height = 0;
     }
-    pvfb->state->cursor.updated = true;
-    lorie_mutex_unlock(&pvfb->state->cursor.lock, &pvfb->state->cursor.lockingPid);
+
+    if (!cached || pvfb->state->cursor.id != cached->id) {
+        pvfb->state->cursor.id = cached ? cached->id : 0;
+        pvfb->state->cursor.updated = true;
+    }
+    lorie_mutex_unlock(&pvfb->state->cursor.lock);
 
     lorieMoveCursor(NULL, NULL, x0, y0);
 }
 
 static miPointerSpriteFuncRec loriePointerSpriteFuncs = {
     .RealizeCursor = TrueNoop,
-    .UnrealizeCursor = TrueNoop,
+    .UnrealizeCursor = lorieUnrealizeCursor,
     .SetCursor = lorieSetCursor,
     .MoveCursor = lorieMoveCursor,
     .DeviceCursorInitialize = TrueNoop,
@@ -396,14 +488,238 @@ static miPointerScreenFuncRec loriePointerCursorFuncs = {
 
 static void loriePerformVblanks(void);
 
+/*
+ * Choreographer frame callback is posted only while there is something to do: damage, cursor changes, queued vblanks
+ * or a frame drawn by renderer which should be released on the next vsync. After LORIE_VSYNC_GRACE_FRAMES frames
+ * without any work it is not posted again until somebody calls lorieRequestVsync.
+ * AChoreographer must be used from looper thread only, other threads request frame callback through vsync.fd.
+ */
+#define LORIE_VSYNC_GRACE_FRAMES 8
+static struct {
+    int fd;
+    bool armed;
+    uint32_t idleFrames;
+    // Reported by lorieFramecounter
+    uint32_t busyFrames, graceFrames, arms;
+} vsync = { .fd = -1 };
+
+void lorieRequestVsync(void) {
+    __atomic_store_n(&vsync.idleFrames, 0, __ATOMIC_SEQ_CST);
+    if (!__atomic_exchange_n(&vsync.armed, true, __ATOMIC_SEQ_CST)) {
+        __atomic_add_fetch(&vsync.arms, 1, __ATOMIC_RELAXED);
+        eventfd_write(vsync.fd, 1);
+    }
+}
+
+static int lorieVsyncRequested(int fd, __unused int events, void* data) {
+    eventfd_t dummy;
+    eventfd_read(fd, &dummy);
+    AChoreographer_postFrameCallback(data, (AChoreographer_frameCallback) lorieChoreographerFrameCallback, data);
+    return 1;
+}
+
+void lorieChoreographerInit(AChoreographer* choreographer) {
+    vsync.fd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+    ALooper_addFd(ALooper_forThread(), vsync.fd, ALOOPER_POLL_CALLBACK, ALOOPER_EVENT_INPUT, lorieVsyncRequested, choreographer);
+    // Trigger it first time
+    lorieRequestVsync();
+}
+
+static void lorieVsyncAccount(Bool busy) {
+    if (busy) {
+        __atomic_store_n(&vsync.idleFrames, 0, __ATOMIC_SEQ_CST);
+        __atomic_add_fetch(&vsync.busyFrames, 1, __ATOMIC_RELAXED);
+    } else {
+        __atomic_add_fetch(&vsync.idleFrames, 1, __ATOMIC_SEQ_CST);
+        __atomic_add_fetch(&vsync.graceFrames, 1, __ATOMIC_RELAXED);
+    }
+}
+
+static void lorieDamageReport(__unused DamagePtr damage, __unused RegionPtr region, __unused void *closure) {
+    // Called when damage region becomes non-empty.
+    lorieRequestVsync();
+}
+
+/*
+ * Shareable buffers of destroyed root, back and flip pixmaps are kept registered in activity for a while,
+ * so allocating a buffer of the same size, format and type again (i.e. after rotating device back or
+ * hiding soft keyboard) reuses its ID instead of transferring new fd and importing it to GL again.
+ * Entries are ordered from the most recently released one, the oldest is evicted when pool is full.
+ */
+#define LORIE_BUFFER_POOL_SIZE 3
+static LorieBuffer* lorieBufferPool[LORIE_BUFFER_POOL_SIZE];
+
+static LorieBuffer* lorieBufferPoolTake(int width, int height, uint8_t format, uint8_t type) {
+    for (int i = 0; i < LORIE_BUFFER_POOL_SIZE && lorieBufferPool[i]; i++) {
+        const LorieBuffer_Desc* desc = LorieBuffer_description(lorieBufferPool[i]);
+        if (desc->width == width && desc->height == height && desc->format == format && desc->type == type) {
+            LorieBuffer* buffer = lorieBufferPool[i];
+            memmove(&lorieBufferPool[i], &lorieBufferPool[i + 1], (LORIE_BUFFER_POOL_SIZE - i - 1) * sizeof(*lorieBufferPool));
+            lorieBufferPool[LORIE_BUFFER_POOL_SIZE - 1] = NULL;
+            return buffer;
+        }
+    }
+
+    return NULL;
+}
+
+static void lorieBufferPoolPut(LorieBuffer* buffer) {
+    int8_t type = LorieBuffer_description(buffer)->type;
+    if (!pScreenPtr || (type != LORIEBUFFER_FD && type != LORIEBUFFER_AHARDWAREBUFFER)) {
+        // Screen is being closed or buffer can not be shared to activity.
+        lorieUnregisterBuffer(buffer);
+        LorieBuffer_release(buffer);
+        return;
+    }
+
+    if (lorieBufferPool[LORIE_BUFFER_POOL_SIZE - 1]) {
+        lorieUnregisterBuffer(lorieBufferPool[LORIE_BUFFER_POOL_SIZE - 1]);
+        LorieBuffer_release(lorieBufferPool[LORIE_BUFFER_POOL_SIZE - 1]);
+    }
+
+    memmove(&lorieBufferPool[1], &lorieBufferPool[0], (LORIE_BUFFER_POOL_SIZE - 1) * sizeof(*lorieBufferPool));
+    lorieBufferPool[0] = buffer;
+}
+
+static void lorieBufferPoolFlush(void) {
+    for (int i = 0; i < LORIE_BUFFER_POOL_SIZE && lorieBufferPool[i]; i++) {
+        lorieUnregisterBuffer(lorieBufferPool[i]);
+        LorieBuffer_release(lorieBufferPool[i]);
+        lorieBufferPool[i] = NULL;
+    }
+}
+
+static Bool lorieIsBackBuffer(uint64_t id) {
+    for (int i = 0; i < LORIE_BACK_BUFFERS; i++)
+        if (pvfb->back[i].buffer && LorieBuffer_description(pvfb->back[i].buffer)->id == id)
+            return TRUE;
+    return FALSE;
+}
+
+static void lorieDestroyBackBuffers(void) {
+    for (int i = 0; i < LORIE_BACK_BUFFERS; i++) {
+        if (!pvfb->back[i].buffer)
+            continue;
+
+        if (pvfb->back[i].locked)
+            LorieBuffer_unlock(pvfb->back[i].buffer);
+        lorieBufferPoolPut(pvfb->back[i].buffer);
+        RegionUninit(&pvfb->back[i].damage);
+        pvfb->back[i].buffer = pvfb->back[i].locked = NULL;
+    }
+}
+
+static void lorieCreateBackBuffers(int width, int height) {
+    BoxRec box = { 0, 0, width, height };
+    uint8_t format = pvfb->root.flip ? AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM : AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM;
+
+    lorieDestroyBackBuffers();
+    // With legacy drawing renderer copies root window to its own texture anyway.
+    if (!pvfb->root.doubleBuffered || pvfb->root.legacyDrawing)
+        return;
+
+    for (int i = 0; i < LORIE_BACK_BUFFERS; i++) {
+        LorieBuffer *buffer = lorieBufferPoolTake(width, height, format, LORIEBUFFER_AHARDWAREBUFFER)
+                ?: LorieBuffer_allocate(width, height, format, LORIEBUFFER_AHARDWAREBUFFER);
+        if (!buffer || LorieBuffer_lock(buffer, &pvfb->back[i].locked)) {
+            log(ERROR, "Failed to allocate root window back buffer, double buffering is disabled");
+            if (buffer)
+                lorieUnregisterBuffer(buffer);
+            LorieBuffer_release(buffer);
+            pvfb->back[i].locked = NULL;
+            pvfb->root.doubleBuffered = FALSE;
+            lorieDestroyBackBuffers();
+            return;
+        }
+
+        pvfb->back[i].buffer = buffer;
+        // Whole screen pixmap must be copied to the new buffer.
+        RegionInit(&pvfb->back[i].damage, &box, 1);
+        lorieRegisterBuffer(buffer);
+    }
+}
+
+/*
+ * Copies screen pixmap to the back buffer which is neither the latest complete frame nor sampled by renderer.
+ * Returns id of the back buffer or 0 if renderer holds both of them.
+ */
+static uint64_t lorieCopyToBackBuffer(LoriePixmapPriv* priv, RegionPtr damage) {
+    const LorieBuffer_Desc *src = LorieBuffer_description(priv->buffer), *dst;
+    uint64_t reading = __atomic_load_n(&pvfb->state->damage.reading, __ATOMIC_ACQUIRE), id;
+    BoxPtr box;
+    int n;
+
+    for (int i = 0; i < LORIE_BACK_BUFFERS; i++)
+        RegionUnion(&pvfb->back[i].damage, &pvfb->back[i].damage, damage);
+
+    if (!priv->locked)
+        return 0;
+
+    for (int i = 0; i < LORIE_BACK_BUFFERS; i++) {
+        // Renderer can take the latest complete frame at any moment, but it can not switch to another buffer.
+        id = LorieBuffer_description(pvfb->back[i].buffer)->id;
+        if (id == pvfb->state->rootWindowTextureID || id == reading)
+            continue;
+
+        dst = LorieBuffer_description(pvfb->back[i].buffer);
+        n = RegionNumRects(&pvfb->back[i].damage);
+        box = RegionRects(&pvfb->back[i].damage);
+        for (; n--; box++)
+            for (int y = box->y1; y < box->y2; y++)
+                memcpy((uint32_t*) pvfb->back[i].locked + y * dst->stride + box->x1,
+                       (uint32_t*) priv->locked + y * src->stride + box->x1, (box->x2 - box->x1) * 4);
+        RegionEmpty(&pvfb->back[i].damage);
+
+        // The same as for the screen pixmap, see lorieRedraw.
+        LorieBuffer_unlock(pvfb->back[i].buffer);
+        if (LorieBuffer_lock(pvfb->back[i].buffer, &pvfb->back[i].locked))
+            FatalError("Failed to lock the back buffer\n");
+        return id;
+    }
+
+    return 0;
+}
+
+static void loriePublishFrame(RegionPtr region, uint64_t id) {
+    int n = region ? RegionNumRects(region) : 0;
+    BoxPtr boxes = region ? RegionRects(region) : NULL;
+
+    lorie_mutex_lock(&pvfb->state->damage.lock);
+    if (id != pvfb->state->rootWindowTextureID && !(lorieIsBackBuffer(id) && lorieIsBackBuffer(pvfb->state->rootWindowTextureID)))
+        // Renderer can not know how contents of unrelated buffers differ.
+        pvfb->state->damage.count = LORIE_DAMAGE_FULL;
+    else if (pvfb->state->damage.count + n > LORIE_DAMAGE_MAX_RECTS)
+        // Too many rectangles or renderer did not take previous full frame damage yet.
+        pvfb->state->damage.count = LORIE_DAMAGE_FULL;
+    else
+        for (int i = 0; i < n; i++)
+            pvfb->state->damage.rects[pvfb->state->damage.count++] = (struct lorie_damage_rect) {
+                .x1 = boxes[i].x1, .y1 = boxes[i].y1, .x2 = boxes[i].x2, .y2 = boxes[i].y2
+            };
+    pvfb->state->damage.immutable = lorieIsBackBuffer(id);
+    pvfb->state->timeline.published = lorieTimestamp();
+    __atomic_store_n(&pvfb->state->rootWindowTextureID, id, __ATOMIC_RELEASE);
+    lorie_mutex_unlock(&pvfb->state->damage.lock);
+}
+
 static Bool lorieRedraw(__unused ClientPtr pClient, __unused void *closure) {
     int status, nonEmpty;
+    Bool doubleBuffered;
+    uint64_t id, backId;
+    RegionPtr damage = NULL;
     LoriePixmapPriv* priv;
     PixmapPtr root = pScreenPtr && pScreenPtr->root ? pScreenPtr->GetWindowPixmap(pScreenPtr->root) : NULL;
 
+    pvfb->state->timeline.redraw = lorieTimestamp();
     pvfb->current_msc++;
     loriePerformVblanks();
 
+    // Without surface damage is kept until activity sends new screen size, so it does not need vsync.
+    lorieVsyncAccount(lorieConnectionAlive() && pvfb->state->surfaceAvailable && (FALSE
+            || pvfb->state->waitForNextFrame || pvfb->state->drawRequested
+            || pvfb->state->cursor.moved || pvfb->state->cursor.updated
+            || RegionNotEmpty(DamageRegion(pvfb->damage)) || !xorg_list_is_empty(&pvfb->vblank_queue)));
+
     pvfb->state->waitForNextFrame = false;
 
     if (!lorieConnectionAlive() || !pvfb->state->surfaceAvailable)
@@ -416,48 +732,106 @@ static Bool lorieRedraw(__unused ClientPtr pClient, __unused void *closure) {
         // Impossible situation, but let's skip this step
         return TRUE;
 
-    if (nonEmpty && priv->buffer) {
+    // Flipped pixmaps are not modified until they are released, so only screen pixmap is copied to back buffers.
+    doubleBuffered = pvfb->back[0].buffer && root == pScreenPtr->devPrivate;
+    id = doubleBuffered ? pvfb->state->rootWindowTextureID : LorieBuffer_description(priv->buffer)->id;
+
+    if ((nonEmpty || (doubleBuffered && !lorieIsBackBuffer(id))) && priv->buffer) {
         // We should unlock and lock buffer in order to update texture content on some devices
         // In most cases AHardwareBuffer uses DMA memory which is shared between CPU and GPU
         // and this is not needed. But according to docs we should do it for any case.
         // Also according to AHardwareBuffer docs simultaneous reading in rendering thread and
         // locking for writing in other thread is fine.
-        if (priv->locked) {
+        if (priv->locked && !doubleBuffered) {
             LorieBuffer_unlock(priv->buffer);
             status = LorieBuffer_lock(priv->buffer, &priv->locked);
             if (status)
                 FatalError("Failed to lock the surface: %d\n", status);
         }
 
-        DamageEmpty(pvfb->damage);
-        pvfb->state->drawRequested = TRUE;
+        if (!doubleBuffered || (backId = lorieCopyToBackBuffer(priv, DamageRegion(pvfb->damage)))) {
+            id = doubleBuffered ? backId : id;
+            damage = DamageRegion(pvfb->damage);
+            pvfb->state->drawRequested = TRUE;
+        }
+        // Otherwise renderer still samples both back buffers, damage will be copied on the next frame.
     }
 
     if (pvfb->state->drawRequested || pvfb->state->cursor.moved || pvfb->state->cursor.updated) {
-        pvfb->state->rootWindowTextureID = LorieBuffer_description(priv->buffer)->id;
+        loriePublishFrame(damage, id);
+        if (damage)
+            DamageEmpty(pvfb->damage);
 
-        // Sending signal about pending root window changes to renderer thread.
+        // Waking renderer thread about pending root window changes.
         // We do not explicitly lock the pvfb->state->lock here because we do not want to wait
         // for all drawing operations to be finished.
         // Renderer thread will check the `drawRequested` flag right before going to sleep.
-        pthread_cond_signal(&pvfb->state->cond);
+        lorieWakeRenderer();
     }
 
     return TRUE;
 }
 
+void lorieRecordInputLatency(int type, uint32_t time) {
+    // Zero means activity did not stamp the event.
+    if (time && pvfb->state)
+        lorie_latency_record(&pvfb->state->inputLatency[type], max((int32_t) (lorieEventTime() - time), 0));
+}
+
+static void lorieReportTimeline(void) {
+    static uint32_t reported = 0;
+    static const char* names[] = { "wakeup", "lock wait", "draw", "GPU", "swap" };
+    uint32_t head = __atomic_load_n(&pvfb->state->timeline.head, __ATOMIC_ACQUIRE), n = min(head - reported, LORIE_TIMELINE_SIZE);
+    uint64_t sum[5] = {0}, peak[5] = {0};
+
+    reported = head;
+    if (!n)
+        return;
+
+    for (uint32_t i = head - n; i != head; i++) {
+        struct lorie_frame_timeline *f = &pvfb->state->timeline.frames[i % LORIE_TIMELINE_SIZE];
+        // X server can publish the next frame after renderer took this one, it is not a wakeup then.
+        uint64_t values[5] = { f->started > f->published ? f->started - f->published : 0, f->locked - f->started, f->drawn - f->locked, f->fenced - f->drawn, f->swapped - f->fenced };
+        for (int j = 0; j < 5; j++) {
+            sum[j] += values[j];
+            peak[j] = max(peak[j], values[j]);
+        }
+    }
+
+    for (int j = 0; j < 5; j++)
+        log(INFO, "last %u frames %s: avg %.2f ms, max %.2f ms", n, names[j], sum[j] / 1000.f / n, peak[j] / 1000.f);
+}
+
 static CARD32 lorieFramecounter(unused OsTimerPtr timer, unused CARD32 time, unused void *arg) {
+    static const char* types[LORIE_LATENCY_TYPES] = { "touch", "mouse", "stylus", "key" };
+    static uint32_t reported[LORIE_LATENCY_TYPES] = {0};
     if (pvfb->state->renderedFrames)
         log(INFO, "%d frames in 5.0 seconds = %.1f FPS",
             pvfb->state->renderedFrames, ((float) pvfb->state->renderedFrames) / 5);
     pvfb->state->renderedFrames = 0;
+    lorieReportTimeline();
+
+    if (vsync.busyFrames || vsync.graceFrames)
+        log(INFO, "vsync: %u busy frames, %u grace frames, armed %u times in 5.0 seconds",
+            __atomic_exchange_n(&vsync.busyFrames, 0, __ATOMIC_RELAXED), __atomic_exchange_n(&vsync.graceFrames, 0, __ATOMIC_RELAXED),
+            __atomic_exchange_n(&vsync.arms, 0, __ATOMIC_RELAXED));
+
+    for (int i = 0; i < LORIE_LATENCY_TYPES; i++) {
+        struct lorie_latency_histogram* h = &pvfb->state->inputLatency[i];
+        if (h->count == reported[i])
+            continue;
+
+        reported[i] = h->count;
+        log(INFO, "%s input latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms (%u events)", types[i],
+            lorie_latency_percentile(h, 50) / 1000.f, lorie_latency_percentile(h, 99) / 1000.f, h->max / 1000.f, h->count);
+    }
     return 5000;
 }
 
 static Bool lorieCreateScreenResources(ScreenPtr pScreen) {
     pScreen->devPrivate = pScreen->CreatePixmap(pScreen, pScreen->width, pScreen->height, pScreen->rootDepth, CREATE_PIXMAP_USAGE_LORIEBUFFER_BACKED);
 
-    pvfb->damage = DamageCreate(NULL, NULL, DamageReportNone, TRUE, pScreen, NULL);
+    pvfb->damage = DamageCreate(lorieDamageReport, NULL, DamageReportNonEmpty, TRUE, pScreen, NULL);
     if (!pvfb->damage)
         FatalError("Couldn't setup damage\n");
 
@@ -465,14 +839,17 @@ static Bool lorieCreateScreenResources(ScreenPtr pScreen) {
     pvfb->fpsTimer = TimerSet(NULL, 0, 5000, lorieFramecounter, pScreen);
 
     lorieRegisterBuffer(LORIE_BUFFER_FROM_PIXMAP(pScreenPtr->devPrivate));
+    lorieCreateBackBuffers(pScreen->width, pScreen->height);
 
     return TRUE;
 }
 
 static Bool lorieCloseScreen(ScreenPtr pScreen) {
+    lorieDestroyBackBuffers();
     pScreenPtr = NULL;
     pScreen->DestroyPixmap(pScreen->devPrivate);
     pScreen->devPrivate = NULL;
+    lorieBufferPoolFlush();
     pScreen->CloseScreen = pvfb->CloseScreen;
     return pScreen->CloseScreen(pScreen);
 }
@@ -537,7 +914,7 @@ static Bool lorieRRScreenSetSize(ScreenPtr pScreen, CARD16 width, CARD16 height,
         DamageDestroy(pvfb->damage);
     }
 
-    pvfb->damage = DamageCreate(NULL, NULL, DamageReportNone, TRUE, pScreen, NULL);
+    pvfb->damage = DamageCreate(lorieDamageReport, NULL, DamageReportNonEmpty, TRUE, pScreen, NULL);
     if (!pvfb->damage)
         FatalError("Couldn't setup damage\n");
 
@@ -555,6 +932,7 @@ static Bool lorieRRScreenSetSize(ScreenPtr pScreen, CARD16 width, CARD16 height,
     }
 
     lorieRegisterBuffer(LORIE_BUFFER_FROM_PIXMAP(pScreenPtr->devPrivate));
+    lorieCreateBackBuffers(width, height);
 
     pScreen->ResizeWindow(pScreen->root, 0, 0, width, height, NULL);
     RegionReset(&pScreen->root->winSize, &box);
@@ -615,12 +993,22 @@ void lorieWakeServer(void) {
 }
 
 static void lorieWorkingQueueCallback(int fd, int __unused ready, void __unused *data) {
-    // Nothing to do here. It is needed to interrupt ospoll_wait.
+    // It is needed to interrupt ospoll_wait, besides that only input work queued by input thread should be processed here.
     eventfd_t dummy;
     eventfd_read(fd, &dummy);
+    lorieProcessInputWork();
 }
 
 void lorieChoreographerFrameCallback(__unused long t, AChoreographer* d) {
+    if (__atomic_load_n(&vsync.idleFrames, __ATOMIC_SEQ_CST) >= LORIE_VSYNC_GRACE_FRAMES) {
+        __atomic_store_n(&vsync.armed, false, __ATOMIC_SEQ_CST);
+        // lorieRequestVsync could be called right before disarming, in this case we should continue.
+        // If it was called right after disarming it has already asked looper to post the callback.
+        if (__atomic_load_n(&vsync.idleFrames, __ATOMIC_SEQ_CST) >= LORIE_VSYNC_GRACE_FRAMES
+            || __atomic_exchange_n(&vsync.armed, true, __ATOMIC_SEQ_CST))
+            return;
+    }
+
     AChoreographer_postFrameCallback(d, (AChoreographer_frameCallback) lorieChoreographerFrameCallback, d);
     if (pScreenPtr) {
         QueueWorkProc(lorieRedraw, NULL, NULL);
@@ -749,6 +1137,7 @@ static Bool loriePresentQueueVblank(__unused RRCrtcPtr crtc, uint64_t event_id,
 
     *vblank = (struct vblank) { .id = event_id, .msc = msc };
     xorg_list_add(&vblank->link, &pvfb->vblank_queue);
+    lorieRequestVsync();
 
     return Success;
 #pragma clang diagnostic pop
@@ -791,11 +1180,27 @@ Bool loriePresentFlip(__unused RRCrtcPtr crtc, __unused uint64_t event_id, __unu
         // Regular buffers can not be shared to activity, we must explicitly convert LorieBuffer to FD or AHardwareBuffer
         int8_t type = pvfb->root.legacyDrawing ? LORIEBUFFER_FD : LORIEBUFFER_AHARDWAREBUFFER;
         int8_t format = pvfb->root.flip ? AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM : AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM;
-        LorieBuffer_convert(priv->buffer, type, format);
-        if (desc->type != LORIEBUFFER_REGULAR) {
-            // LorieBuffer_convert does not report status but it does not let the type change in the case of error.
+        LorieBuffer *pooled = lorieBufferPoolTake(desc->width, desc->height, format, type);
+        void *data = NULL;
+        if (pooled && priv->locked && !LorieBuffer_lock(pooled, &data)) {
+            // Recycled buffer is already registered in activity, only the content should be copied.
+            pixman_blt(priv->locked, data, desc->stride, LorieBuffer_description(pooled)->stride, 32, 32, 0, 0, 0, 0, desc->width, desc->height);
+            LorieBuffer_unlock(priv->buffer);
+            LorieBuffer_release(priv->buffer);
+            priv->buffer = pooled;
+            priv->locked = data;
+            desc = LorieBuffer_description(pooled);
             pScreenPtr->ModifyPixmapHeader(pixmap, 0, 0, 0, 0, desc->stride * 4, NULL);
-            LorieBuffer_lock(priv->buffer, &priv->locked);
+        } else {
+            if (pooled)
+                lorieBufferPoolPut(pooled);
+
+            LorieBuffer_convert(priv->buffer, type, format);
+            if (desc->type != LORIEBUFFER_REGULAR) {
+                // LorieBuffer_convert does not report status but it does not let the type change in the case of error.
+                pScreenPtr->ModifyPixmapHeader(pixmap, 0, 0, 0, 0, desc->stride * 4, NULL);
+                LorieBuffer_lock(priv->buffer, &priv->locked);
+            }
         }
     }
 
@@ -811,8 +1216,10 @@ void loriePresentAfterFlip(__unused RRCrtcPtr crtc, uint64_t event_id, uint64_t
     // Since we do not invoke DRM API or anything similar we do not need to implement this as callback
     // For some reason calling present_event_notify in BlockHandler or as QueueWorkProc/eventfd callback
     // adds some delay which may be easily avoided this way.
-    static BoxRec box = { 0, 0, 1, 1 }; // lorieRedraw only checks if it is empty or not.
+    // Flipped pixmap replaces the whole root window content.
+    BoxRec box = { 0, 0, pvfb->root.width, pvfb->root.height };
     RegionReset(DamageRegion(pvfb->damage), &box);
+    lorieRequestVsync();
     pvfb->current_msc = min(pvfb->current_msc + 1, target_msc);
     present_event_notify(event_id, ust, pvfb->current_msc);
 }
@@ -851,7 +1258,7 @@ void *lorieCreatePixmap(__unused ScreenPtr pScreen, int width, int height, __unu
 
     uint8_t type = usage_hint != CREATE_PIXMAP_USAGE_LORIEBUFFER_BACKED ? LORIEBUFFER_REGULAR : pvfb->root.legacyDrawing ? LORIEBUFFER_FD : LORIEBUFFER_AHARDWAREBUFFER;
     uint8_t format = pvfb->root.flip ? AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM : AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM;
-    priv->buffer = LorieBuffer_allocate(width, height, format, type);
+    priv->buffer = (type != LORIEBUFFER_REGULAR ? lorieBufferPoolTake(width, height, format, type) : NULL) ?: LorieBuffer_allocate(width, height, format, type);
     *new_fb_pitch = LorieBuffer_description(priv->buffer)->stride * 4;
 
     LorieBuffer_lock(priv->buffer, &priv->locked);
@@ -868,8 +1275,11 @@ void lorieExaDestroyPixmap(__unused ScreenPtr pScreen, void *driverPriv) {
     if (priv->buffer) {
         if (priv->locked)
             LorieBuffer_unlock(priv->buffer);
-        lorieUnregisterBuffer(priv->buffer);
-        LorieBuffer_release(priv->buffer);
+        if (priv->imported || priv->mem) {
+            lorieUnregisterBuffer(priv->buffer);
+            LorieBuffer_release(priv->buffer);
+        } else
+            lorieBufferPoolPut(priv->buffer);
     }
     free(priv);
 }
@@ -883,8 +1293,9 @@ Bool lorieModifyPixmapHeader(PixmapPtr pPix, __unused int w, __unused int h, __u
 
 Bool loriePrepareAccess(PixmapPtr pPix, int index) {
     LoriePixmapPriv *priv = exaGetPixmapDriverPrivate(pPix);
-    if (index == EXA_PREPARE_DEST && pScreenPtr->GetScreenPixmap(pScreenPtr) == pPix)
-        lorie_mutex_lock(&pvfb->state->lock, &pvfb->state->lockingPid);
+    // In double buffered mode renderer never samples screen pixmap.
+    if (index == EXA_PREPARE_DEST && !pvfb->back[0].buffer && pScreenPtr->GetScreenPixmap(pScreenPtr) == pPix)
+        lorie_mutex_lock(&pvfb->state->lock);
 
     if (!priv->locked && !priv->mem) {
         int err = LorieBuffer_lock(priv->buffer, &priv->locked);
@@ -902,8 +1313,8 @@ Bool loriePrepareAccess(PixmapPtr pPix, int index) {
 
 void lorieFinishAccess(PixmapPtr pPix, int index) {
     LoriePixmapPriv *priv = exaGetPixmapDriverPrivate(pPix);
-    if (index == EXA_PREPARE_DEST && pScreenPtr->GetScreenPixmap(pScreenPtr) == pPix)
-        lorie_mutex_unlock(&pvfb->state->lock, &pvfb->state->lockingPid);
+    if (index == EXA_PREPARE_DEST && !pvfb->back[0].buffer && pScreenPtr->GetScreenPixmap(pScreenPtr) == pPix)
+        lorie_mutex_unlock(&pvfb->state->lock);
 
     if (!priv->wasLocked) {
         LorieBuffer_unlock(priv->buffer);
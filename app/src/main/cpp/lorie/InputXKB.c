@@ -41,6 +41,7 @@
 
 #include <X11/keysym.h>
 #include <selection.h>
+#include "keysym_cache.h"
 
 #ifndef KEYBOARD_OR_FLOAT
 #define KEYBOARD_OR_FLOAT MASTER_KEYBOARD
@@ -58,6 +59,7 @@ typedef struct
 {
     KeySym keysym;
     KeyCode keycode;
+    unsigned batch;
     struct xorg_list entry;
 } AddedKeySym;
 
@@ -69,9 +71,22 @@ typedef struct
  * we run out of unused KeyCodes.
  *
  * Items in this list are maintained in LRU order, with most recently used key
- * in front.
+ * in front. Items are indexed by keycode, so both moving used key to front and
+ * taking the oldest key take constant time.
  */
 static struct xorg_list addedKeysyms = { &addedKeysyms, &addedKeysyms };
+static AddedKeySym addedKeysymsByKeycode[256];
+
+/*
+ * Keymap changes made by lorieAddKeysym() are accumulated here and sent to
+ * clients by lorieSendKeymapChanges(), so adding a batch of keysyms costs
+ * one notification. Keys reserved for the current batch are marked with
+ * keysymBatch and are never reused until lorieEndKeysymBatch(), since events
+ * using them are not yet queued.
+ */
+static XkbChangesRec pendingKeymapChanges;
+static Bool keymapChangesPending;
+static unsigned keysymBatch = 1;
 
 
 static KeySym pressedKeys[256] = {0};
@@ -126,6 +141,9 @@ static struct altKeysym_t {
 };
 
 void lorieKeysymKeyboardEvent(KeySym keysym, int down);
+void lorieSendKeymapChanges(void);
+void lorieEndKeysymBatch(void);
+Bool lorieKeysymReserve(KeySym keysym);
 KeyCode lorieKeysymToKeycode(KeySym keysym, unsigned state, unsigned *new_state);
 
 /* Stolen from libX11 */
@@ -479,7 +497,28 @@ static size_t lorieReleaseLevelThree(KeyCode *keys, size_t maxKeys) {
 	return count;
 }
 
-KeyCode lorieKeysymToKeycode(KeySym keysym, unsigned state, unsigned *new_state) {
+static KeySym lorieKeycodeToKeysym(XkbDescPtr xkb, KeyCode key, unsigned state) {
+	unsigned int state_out;
+	KeySym ks, dummy;
+
+	XkbTranslateKeyCode(xkb, key, state, &state_out, &ks);
+	if (ks == NoSymbol)
+		return NoSymbol;
+
+	/*
+	 * Despite every known piece of documentation on
+	 * XkbTranslateKeyCode() stating that mods_rtrn returns
+	 * the unconsumed modifiers, in reality it always
+	 * returns the _potentially consumed_ modifiers.
+	 */
+	state_out = state & ~state_out;
+	if (state_out & LockMask)
+		XkbConvertCase(ks, &dummy, &ks);
+
+	return ks;
+}
+
+static KeyCode lorieKeysymToKeycodeUncached(KeySym keysym, unsigned state, unsigned *new_state) {
 	XkbDescPtr xkb;
 	unsigned int key; // KeyCode has insufficient range for the loop
 	KeyCode fallback;
@@ -492,25 +531,10 @@ KeyCode lorieKeysymToKeycode(KeySym keysym, unsigned state, unsigned *new_state)
 	fallback = 0;
 	xkb = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT)->key->xkbInfo->desc;
 	for (key = xkb->min_key_code; key <= xkb->max_key_code; key++) {
-		unsigned int state_out;
-		KeySym dummy;
 		size_t fakeIdx;
 
-		XkbTranslateKeyCode(xkb, key, state, &state_out, &ks);
-		if (ks == NoSymbol)
-			continue;
-
-		/*
-		 * Despite every known piece of documentation on
-		 * XkbTranslateKeyCode() stating that mods_rtrn returns
-		 * the unconsumed modifiers, in reality it always
-		 * returns the _potentially consumed_ modifiers.
-		 */
-		state_out = state & ~state_out;
-		if (state_out & LockMask)
-			XkbConvertCase(ks, &dummy, &ks);
-
-		if (ks != keysym)
+		ks = lorieKeycodeToKeysym(xkb, key, state);
+		if (ks == NoSymbol || ks != keysym)
 			continue;
 
 		/*
@@ -565,6 +589,23 @@ KeyCode lorieKeysymToKeycode(KeySym keysym, unsigned state, unsigned *new_state)
 	return 0;
 }
 
+// Cache of lorieKeysymToKeycodeUncached() results, see keysym_cache.h.
+static struct lorie_keysym_cache keysymCache;
+
+static uint32_t lorieCachedKeycodeToKeysym(const void* keymap, uint8_t keycode, unsigned state) {
+	return (uint32_t) lorieKeycodeToKeysym((XkbDescPtr) keymap, keycode, state);
+}
+
+static uint8_t lorieCachedKeysymToKeycode(unused const void* keymap, uint32_t keysym, unsigned state, unsigned *new_state) {
+	return lorieKeysymToKeycodeUncached(keysym, state, new_state);
+}
+
+KeyCode lorieKeysymToKeycode(KeySym keysym, unsigned state, unsigned *new_state) {
+	XkbDescPtr xkb = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT)->key->xkbInfo->desc;
+	return lorie_keysym_cache_lookup(&keysymCache, xkb, xkb->min_key_code, xkb->max_key_code, keysym, state, new_state,
+	                                 lorieCachedKeycodeToKeysym, lorieCachedKeysymToKeycode);
+}
+
 static int lorieIsAffectedByNumLock(KeyCode keycode) {
 	unsigned state;
 
@@ -609,16 +650,22 @@ static int lorieIsAffectedByNumLock(KeyCode keycode) {
 	return 1;
 }
 
+static Bool isAddedKeysym(AddedKeySym* item)
+{
+    // Items never added to the list are zeroed, removed items point to themselves.
+    return item->entry.next != NULL && !xorg_list_is_empty(&item->entry);
+}
+
 static void saveAddedKeysym(KeyCode code, KeySym sym)
 {
-    AddedKeySym* item;
+    AddedKeySym* item = &addedKeysymsByKeycode[code];
 
-    item = malloc(sizeof(AddedKeySym));
-    if (!item)
-        return;
+    if (isAddedKeysym(item))
+        xorg_list_del(&item->entry);
 
     item->keycode = code;
     item->keysym = sym;
+    item->batch = 0;
     xorg_list_add(&item->entry, &addedKeysyms);
 }
 
@@ -627,28 +674,20 @@ static void saveAddedKeysym(KeyCode code, KeySym sym)
  */
 void vncOnKeyUsed(KeyCode usedKeycode)
 {
-    AddedKeySym* it;
-
-    if (xorg_list_is_empty(&addedKeysyms))
-        return;
+    AddedKeySym* it = &addedKeysymsByKeycode[usedKeycode];
 
-    it = xorg_list_first_entry(&addedKeysyms, AddedKeySym, entry);
-    if (it->keycode == usedKeycode)
+    if (!isAddedKeysym(it) || addedKeysyms.next == &it->entry)
         return;
 
-    xorg_list_for_each_entry(it, &addedKeysyms, entry) {
-        if (it->keycode == usedKeycode) {
-            xorg_list_del(&it->entry);
-            xorg_list_add(&it->entry, &addedKeysyms);
-            break;
-        }
-    }
+    xorg_list_del(&it->entry);
+    xorg_list_add(&it->entry, &addedKeysyms);
 }
 
 /*
  * Returns keycode of oldest item from list of manually added keysyms.
  * The item is removed from the list.
- * Returns 0 if no usable keycode is found.
+ * Returns 0 if no usable keycode is found or the oldest key is reserved for
+ * current batch, which means every added key is.
  */
 static KeyCode getReusableKeycode(XkbDescPtr xkb)
 {
@@ -658,6 +697,8 @@ static KeyCode getReusableKeycode(XkbDescPtr xkb)
     result = 0;
     while (result == 0 && !xorg_list_is_empty(&addedKeysyms)) {
         last = xorg_list_last_entry(&addedKeysyms, AddedKeySym, entry);
+        if (last->batch == keysymBatch)
+            break;
 
         // Make sure someone else hasn't modified the key
         if (XkbKeyNumGroups(xkb, last->keycode) > 0 &&
@@ -666,25 +707,33 @@ static KeyCode getReusableKeycode(XkbDescPtr xkb)
             result = last->keycode;
 
         xorg_list_del(&last->entry);
-        free(last);
     }
     return result;
 }
 
+static void lorieAddKeyChange(KeyCode *first, unsigned char *num, KeyCode key)
+{
+    if (*num == 0) {
+        *first = key;
+        *num = 1;
+    } else if (key < *first) {
+        *num += *first - key;
+        *first = key;
+    } else if (key >= *first + *num)
+        *num = key - *first + 1;
+}
+
 static KeyCode lorieAddKeysym(KeySym keysym, unused unsigned state) {
-	DeviceIntPtr master;
 	XkbDescPtr xkb;
 	unsigned int key;
 
-	XkbEventCauseRec cause;
-	XkbChangesRec changes;
+	XkbChangesPtr changes;
 
 	int types[1];
 	KeySym *syms;
 	KeySym upper, lower;
 
-	master = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT);
-	xkb = master->key->xkbInfo->desc;
+	xkb = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT)->key->xkbInfo->desc;
     for (key = xkb->max_key_code; key >= xkb->min_key_code; key--) {
         if (XkbKeyNumGroups(xkb, key) == 0)
             break;
@@ -696,10 +745,8 @@ static KeyCode lorieAddKeysym(KeySym keysym, unused unsigned state) {
     if (!key)
         return 0;
 
-	memset(&changes, 0, sizeof(changes));
-	memset(&cause, 0, sizeof(cause));
-
-	XkbSetCauseUnknown(&cause)
+	changes = &pendingKeymapChanges;
+	keymapChangesPending = TRUE;
 
 	/*
 	 * Tools like xkbcomp get confused if there isn't a name
@@ -711,15 +758,14 @@ static KeyCode lorieAddKeysym(KeySym keysym, unused unsigned state) {
 		xkb->names->keys[key].name[2] = '0' + (key /  10) % 10;
 		xkb->names->keys[key].name[3] = '0' + (key /   1) % 10;
 
-		changes.names.changed |= XkbKeyNamesMask;
-		changes.names.first_key = key;
-		changes.names.num_keys = 1;
+		changes->names.changed |= XkbKeyNamesMask;
+		lorieAddKeyChange(&changes->names.first_key, &changes->names.num_keys, key);
 	}
 
 	XkbConvertCase(keysym, &lower, &upper);
 	types[XkbGroup1Index] = XkbAlphabeticIndex;
 
-	XkbChangeTypesOfKey(xkb, (int) key, 1, XkbGroup1Mask, types, &changes.map);
+	XkbChangeTypesOfKey(xkb, (int) key, 1, XkbGroup1Mask, types, &changes->map);
 
 	syms = XkbKeySymsPtr(xkb, key);
 	syms[0] = lower;
@@ -727,15 +773,61 @@ static KeyCode lorieAddKeysym(KeySym keysym, unused unsigned state) {
 
     saveAddedKeysym(key, syms[0]);
 
-	changes.map.changed |= XkbKeySymsMask;
-	changes.map.first_key_sym = key;
-	changes.map.num_key_syms = 1;
-
-	XkbSendNotification(master, &changes, &cause);
+	changes->map.changed |= XkbKeySymsMask;
+	lorieAddKeyChange(&changes->map.first_key_sym, &changes->map.num_key_syms, key);
 
 	return key;
 }
 
+/*
+ * Sends keymap changes made since last call to clients.
+ * Must be called before any key event using added keysyms is processed.
+ */
+void lorieSendKeymapChanges(void) {
+	XkbEventCauseRec cause;
+
+	if (!keymapChangesPending)
+		return;
+
+	memset(&cause, 0, sizeof(cause));
+	XkbSetCauseUnknown(&cause)
+	XkbSendNotification(GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT), &pendingKeymapChanges, &cause);
+
+	memset(&pendingKeymapChanges, 0, sizeof(pendingKeymapChanges));
+	keymapChangesPending = FALSE;
+}
+
+/*
+ * Ends current batch, so keys reserved for it can be reused. Must be called
+ * only after all key events using them are queued.
+ */
+void lorieEndKeysymBatch(void) {
+	keysymBatch++;
+}
+
+/*
+ * Makes sure keysym can be typed after the next lorieSendKeymapChanges()
+ * without changing keymap, adding it to keymap if needed. Used to add the
+ * keysyms of a whole chunk of text at once. Returns FALSE if the keysym can
+ * not be added without reusing a key reserved in current batch.
+ */
+Bool lorieKeysymReserve(KeySym keysym) {
+	unsigned state, new_state;
+	KeyCode keycode;
+
+	state = lorieGetKeyboardState();
+	keycode = lorieKeysymToKeycode(keysym, state, &new_state);
+	if (keycode == 0) {
+		keycode = lorieAddKeysym(keysym, state);
+		if (keycode == 0)
+			return FALSE;
+	}
+
+	if (isAddedKeysym(&addedKeysymsByKeycode[keycode]))
+		addedKeysymsByKeycode[keycode].batch = keysymBatch;
+	return TRUE;
+}
+
 /*
  * lorieKeysymKeyboardEvent() - work out the best keycode corresponding
  * to the keysym sent by the viewer. This is basically impossible in
@@ -809,6 +901,7 @@ void lorieKeysymKeyboardEvent(KeySym keysym, int down) {
     /* No matches. Will have to add a new entry... */
     if (keycode == 0) {
         keycode = lorieAddKeysym(keysym, state);
+        lorieSendKeymapChanges();
         if (keycode == 0) {
                 LogMessageVerb(X_ERROR, -1, "Failure adding new keysym 0x%x\n", keysym);
             return;
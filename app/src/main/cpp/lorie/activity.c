@@ -8,6 +8,8 @@
 #include <sys/prctl.h>
 #include <sys/socket.h>
 #include <sys/mman.h>
+#include <sys/uio.h>
+#include <sys/eventfd.h>
 #include <errno.h>
 #include <jni.h>
 #include <android/looper.h>
@@ -128,6 +130,70 @@ static void nativeInit(JNIEnv *env, jobject thiz) {
     connect_(NULL, NULL, -1);
 }
 
+static struct lorie_input_ring* inputRing = NULL;
+static int inputRingDoorbell = -1;
+static int inputRingSpace = -1;
+// Ring is single producer, so events are sent under this lock no matter which thread sends them.
+static pthread_mutex_t sendLock = PTHREAD_MUTEX_INITIALIZER;
+
+static bool writeFully(struct iovec* iov, int count) {
+    // Short write would make X server read the rest of the payload as event headers, so everything must be written.
+    while (conn_fd != -1 && count > 0) {
+        ssize_t written = writev(conn_fd, iov, count);
+        if (written < 0) {
+            if (errno == EINTR)
+                continue;
+            return false;
+        }
+
+        for (; count > 0 && (size_t) written >= iov->iov_len; iov++, count--)
+            written -= (ssize_t) iov->iov_len;
+
+        if (count > 0) {
+            iov->iov_base = (char*) iov->iov_base + written;
+            iov->iov_len -= written;
+        }
+    }
+
+    return count == 0;
+}
+
+static void closeInputRing(void) {
+    // Must be called with sendLock held.
+    if (inputRing)
+        munmap(inputRing, sizeof(*inputRing));
+    if (inputRingDoorbell != -1)
+        close(inputRingDoorbell);
+    if (inputRingSpace != -1)
+        close(inputRingSpace);
+
+    inputRing = NULL;
+    inputRingDoorbell = inputRingSpace = -1;
+}
+
+static void setInputRing(struct lorie_input_ring* ring, int doorbell, int space) {
+    pthread_mutex_lock(&sendLock);
+    if (ring) {
+        // X server reads the socket on its own until it gets the acknowledgement.
+        lorieEvent e = { .type = EVENT_INPUT_RING };
+        struct iovec iov = { .iov_base = &e, .iov_len = sizeof(e) };
+        if (!writeFully(&iov, 1)) {
+            log(ERROR, "Failed to acknowledge input ring: %s", strerror(errno));
+            munmap(ring, sizeof(*ring));
+            close(doorbell);
+            close(space);
+            ring = NULL;
+            doorbell = space = -1;
+        }
+    }
+
+    closeInputRing();
+    inputRing = ring;
+    inputRingDoorbell = doorbell;
+    inputRingSpace = space;
+    pthread_mutex_unlock(&sendLock);
+}
+
 static int xcallback(int fd, int events, __unused void* data) {
     JNIEnv *env = guienv;
     jobject thiz = globalThiz;
@@ -140,7 +206,8 @@ static int xcallback(int fd, int events, __unused void* data) {
         ALooper_removeFd(ALooper_forThread(), fd);
         close(conn_fd);
         conn_fd = -1;
-        rendererSetSharedState(NULL);
+        setInputRing(NULL, -1, -1);
+        rendererSetSharedState(NULL, -1);
         rendererRemoveAllBuffers();
         log(DEBUG, "disconnected");
         return 1;
@@ -177,21 +244,56 @@ static int xcallback(int fd, int events, __unused void* data) {
                 case EVENT_SHARED_SERVER_STATE: {
                     struct lorie_shared_server_state* state = NULL;
                     int stateFd = ancil_recv_fd(conn_fd);
+                    int doorbell = ancil_recv_fd(conn_fd);
 
-                    if (stateFd < 0)
+                    if (stateFd < 0 || doorbell < 0) {
+                        if (stateFd >= 0)
+                            close(stateFd);
+                        if (doorbell >= 0)
+                            close(doorbell);
                         break;
+                    }
 
                     state = mmap(NULL, sizeof(*state), PROT_READ|PROT_WRITE, MAP_SHARED, stateFd, 0);
                     if (!state || state == MAP_FAILED) {
                         log(ERROR, "Failed to map server state: %s", strerror(errno));
                         state = NULL;
+                        close(doorbell);
+                        doorbell = -1;
                     }
 
-                    rendererSetSharedState(state);
+                    rendererSetSharedState(state, doorbell); // Renderer owns doorbell now.
 
                     close(stateFd); // Closing file descriptor does not unmmap shared memory fragment.
                     break;
                 }
+                case EVENT_INPUT_RING: {
+                    struct lorie_input_ring* ring = NULL;
+                    int ringFd = ancil_recv_fd(conn_fd);
+                    int doorbell = ancil_recv_fd(conn_fd);
+                    int space = ancil_recv_fd(conn_fd);
+
+                    if (ringFd >= 0 && doorbell >= 0 && space >= 0) {
+                        ring = mmap(NULL, sizeof(*ring), PROT_READ|PROT_WRITE, MAP_SHARED, ringFd, 0);
+                        if (!ring || ring == MAP_FAILED) {
+                            log(ERROR, "Failed to map input ring: %s", strerror(errno));
+                            ring = NULL;
+                        }
+                    }
+
+                    if (ring)
+                        setInputRing(ring, doorbell, space);
+                    else {
+                        if (doorbell >= 0)
+                            close(doorbell);
+                        if (space >= 0)
+                            close(space);
+                    }
+
+                    if (ringFd >= 0)
+                        close(ringFd); // Closing file descriptor does not unmmap shared memory fragment.
+                    break;
+                }
                 case EVENT_ADD_BUFFER: {
                     static LorieBuffer* buffer = NULL;
                     const LorieBuffer_Desc* desc;
@@ -223,7 +325,8 @@ static void connect_(__unused JNIEnv* env, __unused jobject cls, jint fd) {
     if (conn_fd != -1) {
         ALooper_removeFd(ALooper_forThread(), conn_fd);
         close(conn_fd);
-        rendererSetSharedState(NULL);
+        setInputRing(NULL, -1, -1);
+        rendererSetSharedState(NULL, -1);
         rendererRemoveAllBuffers();
         log(DEBUG, "disconnected");
     }
@@ -257,17 +360,109 @@ static void startLogcat(JNIEnv *env, __unused jobject cls, jint fd) {
     }
 }
 
+/*
+ * Waits until X server frees space in the full ring.
+ * Returns false if X server is gone, socket only reports hangup here since readable data is handled by xcallback.
+ */
+static bool waitForRingSpace(struct lorie_input_ring* ring, uint32_t head) {
+    struct pollfd p[] = { { .fd = inputRingSpace, .events = POLLIN }, { .fd = conn_fd, .events = POLLRDHUP } };
+    eventfd_t dummy;
+    bool alive = true;
+
+    // Must be sequentially consistent with X server advancing tail and checking `waiting` afterwards.
+    atomic_store(&ring->waiting, 1);
+    while (alive && head - atomic_load(&ring->tail) >= LORIE_INPUT_RING_SIZE) {
+        if (poll(p, 2, -1) < 0 && errno != EINTR)
+            alive = false;
+        else if (p[1].revents & (POLLERR | POLLHUP | POLLRDHUP | POLLNVAL))
+            alive = false;
+        else if (p[0].revents & POLLIN)
+            eventfd_read(inputRingSpace, &dummy);
+    }
+    atomic_store(&ring->waiting, 0);
+    return alive;
+}
+
+/* Returns the number of events pushed, the rest must be sent through the socket. Must be called with sendLock held. */
+static size_t pushEventsToRing(const lorieEvent* events, size_t count) {
+    struct lorie_input_ring* ring = inputRing;
+    size_t pushed = 0;
+    uint32_t head, tail, space;
+    if (!ring)
+        return 0;
+
+    head = atomic_load_explicit(&ring->head, memory_order_relaxed);
+    while (count > 0) {
+        tail = atomic_load_explicit(&ring->tail, memory_order_acquire);
+        if (!(space = LORIE_INPUT_RING_SIZE - (head - tail))) {
+            // X server is busy. Events can be neither reordered nor dropped, so wait for it unless it is gone.
+            if (conn_fd == -1 || !waitForRingSpace(ring, head)) {
+                // Nobody drains the ring anymore, caller falls back to the socket and reports the failure.
+                log(ERROR, "X server is gone, input ring is closed");
+                closeInputRing();
+                return pushed;
+            }
+            continue;
+        }
+
+        if (space > count)
+            space = count;
+        for (uint32_t i = 0; i < space; i++)
+            ring->events[(head + i) % LORIE_INPUT_RING_SIZE] = events[i];
+
+        // Must be sequentially consistent with reloading tail, X server stops draining when it sees head == tail.
+        atomic_store(&ring->head, head + space);
+        if (atomic_load(&ring->tail) == head)
+            eventfd_write(inputRingDoorbell, 1);
+
+        head += space;
+        events += space;
+        count -= space;
+        pushed += space;
+    }
+
+    return pushed;
+}
+
+static void sendEvents(const lorieEvent* events, size_t count) {
+    // Events go to the shared ring if X server offered it, otherwise
+    // all events of the batch are pushed with one syscall, X server reads them one by one.
+    size_t pushed;
+    struct iovec iov;
+    pthread_mutex_lock(&sendLock);
+    if (conn_fd != -1 && (pushed = pushEventsToRing(events, count)) < count) {
+        iov = (struct iovec) { .iov_base = (void*) (events + pushed), .iov_len = (count - pushed) * sizeof(*events) };
+        if (!writeFully(&iov, 1))
+            log(ERROR, "Failed to send %zu events: %s", count - pushed, strerror(errno));
+    }
+    pthread_mutex_unlock(&sendLock);
+}
+
+static bool sendMessage(lorieEvent* e, const void* payload, size_t length) {
+    // Event with payload is written to the socket, but X server must read it in order with events of the ring.
+    lorieEvent marker = { .type = EVENT_SOCKET_MESSAGE };
+    struct iovec iov[] = { { .iov_base = e, .iov_len = sizeof(*e) }, { .iov_base = (void*) payload, .iov_len = length } };
+    bool sent;
+
+    pthread_mutex_lock(&sendLock);
+    // Marker goes first and X server waits for the message when it reaches it, so big message can not block both sides.
+    pushEventsToRing(&marker, 1);
+    sent = writeFully(iov, length ? 2 : 1);
+    pthread_mutex_unlock(&sendLock);
+    return sent;
+}
+
 static void setClipboardSyncEnabled(__unused JNIEnv* env, __unused jobject cls, jboolean enable, __unused jboolean ignored) {
     if (conn_fd != -1) {
         lorieEvent e = { .clipboardEnable = { .t = EVENT_CLIPBOARD_ENABLE, .enable = enable } };
-        write(conn_fd, &e, sizeof(e));
+        sendEvents(&e, 1);
     }
 }
 
 static void sendClipboardAnnounce(__unused JNIEnv *env, __unused jobject thiz) {
     if (conn_fd != -1) {
         lorieEvent e = { .type = EVENT_CLIPBOARD_ANNOUNCE };
-        write(conn_fd, &e, sizeof(e));
+        sendEvents(&e, 1);
     }
 }
 
@@ -276,8 +471,8 @@ static void sendClipboardEvent(JNIEnv *env, __unused jobject thiz, jbyteArray te
         jsize length = (*env)->GetArrayLength(env, text);
         jbyte* str = (*env)->GetByteArrayElements(env, text, NULL);
         lorieEvent e = { .clipboardSend = { .t = EVENT_CLIPBOARD_SEND, .count = length } };
-        write(conn_fd, &e, sizeof(e));
-        write(conn_fd, str, length);
+        if (!sendMessage(&e, str, length))
+            log(ERROR, "Failed to send clipboard: %s", strerror(errno));
         (*env)->ReleaseByteArrayElements(env, text, str, JNI_ABORT);
     }
 }
@@ -286,27 +481,52 @@ static void sendWindowChange(__unused JNIEnv* env, __unused jobject cls, jint wi
     if (conn_fd != -1) {
         const char *name = (!jname || width <= 0 || height <= 0) ? NULL : (*env)->GetStringUTFChars(env, jname, JNI_FALSE);
         lorieEvent e = { .screenSize = { .t = EVENT_SCREEN_SIZE, .width = width, .height = height, .framerate = framerate, .name_size = (name ? strlen(name) : 0) } };
-        write(conn_fd, &e, sizeof(e));
-        if (name) {
-            write(conn_fd, name, strlen(name));
+        sendMessage(&e, name, e.screenSize.name_size);
+        if (name)
             (*env)->ReleaseStringUTFChars(env, jname, name);
+    }
+}
+
+static void flushEvents(JNIEnv *env, __unused jobject thiz, jobject buffer, jint count) {
+    lorieEvent* events = buffer ? (*env)->GetDirectBufferAddress(env, buffer) : NULL;
+    jlong capacity = buffer ? (*env)->GetDirectBufferCapacity(env, buffer) : 0;
+    if (conn_fd == -1 || !events || count <= 0)
+        return;
+
+    if (capacity < (jlong) (count * sizeof(lorieEvent))) {
+        log(ERROR, "flushEvents: buffer of %lld bytes can not hold %d events", (long long) capacity, count);
+        return;
+    }
+
+    bool imeReset = false;
+    uint32_t now = lorieEventTime();
+    for (int i = 0; i < count; i++) {
+        // Touch events are stamped with MotionEvent time, other events are stamped here.
+        if (events[i].type == EVENT_MOUSE && !events[i].mouse.time)
+            events[i].mouse.time = now;
+
+        if (!imeReset && ((events[i].type == EVENT_MOUSE && events[i].mouse.detail > 0) || events[i].type == EVENT_STYLUS)) {
+            (*env)->CallVoidMethod(env, globalThiz, MainActivity.resetIme);
+            imeReset = true;
         }
     }
+
+    sendEvents(events, count);
 }
 
 static void sendMouseEvent(__unused JNIEnv* env, __unused jobject cls, jfloat x, jfloat y, jint which_button, jboolean button_down, jboolean relative) {
     if (conn_fd != -1) {
         if (which_button > 0)
             (*env)->CallVoidMethod(env, globalThiz, MainActivity.resetIme);
-        lorieEvent e = { .mouse = { .t = EVENT_MOUSE, .x = x, .y = y, .detail = which_button, .down = button_down, .relative = relative } };
-        write(conn_fd, &e, sizeof(e));
+        lorieEvent e = { .mouse = { .t = EVENT_MOUSE, .x = x, .y = y, .detail = which_button, .down = button_down, .relative = relative, .time = lorieEventTime() } };
+        sendEvents(&e, 1);
     }
 }
 
 static void sendTouchEvent(__unused JNIEnv* env, __unused jobject cls, jint action, jint id, jint x, jint y) {
     if (conn_fd != -1 && action != -1) {
-        lorieEvent e = { .touch = { .t = EVENT_TOUCH, .type = action, .id = id, .x = x, .y = y } };
-        write(conn_fd, &e, sizeof(e));
+        lorieEvent e = { .touch = { .t = EVENT_TOUCH, .type = action, .id = id, .x = x, .y = y, .time = lorieEventTime() } };
+        sendEvents(&e, 1);
     }
 }
 
@@ -315,15 +535,15 @@ static void sendStylusEvent(__unused JNIEnv *env, __unused jobject thiz, jfloat
                             jint orientation, jint buttons, jboolean eraser, jboolean mouse) {
     if (conn_fd != -1) {
         (*env)->CallVoidMethod(env, globalThiz, MainActivity.resetIme);
-        lorieEvent e = { .stylus = { .t = EVENT_STYLUS, .x = x, .y = y, .pressure = pressure, .tilt_x = tilt_x, .tilt_y = tilt_y, .orientation = orientation, .buttons = buttons, .eraser = eraser, .mouse = mouse } };
-        write(conn_fd, &e, sizeof(e));
+        lorieEvent e = { .stylus = { .t = EVENT_STYLUS, .x = x, .y = y, .pressure = pressure, .tilt_x = tilt_x, .tilt_y = tilt_y, .orientation = orientation, .buttons = buttons, .eraser = eraser, .mouse = mouse, .time = lorieEventTime() } };
+        sendEvents(&e, 1);
     }
 }
 
 static void requestStylusEnabled(__unused JNIEnv *env, __unused jclass clazz, jboolean enabled) {
     if (conn_fd != -1) {
         lorieEvent e = { .stylusEnable = { .t = EVENT_STYLUS_ENABLE, .enable = enabled } };
-        write(conn_fd, &e, sizeof(e));
+        sendEvents(&e, 1);
     }
 }
 
@@ -331,8 +551,8 @@ static jboolean sendKeyEvent(__unused JNIEnv* env, __unused jobject cls, jint sc
     if (conn_fd != -1) {
         int code = (scan_code) ?: android_to_linux_keycode[key_code];
         log(DEBUG, "Sending key: %d (%d %d %d)", code + 8, scan_code, key_code, key_down);
-        lorieEvent e = { .key = { .t = EVENT_KEY, .key = code + 8, .state = key_down } };
-        write(conn_fd, &e, sizeof(e));
+        lorieEvent e = { .key = { .t = EVENT_KEY, .key = code + 8, .state = key_down, .time = lorieEventTime() } };
+        sendEvents(&e, 1);
     }
 
     return true;
@@ -341,34 +561,16 @@ static jboolean sendKeyEvent(__unused JNIEnv* env, __unused jobject cls, jint sc
 static void sendTextEvent(JNIEnv *env, __unused jobject thiz, jbyteArray text) {
     if (conn_fd != -1 && text) {
         jsize length = (*env)->GetArrayLength(env, text);
-        jbyte *str = (*env)->GetByteArrayElements(env, text, NULL);
-        char *p = (char*) str;
-        mbstate_t mbstate = { 0 };
         if (!length)
             return;
 
-        log(DEBUG, "Parsing text: %.*s", length, str);
-
-        while (*p) {
-            wchar_t wc;
-            size_t len = mbrtowc(&wc, p, MB_CUR_MAX, &mbstate);
-
-            if (len == (size_t)-1 || len == (size_t)-2) {
-                log(ERROR, "Invalid UTF-8 sequence encountered");
-                break;
-            }
-
-            if (len == 0)
-                break;
+        jbyte *str = (*env)->GetByteArrayElements(env, text, NULL);
+        log(DEBUG, "Sending text: %.*s", length, str);
 
-            log(DEBUG, "Sending unicode event: %lc (U+%X)", wc, wc);
-            lorieEvent e = { .unicode = { .t = EVENT_UNICODE, .code = wc } };
-            write(conn_fd, &e, sizeof(e));
-            p += len;
-            if (p - (char*) str >= length)
-                break;
-            usleep(2500);
-        }
+        // The whole string is sent at once, X server replays it character by character.
+        lorieEvent e = { .unicodeString = { .t = EVENT_UNICODE_STRING, .length = length } };
+        if (!sendMessage(&e, str, length))
+            log(ERROR, "Failed to send text: %s", strerror(errno));
 
         (*env)->ReleaseByteArrayElements(env, text, str, JNI_ABORT);
     }
@@ -396,6 +598,7 @@ JNIEXPORT jint JNI_OnLoad(JavaVM *vm, __unused void *reserved) {
             {"sendWindowChange", "(IIILjava/lang/String;)V", (void *)&sendWindowChange},
             {"sendMouseEvent", "(FFIZZ)V", (void *)&sendMouseEvent},
             {"sendTouchEvent", "(IIII)V", (void *)&sendTouchEvent},
+            {"flushEvents", "(Ljava/nio/ByteBuffer;I)V", (void *)&flushEvents},
             {"sendStylusEvent", "(FFIIIIIZZ)V", (void *)&sendStylusEvent},
             {"requestStylusEnabled", "(Z)V", (void *)&requestStylusEnabled},
             {"sendKeyEvent", "(IIZI)Z", (void *)&sendKeyEvent},
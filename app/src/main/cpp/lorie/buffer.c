@@ -37,6 +37,7 @@ struct LorieBuffer {
     GLuint id;
     EGLImage image;
     struct xorg_list link;
+    LorieBufferList* list; // list the buffer is a member of
 };
 
 __attribute__((unused))
@@ -255,7 +256,7 @@ __LIBC_HIDDEN__ void __LorieBuffer_free(LorieBuffer* buffer) {
     if (!buffer)
         return;
 
-    xorg_list_del(&buffer->link);
+    LorieBuffer_removeFromList(buffer);
 
     if (eglGetCurrentContext())
         glDeleteTextures(1, &buffer->id);
@@ -355,6 +356,7 @@ __LIBC_HIDDEN__ void LorieBuffer_recvHandleFromUnixSocket(int socketFd, LorieBuf
 
     read(socketFd, &buffer, sizeof(buffer));
     buffer.image = NULL; // Only for process-local use
+    buffer.list = NULL;
     if (buffer.desc.type == LORIEBUFFER_FD) {
         size_t size = buffer.desc.stride * buffer.desc.height * sizeof(uint32_t);
         buffer.fd = ancil_recv_fd(socketFd);
@@ -422,9 +424,49 @@ __LIBC_HIDDEN__ void LorieBuffer_bindTexture(LorieBuffer *buffer) {
     if (!buffer)
         return;
 
+    LorieBuffer_bindTextureRegion(buffer, 0, 0, buffer->desc.stride, buffer->desc.height);
+}
+
+__LIBC_HIDDEN__ void LorieBuffer_bindTextureRegion(LorieBuffer *buffer, int32_t x, int32_t y, int32_t width, int32_t height) {
+    static int unpackSubimage = -1;
+    uint32_t *data;
+    int format;
+    if (!buffer)
+        return;
+
     glBindTexture(GL_TEXTURE_2D, buffer->id);
-    if (buffer->desc.type == LORIEBUFFER_FD)
-        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, buffer->desc.stride, buffer->desc.height, buffer->desc.format == AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM ? GL_BGRA_EXT : GL_RGBA, GL_UNSIGNED_BYTE, buffer->desc.data);
+    if (buffer->desc.type != LORIEBUFFER_FD)
+        return;
+
+    if (x < 0) {
+        width += x;
+        x = 0;
+    }
+    if (y < 0) {
+        height += y;
+        y = 0;
+    }
+    if (x + width > buffer->desc.stride)
+        width = buffer->desc.stride - x;
+    if (y + height > buffer->desc.height)
+        height = buffer->desc.height - y;
+    if (width <= 0 || height <= 0)
+        return;
+
+    if (unpackSubimage == -1) {
+        const char* extensions = (const char*) glGetString(GL_EXTENSIONS);
+        unpackSubimage = extensions && strstr(extensions, "GL_EXT_unpack_subimage");
+    }
+
+    format = buffer->desc.format == AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM ? GL_BGRA_EXT : GL_RGBA;
+    data = (uint32_t*) buffer->desc.data + y * buffer->desc.stride;
+    if (unpackSubimage && width != buffer->desc.stride) {
+        glPixelStorei(GL_UNPACK_ROW_LENGTH_EXT, buffer->desc.stride);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, width, height, format, GL_UNSIGNED_BYTE, data + x);
+        glPixelStorei(GL_UNPACK_ROW_LENGTH_EXT, 0);
+    } else
+        // GLES2 can not skip pixels of a row without GL_EXT_unpack_subimage, so we upload whole rows.
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, y, buffer->desc.stride, height, format, GL_UNSIGNED_BYTE, data);
 }
 
 __LIBC_HIDDEN__ int LorieBuffer_getWidth(LorieBuffer *buffer) {
@@ -439,27 +481,108 @@ __LIBC_HIDDEN__ bool LorieBuffer_isRgba(LorieBuffer *buffer) {
     return LorieBuffer_description(buffer)->format != AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM;
 }
 
-__LIBC_HIDDEN__ void LorieBuffer_addToList(LorieBuffer* _Nullable buffer, struct xorg_list* _Nullable list) {
+static inline uint32_t LorieBufferList_hash(LorieBufferList* list, uint64_t id) {
+    // IDs are sequential, Fibonacci hashing spreads them over the table.
+    return (uint32_t) ((id * 0x9E3779B97F4A7C15ULL) >> 32) & list->mask;
+}
+
+static void LorieBufferList_insert(LorieBufferList* list, uint64_t id, LorieBuffer* buffer) {
+    uint32_t i = LorieBufferList_hash(list, id);
+    while (list->slots[i].buffer)
+        i = (i + 1) & list->mask;
+    list->slots[i].id = id;
+    list->slots[i].buffer = buffer;
+}
+
+static bool LorieBufferList_index(LorieBufferList* list, LorieBuffer* buffer) {
+    uint32_t capacity = list->slots ? list->mask + 1 : 0;
+    if ((list->count + 1) * 2 > capacity) {
+        // Keep load factor under 1/2 so probe sequences stay short.
+        uint32_t newCapacity = capacity ? capacity * 2 : 16;
+        struct LorieBufferList_slot *old = list->slots, *slots = calloc(newCapacity, sizeof(*slots));
+        if (slots) {
+            list->slots = slots;
+            list->mask = newCapacity - 1;
+            for (uint32_t i = 0; i < capacity; i++)
+                if (old[i].buffer)
+                    LorieBufferList_insert(list, old[i].id, old[i].buffer);
+            free(old);
+        } else if ((list->count + 1) * 4 > capacity * 3)
+            // Table must keep free slots, otherwise probing never stops. Caller falls back to walking the list.
+            return false;
+    }
+
+    LorieBufferList_insert(list, buffer->desc.id, buffer);
+    list->count++;
+    return true;
+}
+
+static void LorieBufferList_unindex(LorieBufferList* list, LorieBuffer* buffer) {
+    uint32_t i, j, home;
+    if (!list->slots)
+        return;
+
+    for (i = LorieBufferList_hash(list, buffer->desc.id); list->slots[i].buffer != buffer; i = (i + 1) & list->mask)
+        if (!list->slots[i].buffer)
+            return; // Not indexed
+
+    // Backward shift deletion: move following entries of the cluster into the hole if their home slot allows it,
+    // so lookups never stop at a hole before reaching their entry.
+    for (j = (i + 1) & list->mask; list->slots[j].buffer; j = (j + 1) & list->mask) {
+        home = LorieBufferList_hash(list, list->slots[j].id);
+        if (((j - home) & list->mask) >= ((j - i) & list->mask)) {
+            list->slots[i] = list->slots[j];
+            i = j;
+        }
+    }
+
+    list->slots[i].buffer = NULL;
+    list->count--;
+}
+
+__LIBC_HIDDEN__ void LorieBufferList_init(LorieBufferList* list) {
+    xorg_list_init(&list->list);
+    list->slots = NULL;
+    list->mask = list->count = 0;
+    list->unindexed = false;
+}
+
+__LIBC_HIDDEN__ void LorieBuffer_addToList(LorieBuffer* _Nullable buffer, LorieBufferList* _Nullable list) {
     if (buffer && list) {
-        xorg_list_del(&buffer->link);
-        xorg_list_add(&buffer->link, list);
+        LorieBuffer_removeFromList(buffer);
+        xorg_list_add(&buffer->link, &list->list);
+        buffer->list = list;
+        if (!LorieBufferList_index(list, buffer))
+            list->unindexed = true;
     }
 }
 
 __LIBC_HIDDEN__ void LorieBuffer_removeFromList(LorieBuffer* _Nullable buffer) {
-    if (buffer)
+    if (buffer && buffer->list) {
+        LorieBufferList_unindex(buffer->list, buffer);
         xorg_list_del(&buffer->link);
+        buffer->list = NULL;
+    }
 }
 
-__LIBC_HIDDEN__ LorieBuffer* _Nullable LorieBufferList_first(struct xorg_list* _Nullable list) {
-    return xorg_list_is_empty(list) ? NULL : xorg_list_first_entry(list, LorieBuffer, link);
+__LIBC_HIDDEN__ LorieBuffer* _Nullable LorieBufferList_first(LorieBufferList* _Nullable list) {
+    return !list || xorg_list_is_empty(&list->list) ? NULL : xorg_list_first_entry(&list->list, LorieBuffer, link);
 }
 
-__LIBC_HIDDEN__ LorieBuffer* _Nullable LorieBufferList_findById(struct xorg_list* _Nullable list, uint64_t id) {
+__LIBC_HIDDEN__ LorieBuffer* _Nullable LorieBufferList_findById(LorieBufferList* _Nullable list, uint64_t id) {
     LorieBuffer *buffer;
-    xorg_list_for_each_entry(buffer, list, link)
-        if (buffer->desc.id == id)
-            return buffer;
+    if (!list)
+        return NULL;
+
+    if (list->slots)
+        for (uint32_t i = LorieBufferList_hash(list, id); list->slots[i].buffer; i = (i + 1) & list->mask)
+            if (list->slots[i].id == id)
+                return list->slots[i].buffer;
+
+    if (list->unindexed)
+        xorg_list_for_each_entry(buffer, &list->list, link)
+            if (buffer->desc.id == id)
+                return buffer;
     return NULL;
 }
 
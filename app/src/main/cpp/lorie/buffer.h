@@ -2,6 +2,7 @@
 #include <fcntl.h>
 #include <linux/ashmem.h>
 #include <android/hardware_buffer.h>
+#include "list.h"
 
 #define STATIC_INLINE static inline __always_inline
 
@@ -162,6 +163,13 @@ void LorieBuffer_attachToGL(LorieBuffer* _Nullable buffer);
  * @param buffer the buffer to be bound.
  */
 void LorieBuffer_bindTexture(LorieBuffer* _Nullable buffer);
+/**
+ * Call glBindTexture for the buffer and upload only the given rectangle of shared memory backed buffer.
+ * Buffers of other types are only bound.
+ *
+ * @param buffer the buffer to be bound.
+ */
+void LorieBuffer_bindTextureRegion(LorieBuffer* _Nullable buffer, int32_t x, int32_t y, int32_t width, int32_t height);
 
 /**
  * Get width of the buffer.
@@ -187,18 +195,39 @@ int LorieBuffer_getHeight(LorieBuffer* _Nullable buffer);
  */
 bool LorieBuffer_isRgba(LorieBuffer* _Nullable buffer);
 
-struct xorg_list;
+/**
+ * List of buffers indexed by buffer ID.
+ * Buffer can be a member of only one list at a time.
+ * Lists are not thread safe, callers should use their own locking.
+ */
+typedef struct {
+    struct xorg_list list;
+    // Open addressing hash table with linear probing, ID -> buffer.
+    struct LorieBufferList_slot {
+        uint64_t id;
+        LorieBuffer* _Nullable buffer; // NULL if slot is free
+    }* _Nullable slots;
+    uint32_t mask, count;
+    bool unindexed; // index allocation failed at least once, lookups walk the list
+} LorieBufferList;
+
+/**
+ * Initialize empty list.
+ *
+ * @param list
+ */
+void LorieBufferList_init(LorieBufferList* _Nonnull list);
 
 /**
- * Add the buffer to xorg_list.
+ * Add the buffer to the list, removing it from the list it was a member of.
  *
  * @param buffer
  * @param list
  */
-void LorieBuffer_addToList(LorieBuffer* _Nullable buffer, struct xorg_list* _Nullable list);
+void LorieBuffer_addToList(LorieBuffer* _Nullable buffer, LorieBufferList* _Nullable list);
 
 /**
- * Remove the buffer from xorg_list.
+ * Remove the buffer from the list it is a member of.
  *
  * @param buffer
  */
@@ -210,16 +239,16 @@ void LorieBuffer_removeFromList(LorieBuffer* _Nullable buffer);
  * @param list
  * @return buffer if it is present, NULL otherwise.
  */
-LorieBuffer* _Nullable LorieBufferList_first(struct xorg_list* _Nullable list);
+LorieBuffer* _Nullable LorieBufferList_first(LorieBufferList* _Nullable list);
 
 /**
- * Find the buffer with given ID in the list
+ * Find the buffer with given ID in the list in constant time.
  *
  * @param list
  * @param id
  * @return buffer if it is present, NULL otherwise.
  */
-LorieBuffer* _Nullable LorieBufferList_findById(struct xorg_list* _Nullable list, uint64_t id);
+LorieBuffer* _Nullable LorieBufferList_findById(LorieBufferList* _Nullable list, uint64_t id);
 
 #undef STATIC_INLINE
 
@@ -14,7 +14,11 @@
 #include <sys/socket.h>
 #include <sys/prctl.h>
 #include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <sys/eventfd.h>
 #include <libgen.h>
+#include <dirent.h>
+#include <ftw.h>
 #include <globals.h>
 #include <xkbsrv.h>
 #include <errno.h>
@@ -23,7 +27,11 @@
 #include <linux/in.h>
 #include <arpa/inet.h>
 #include <poll.h>
+#include <pthread.h>
+#include <wchar.h>
 #include "lorie.h"
+#include "input_work.h"
+#include "xkbcomp_run.h"
 
 #define log(prio, ...) __android_log_print(ANDROID_LOG_ ## prio, "LorieNative", __VA_ARGS__)
 
@@ -34,11 +42,14 @@ extern DeviceIntPtr lorieMouse, lorieTouch, lorieKeyboard, loriePen, lorieEraser
 extern ScreenPtr pScreenPtr;
 extern int ucs2keysym(long ucs);
 void lorieKeysymKeyboardEvent(KeySym keysym, int down);
+void lorieSendKeymapChanges(void);
+void lorieEndKeysymBatch(void);
+Bool lorieKeysymReserve(KeySym keysym);
 
 char *xtrans_unix_path_x11 = NULL;
 char *xtrans_unix_dir_x11 = NULL;
 
-struct xorg_list registeredBuffers;
+LorieBufferList registeredBuffers;
 
 static void* startServer(__unused void* cookie) {
     char* envp[] = { NULL };
@@ -199,11 +210,9 @@ Java_com_termux_x11_CmdEntryPoint_start(JNIEnv *env, __unused jclass cls, jobjec
 
     (*env)->GetJavaVM(env, &vm);
 
-    AChoreographer *choreographer = AChoreographer_getInstance();
-    // Trigger it first time
-    AChoreographer_postFrameCallback(choreographer, (AChoreographer_frameCallback) lorieChoreographerFrameCallback, choreographer);
+    lorieChoreographerInit(AChoreographer_getInstance());
 
-    xorg_list_init(&registeredBuffers);
+    LorieBufferList_init(&registeredBuffers);
     pthread_create(&t, NULL, startServer, vm);
     return JNI_TRUE;
 }
@@ -229,9 +238,8 @@ static Bool handleClipboardData(__unused ClientPtr pClient, void *closure) {
     return TRUE;
 }
 
-static Bool handleTouchEvent(__unused ClientPtr pClient, void *closure) {
+static void handleTouchEvent(lorieEvent *e) {
     ValuatorMask mask;
-    lorieEvent *e = closure;
     double x = max(min((float) e->touch.x, pScreenPtr->width), 0);
     double y = max(min((float) e->touch.y, pScreenPtr->height), 0);
     valuator_mask_zero(&mask);
@@ -244,7 +252,7 @@ static Bool handleTouchEvent(__unused ClientPtr pClient, void *closure) {
             valuator_mask_fetch_double(touch->valuators, 0, &oldx) &&
             valuator_mask_fetch_double(touch->valuators, 1, &oldy) &&
             oldx == x && oldy == y)
-            goto end;
+            return;
     }
 
     // Sometimes activity part does not send XI_TouchBegin and sends only XI_TouchUpdate.
@@ -252,156 +260,448 @@ static Bool handleTouchEvent(__unused ClientPtr pClient, void *closure) {
         e->touch.type = XI_TouchBegin;
 
     if (e->touch.type == XI_TouchEnd && (!touch || !touch->active))
-        goto end;
+        return;
 
     valuator_mask_set_double(&mask, 0, x * 0xFFFF / (float) pScreenPtr->width);
     valuator_mask_set_double(&mask, 1, y * 0xFFFF / (float) pScreenPtr->height);
     QueueTouchEvents(lorieTouch, e->touch.type, e->touch.id, 0, &mask);
+    lorieRecordInputLatency(LORIE_LATENCY_TOUCH, e->touch.time);
+}
 
-    end:
-    free(e);
-    return TRUE;
+// Input events which must be processed on X server thread are passed there through lock-free multi-producer single-consumer
+// queue instead of QueueWorkProc, so queueing an event costs neither allocation nor contention with ProcessWorkQueue.
+static struct {
+    struct lorie_input_work_queue queue;
+    pthread_once_t once;
+} inputWork = { .once = PTHREAD_ONCE_INIT };
+
+static void lorieInputWorkInit(void) {
+    lorie_input_work_init(&inputWork.queue);
 }
 
-void handleLorieEvents(int fd, __unused int ready, __unused void *ignored) {
-    ValuatorMask mask;
-    lorieEvent e = {0};
-    valuator_mask_zero(&mask);
+static void lorieQueueInputWork(void (*function)(lorieEvent *e), lorieEvent *e) {
+    bool wasEmpty;
 
-    if (ready & X_NOTIFY_ERROR) {
-        LorieBuffer* buf;
-        InputThreadUnregisterDev(fd);
-        close(fd);
-        conn_fd = -1;
-        lorieEnableClipboardSync(FALSE);
-        while ((buf = LorieBufferList_first(&registeredBuffers)))
-            LorieBuffer_removeFromList(buf);
+    pthread_once(&inputWork.once, lorieInputWorkInit);
+    if (!lorie_input_work_push(&inputWork.queue, function, e, &wasEmpty)) {
+        log(ERROR, "Failed to allocate input work node, event dropped");
         return;
     }
 
-    again:
-    if (read(fd, &e, sizeof(e)) == sizeof(e)) {
-        switch(e.type) {
-            case EVENT_SCREEN_SIZE: {
-                lorieEvent *copy = calloc(1, sizeof(lorieEvent) + e.screenSize.name_size + 1);
-                memcpy(copy, &e, sizeof(e));
-                copy->screenSize.name = copy->screenSize.name_size ? (char*) (copy + 1) : NULL;
-                if (copy->screenSize.name_size)
-                    read(fd, copy->screenSize.name, copy->screenSize.name_size);
-                QueueWorkProc(sendConfigureNotify, NULL, copy);
-                lorieWakeServer();
+    if (wasEmpty)
+        lorieWakeServer();
+}
+
+void lorieProcessInputWork(void) {
+    // This must be done only on X server thread. Nothing is pending before the first event initializes the queue.
+    lorie_input_work_process(&inputWork.queue);
+}
+
+typedef struct {
+    struct xorg_list link;
+    lorieEvent e; // EVENT_UNICODE_STRING or EVENT_KEY
+    size_t offset;
+    char text[];
+} lorieTextInput;
+
+// Text is typed on X server thread one chunk per main loop iteration. Keysyms missing in keymap are added for the whole chunk
+// before it is typed, so clients receive one keymap notification per chunk instead of one per character, and keymap changes
+// are processed before the next chunk is typed. Key events received while text is pending are queued here too to keep ordering.
+#define LORIE_TEXT_INPUT_CHUNK 64
+static struct xorg_list pendingTextInput = { &pendingTextInput, &pendingTextInput };
+static pthread_mutex_t pendingTextInputLock = PTHREAD_MUTEX_INITIALIZER;
+
+static Bool handleTextInput(__unused ClientPtr pClient, __unused void *closure) {
+    // This must be done only on X server thread.
+    lorieTextInput *input;
+    Bool done;
+
+    pthread_mutex_lock(&pendingTextInputLock);
+    input = xorg_list_first_entry(&pendingTextInput, lorieTextInput, link);
+    pthread_mutex_unlock(&pendingTextInputLock);
+
+    if (input->e.type == EVENT_KEY) {
+        QueueKeyboardEvents(lorieKeyboard, input->e.key.state ? KeyPress : KeyRelease, input->e.key.key);
+        lorieRecordInputLatency(LORIE_LATENCY_KEY, input->e.key.time);
+    } else {
+        KeySym keysyms[LORIE_TEXT_INPUT_CHUNK];
+        size_t count = 0, offset = input->offset;
+
+        while (count < LORIE_TEXT_INPUT_CHUNK && offset < input->e.unicodeString.length) {
+            mbstate_t state = {0};
+            wchar_t wc = 0;
+            size_t len = mbrtowc(&wc, input->text + offset, input->e.unicodeString.length - offset, &state);
+            if (len == (size_t) -1 || len == (size_t) -2 || len == 0) {
+                offset++; // Skip invalid byte
+                continue;
+            }
+
+            // Chunk ends when there are no more spare keycodes for it.
+            int ks = ucs2keysym((long) wc);
+            if (!lorieKeysymReserve(ks) && count)
+                break;
+
+            keysyms[count++] = ks;
+            offset += len;
+        }
+
+        lorieSendKeymapChanges();
+        for (size_t i = 0; i < count; i++) {
+            __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "Trying to input keysym %d\n", (int) keysyms[i]);
+            lorieKeysymKeyboardEvent(keysyms[i], TRUE);
+            lorieKeysymKeyboardEvent(keysyms[i], FALSE);
+        }
+        // Reserved keys stay protected until every event of the chunk is queued.
+        lorieEndKeysymBatch();
+        input->offset = offset;
+    }
+
+    pthread_mutex_lock(&pendingTextInputLock);
+    if (input->e.type == EVENT_KEY || input->offset >= input->e.unicodeString.length) {
+        xorg_list_del(&input->link);
+        free(input);
+    }
+    done = xorg_list_is_empty(&pendingTextInput);
+    pthread_mutex_unlock(&pendingTextInputLock);
+
+    if (!done)
+        lorieWakeServer();
+    return done;
+}
+
+static Bool textInputPending(void) {
+    Bool pending;
+    pthread_mutex_lock(&pendingTextInputLock);
+    pending = !xorg_list_is_empty(&pendingTextInput);
+    pthread_mutex_unlock(&pendingTextInputLock);
+    return pending;
+}
+
+static void queueTextInput(lorieTextInput* input) {
+    Bool empty;
+    pthread_mutex_lock(&pendingTextInputLock);
+    empty = xorg_list_is_empty(&pendingTextInput);
+    xorg_list_append(&input->link, &pendingTextInput);
+    pthread_mutex_unlock(&pendingTextInputLock);
+
+    if (empty) {
+        QueueWorkProc(handleTextInput, NULL, NULL);
+        lorieWakeServer();
+    }
+}
+
+static Bool readFully(int fd, void* buf, size_t len) {
+    while (len) {
+        ssize_t n = read(fd, buf, len);
+        if (n < 0 && errno == EINTR)
+            continue;
+        if (n <= 0)
+            return FALSE;
+        buf = (char*) buf + n;
+        len -= n;
+    }
+    return TRUE;
+}
+
+static void handleLorieEvent(int fd, lorieEvent e) {
+    ValuatorMask mask;
+    valuator_mask_zero(&mask);
+
+    switch(e.type) {
+        case EVENT_SCREEN_SIZE: {
+            lorieEvent *copy = calloc(1, sizeof(lorieEvent) + e.screenSize.name_size + 1);
+            memcpy(copy, &e, sizeof(e));
+            copy->screenSize.name = copy->screenSize.name_size ? (char*) (copy + 1) : NULL;
+            if (copy->screenSize.name_size && !readFully(fd, copy->screenSize.name, copy->screenSize.name_size)) {
+                free(copy);
                 break;
             }
-            case EVENT_TOUCH: {
-                lorieEvent *copy = calloc(1, sizeof(lorieEvent));
-                memcpy(copy, &e, sizeof(e));
-                QueueWorkProc(handleTouchEvent, NULL, copy);
-                lorieWakeServer();
+            QueueWorkProc(sendConfigureNotify, NULL, copy);
+            lorieWakeServer();
+            // Surface was probably recreated, root window must be published again.
+            lorieRequestVsync();
+            break;
+        }
+        case EVENT_TOUCH:
+            lorieQueueInputWork(handleTouchEvent, &e);
+            break;
+        case EVENT_STYLUS: {
+            static int buttons_prev = 0;
+            uint32_t released, pressed, diff;
+            DeviceIntPtr device = e.stylus.mouse ? lorieMouse : (e.stylus.eraser ? lorieEraser : loriePen);
+            if (!device) {
+                __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "got stylus event but device is not requested\n");
                 break;
             }
-            case EVENT_STYLUS: {
-                static int buttons_prev = 0;
-                uint32_t released, pressed, diff;
-                DeviceIntPtr device = e.stylus.mouse ? lorieMouse : (e.stylus.eraser ? lorieEraser : loriePen);
-                if (!device) {
-                    __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "got stylus event but device is not requested\n");
-                    break;
+            __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "got stylus event %f %f %d %d %d %d %s\n", e.stylus.x, e.stylus.y, e.stylus.pressure, e.stylus.tilt_x, e.stylus.tilt_y, e.stylus.orientation,
+                                device == lorieMouse ? "lorieMouse" : (device == loriePen ? "loriePen" : "lorieEraser"));
+
+            valuator_mask_set_double(&mask, 0, max(min(e.stylus.x, pScreenPtr->width), 0));
+            valuator_mask_set_double(&mask, 1, max(min(e.stylus.y, pScreenPtr->height), 0));
+            if (device != lorieMouse) {
+                valuator_mask_set_double(&mask, 2, e.stylus.pressure);
+                valuator_mask_set_double(&mask, 3, e.stylus.tilt_x);
+                valuator_mask_set_double(&mask, 4, e.stylus.tilt_y);
+                valuator_mask_set_double(&mask, 5, e.stylus.orientation);
+            }
+            QueuePointerEvents(device, MotionNotify, 0, POINTER_ABSOLUTE | POINTER_DESKTOP | (device == lorieMouse ? POINTER_NORAW : 0), &mask);
+
+            diff = buttons_prev ^ e.stylus.buttons;
+            released = diff & ~e.stylus.buttons;
+            pressed = diff & e.stylus.buttons;
+
+            for (int i=0; i<3; i++) {
+                if (released & 0x1) {
+                    QueuePointerEvents(device, ButtonRelease, i + 1, POINTER_RELATIVE, NULL);
+                    __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "sending %d press", i+1);
                 }
-                __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "got stylus event %f %f %d %d %d %d %s\n", e.stylus.x, e.stylus.y, e.stylus.pressure, e.stylus.tilt_x, e.stylus.tilt_y, e.stylus.orientation,
-                                    device == lorieMouse ? "lorieMouse" : (device == loriePen ? "loriePen" : "lorieEraser"));
-
-                valuator_mask_set_double(&mask, 0, max(min(e.stylus.x, pScreenPtr->width), 0));
-                valuator_mask_set_double(&mask, 1, max(min(e.stylus.y, pScreenPtr->height), 0));
-                if (device != lorieMouse) {
-                    valuator_mask_set_double(&mask, 2, e.stylus.pressure);
-                    valuator_mask_set_double(&mask, 3, e.stylus.tilt_x);
-                    valuator_mask_set_double(&mask, 4, e.stylus.tilt_y);
-                    valuator_mask_set_double(&mask, 5, e.stylus.orientation);
+                if (pressed & 0x1) {
+                    QueuePointerEvents(device, ButtonPress, i + 1, POINTER_RELATIVE, NULL);
+                    __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "sending %d release", i+1);
                 }
-                QueuePointerEvents(device, MotionNotify, 0, POINTER_ABSOLUTE | POINTER_DESKTOP | (device == lorieMouse ? POINTER_NORAW : 0), &mask);
-
-                diff = buttons_prev ^ e.stylus.buttons;
-                released = diff & ~e.stylus.buttons;
-                pressed = diff & e.stylus.buttons;
+                released >>= 1;
+                pressed >>= 1;
+            }
+            buttons_prev = e.stylus.buttons;
+            lorieRecordInputLatency(LORIE_LATENCY_STYLUS, e.stylus.time);
 
-                for (int i=0; i<3; i++) {
-                    if (released & 0x1) {
-                        QueuePointerEvents(device, ButtonRelease, i + 1, POINTER_RELATIVE, NULL);
-                        __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "sending %d press", i+1);
+            break;
+        }
+        case EVENT_STYLUS_ENABLE: {
+            lorieSetStylusEnabled(e.stylusEnable.enable);
+            break;
+        }
+        case EVENT_MOUSE: {
+            int flags;
+            switch(e.mouse.detail) {
+                case 0: // BUTTON_UNDEFINED
+                    flags = (e.mouse.relative) ? POINTER_RELATIVE | POINTER_ACCELERATE : POINTER_ABSOLUTE | POINTER_SCREEN | POINTER_NORAW;
+                    if (!e.mouse.relative) {
+                        e.mouse.x = max(0, min(e.mouse.x, pScreenPtr->width));
+                        e.mouse.y = max(0, min(e.mouse.y, pScreenPtr->height));
                     }
-                    if (pressed & 0x1) {
-                        QueuePointerEvents(device, ButtonPress, i + 1, POINTER_RELATIVE, NULL);
-                        __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "sending %d release", i+1);
+                    valuator_mask_set_double(&mask, 0, (double) e.mouse.x);
+                    valuator_mask_set_double(&mask, 1, (double) e.mouse.y);
+                    QueuePointerEvents(lorieMouse, MotionNotify, 0, flags, &mask);
+                    break;
+                case 1: // BUTTON_LEFT
+                case 2: // BUTTON_MIDDLE
+                case 3: // BUTTON_RIGHT
+                    QueuePointerEvents(lorieMouse, e.mouse.down ? ButtonPress : ButtonRelease, e.mouse.detail, POINTER_RELATIVE, NULL);
+                    break;
+                case 4: // BUTTON_SCROLL
+                    if (e.mouse.x) {
+                        valuator_mask_zero(&mask);
+                        valuator_mask_set_double(&mask, 2, (double) e.mouse.x / 120);
+                        QueuePointerEvents(lorieMouse, MotionNotify, 0, POINTER_RELATIVE, &mask);
                     }
-                    released >>= 1;
-                    pressed >>= 1;
-                }
-                buttons_prev = e.stylus.buttons;
-
-                break;
+                    if (e.mouse.y) {
+                        valuator_mask_zero(&mask);
+                        valuator_mask_set_double(&mask, 3, (double) e.mouse.y / 120);
+                        QueuePointerEvents(lorieMouse, MotionNotify, 0, POINTER_RELATIVE, &mask);
+                    }
+                    break;
             }
-            case EVENT_STYLUS_ENABLE: {
-                lorieSetStylusEnabled(e.stylusEnable.enable);
+            lorieRecordInputLatency(LORIE_LATENCY_MOUSE, e.mouse.time);
+            break;
+        }
+        case EVENT_KEY: {
+            lorieTextInput *input;
+            if (!textInputPending() || !(input = calloc(1, sizeof(*input)))) {
+                QueueKeyboardEvents(lorieKeyboard, e.key.state ? KeyPress : KeyRelease, e.key.key);
+                lorieRecordInputLatency(LORIE_LATENCY_KEY, e.key.time);
                 break;
             }
-            case EVENT_MOUSE: {
-                int flags;
-                switch(e.mouse.detail) {
-                    case 0: // BUTTON_UNDEFINED
-                        flags = (e.mouse.relative) ? POINTER_RELATIVE | POINTER_ACCELERATE : POINTER_ABSOLUTE | POINTER_SCREEN | POINTER_NORAW;
-                        if (!e.mouse.relative) {
-                            e.mouse.x = max(0, min(e.mouse.x, pScreenPtr->width));
-                            e.mouse.y = max(0, min(e.mouse.y, pScreenPtr->height));
-                        }
-                        valuator_mask_set_double(&mask, 0, (double) e.mouse.x);
-                        valuator_mask_set_double(&mask, 1, (double) e.mouse.y);
-                        QueuePointerEvents(lorieMouse, MotionNotify, 0, flags, &mask);
-                        break;
-                    case 1: // BUTTON_LEFT
-                    case 2: // BUTTON_MIDDLE
-                    case 3: // BUTTON_RIGHT
-                        QueuePointerEvents(lorieMouse, e.mouse.down ? ButtonPress : ButtonRelease, e.mouse.detail, POINTER_RELATIVE, NULL);
-                        break;
-                    case 4: // BUTTON_SCROLL
-                        if (e.mouse.x) {
-                            valuator_mask_zero(&mask);
-                            valuator_mask_set_double(&mask, 2, (double) e.mouse.x / 120);
-                            QueuePointerEvents(lorieMouse, MotionNotify, 0, POINTER_RELATIVE, &mask);
-                        }
-                        if (e.mouse.y) {
-                            valuator_mask_zero(&mask);
-                            valuator_mask_set_double(&mask, 3, (double) e.mouse.y / 120);
-                            QueuePointerEvents(lorieMouse, MotionNotify, 0, POINTER_RELATIVE, &mask);
-                        }
+
+            input->e = e;
+            queueTextInput(input);
+            break;
+        }
+        case EVENT_UNICODE_STRING: {
+            lorieTextInput *input = calloc(1, sizeof(*input) + e.unicodeString.length);
+            if (!input) {
+                log(ERROR, "Failed to allocate %u bytes for text input", e.unicodeString.length);
+                for (char buf[256]; e.unicodeString.length;) {
+                    size_t len = min(sizeof(buf), e.unicodeString.length);
+                    if (!readFully(fd, buf, len))
                         break;
+                    e.unicodeString.length -= len;
                 }
                 break;
             }
-            case EVENT_KEY:
-                QueueKeyboardEvents(lorieKeyboard, e.key.state ? KeyPress : KeyRelease, e.key.key);
-                break;
-            case EVENT_UNICODE: {
-                int ks = ucs2keysym((long) e.unicode.code);
-                __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "Trying to input keysym %d\n", ks);
-                lorieKeysymKeyboardEvent(ks, TRUE);
-                lorieKeysymKeyboardEvent(ks, FALSE);
+
+            input->e = e;
+            if (!readFully(fd, input->text, e.unicodeString.length)) {
+                free(input);
                 break;
             }
-            case EVENT_CLIPBOARD_ENABLE:
-                lorieEnableClipboardSync(e.clipboardEnable.enable);
-                break;
-            case EVENT_CLIPBOARD_ANNOUNCE:
-                QueueWorkProc(handleClipboardAnnounce, NULL, NULL);
-                lorieWakeServer();
+
+            queueTextInput(input);
+            break;
+        }
+        case EVENT_UNICODE: {
+            int ks = ucs2keysym((long) e.unicode.code);
+            __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "Trying to input keysym %d\n", ks);
+            lorieKeysymKeyboardEvent(ks, TRUE);
+            lorieKeysymKeyboardEvent(ks, FALSE);
+            break;
+        }
+        case EVENT_CLIPBOARD_ENABLE:
+            lorieEnableClipboardSync(e.clipboardEnable.enable);
+            break;
+        case EVENT_CLIPBOARD_ANNOUNCE:
+            QueueWorkProc(handleClipboardAnnounce, NULL, NULL);
+            lorieWakeServer();
+            break;
+        case EVENT_CLIPBOARD_SEND: {
+            char *data = calloc(1, e.clipboardSend.count + 1);
+            if (!data || !readFully(fd, data, e.clipboardSend.count)) {
+                free(data);
                 break;
-            case EVENT_CLIPBOARD_SEND: {
-                char *data = calloc(1, e.clipboardSend.count + 1);
-                read(conn_fd, data, e.clipboardSend.count);
-                data[e.clipboardSend.count] = 0;
-                QueueWorkProc(handleClipboardData, NULL, data);
-                lorieWakeServer();
             }
+            data[e.clipboardSend.count] = 0;
+            QueueWorkProc(handleClipboardData, NULL, data);
+            lorieWakeServer();
         }
+    }
+}
+
+static struct lorie_input_ring* inputRing = NULL;
+static int inputRingDoorbell = -1;
+static int inputRingSpace = -1; // Signalled when activity waits for space in the full ring
+static Bool inputRingActive = FALSE; // Activity acknowledged the ring, socket is read only when the ring says so.
+
+static void lorieReadSocketMessage(int fd) {
+    lorieEvent e = {0};
+    // Activity pushes the marker right before writing the message, it may still be in progress, so wait for it.
+    if (readFully(fd, &e, sizeof(e)))
+        handleLorieEvent(fd, e);
+}
+
+static void lorieDrainInputRing(void) {
+    struct lorie_input_ring* ring = inputRing;
+    uint32_t tail, head;
+    // Until acknowledgement is read socket may still contain events sent before the ones in the ring.
+    if (!ring || !inputRingActive)
+        return;
+
+    tail = atomic_load_explicit(&ring->tail, memory_order_relaxed);
+    while (tail != (head = atomic_load(&ring->head))) {
+        if (head - tail > LORIE_INPUT_RING_SIZE)
+            tail = head - LORIE_INPUT_RING_SIZE; // Should not happen unless activity went nuts
+
+        for (; tail != head; tail++) {
+            lorieEvent e = ring->events[tail % LORIE_INPUT_RING_SIZE];
+            if (e.type == EVENT_SOCKET_MESSAGE)
+                lorieReadSocketMessage(conn_fd);
+            else
+                handleLorieEvent(-1, e);
+        }
+
+        // Must be sequentially consistent with reloading head, activity checks tail to decide if doorbell is needed.
+        atomic_store(&ring->tail, tail);
+        // Activity sets `waiting` before checking tail for the last time, so either it sees new tail or it is woken.
+        if (atomic_load(&ring->waiting))
+            eventfd_write(inputRingSpace, 1);
+    }
+}
+
+static void handleLorieInputRing(int fd, __unused int ready, __unused void *ignored) {
+    eventfd_t dummy;
+    eventfd_read(fd, &dummy);
+    lorieDrainInputRing();
+}
+
+static void lorieDestroyInputRing(void) {
+    if (inputRingDoorbell != -1) {
+        InputThreadUnregisterDev(inputRingDoorbell);
+        close(inputRingDoorbell);
+        inputRingDoorbell = -1;
+    }
+
+    if (inputRingSpace != -1) {
+        close(inputRingSpace);
+        inputRingSpace = -1;
+    }
+
+    if (inputRing) {
+        munmap(inputRing, sizeof(*inputRing));
+        inputRing = NULL;
+    }
+
+    inputRingActive = FALSE;
+}
+
+static void lorieSendInputRing(void) {
+    struct lorie_input_ring* ring;
+    int memfd, doorbell = -1, space = -1;
+
+    lorieDestroyInputRing();
+    if (conn_fd == -1)
+        return;
+
+    if (-1 == (memfd = LorieBuffer_createRegion("input-ring", sizeof(*ring))))
+        return; // Activity will use socket
+
+    ring = mmap(NULL, sizeof(*ring), PROT_READ|PROT_WRITE, MAP_SHARED, memfd, 0);
+    if (!ring || ring == MAP_FAILED || -1 == (doorbell = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK))
+            || -1 == (space = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK))) {
+        log(ERROR, "Failed to create input ring: %s", strerror(errno));
+        if (ring && ring != MAP_FAILED)
+            munmap(ring, sizeof(*ring));
+        if (doorbell != -1)
+            close(doorbell);
+        close(memfd);
+        return;
+    }
+
+    atomic_init(&ring->head, 0);
+    atomic_init(&ring->tail, 0);
+    atomic_init(&ring->waiting, 0);
+    inputRing = ring;
+    inputRingDoorbell = doorbell;
+    inputRingSpace = space;
+    InputThreadRegisterDev(doorbell, handleLorieInputRing, NULL);
+
+    lorieEvent e = { .type = EVENT_INPUT_RING };
+    write(conn_fd, &e, sizeof(e));
+    ancil_send_fd(conn_fd, memfd);
+    ancil_send_fd(conn_fd, doorbell);
+    ancil_send_fd(conn_fd, space);
+    close(memfd); // Closing file descriptor does not unmmap shared memory fragment.
+}
+
+void handleLorieEvents(int fd, __unused int ready, __unused void *ignored) {
+    lorieEvent e = {0};
+
+    if (ready & X_NOTIFY_ERROR) {
+        LorieBuffer* buf;
+        InputThreadUnregisterDev(fd);
+        close(fd);
+        conn_fd = -1;
+        lorieDestroyInputRing();
+        lorieEnableClipboardSync(FALSE);
+        while ((buf = LorieBufferList_first(&registeredBuffers)))
+            LorieBuffer_removeFromList(buf);
+        return;
+    }
+
+    // Socket messages are read by lorieDrainInputRing in the order they were sent relatively to ring events.
+    if (inputRingActive) {
+        lorieDrainInputRing();
+        return;
+    }
+
+    again:
+    if (read(fd, &e, sizeof(e)) == sizeof(e)) {
+        if (e.type == EVENT_INPUT_RING && inputRing) {
+            // Everything after acknowledgement is either in the ring or announced there.
+            inputRingActive = TRUE;
+            lorieDrainInputRing();
+            return;
+        }
+
+        handleLorieEvent(fd, e);
 
         int n;
         if (ioctl(fd, FIONREAD, &n) >= 0 && n > sizeof(e))
@@ -438,14 +738,16 @@ static Bool addFd(__unused ClientPtr pClient, void *closure) {
     InputThreadRegisterDev((int) (int64_t) closure, handleLorieEvents, NULL);
     conn_fd = (int) (int64_t) closure;
     lorieActivityConnected();
+    lorieSendInputRing();
     return TRUE;
 }
 
-void lorieSendSharedServerState(int memfd) {
+void lorieSendSharedServerState(int memfd, int doorbell) {
     if (conn_fd != -1) {
         lorieEvent e = { .type = EVENT_SHARED_SERVER_STATE };
         write(conn_fd, &e, sizeof(e));
         ancil_send_fd(conn_fd, memfd);
+        ancil_send_fd(conn_fd, doorbell);
     }
 }
 
@@ -483,6 +785,202 @@ void DDXNotifyFocusChanged(void) {
     }
 }
 
+/*
+ * Compiled keymaps are cached in $TMPDIR/.xkm-cache. Entries are keyed by hash of keymap source, xkbcomp arguments
+ * and XkbBaseDirectory fingerprint, so loading the same keymap again does not run xkbcomp.
+ */
+#define XKM_CACHE_ENTRIES 32
+#define XKM_CACHE_HASH_INIT 0xcbf29ce484222325ULL // FNV-1a
+
+static char xkmCacheDir[PATH_MAX] = {0}; // empty if cache is not available
+static uint64_t xkmCacheTree = 0;
+
+static uint64_t xkmCacheHash(uint64_t hash, const void* data, size_t len) {
+    for (const uint8_t* p = data; len--; p++)
+        hash = (hash ^ *p) * 0x100000001b3ULL;
+    return hash;
+}
+
+static int xkmCacheHashTreeEntry(const char *path, const struct stat *st, int type, __unused struct FTW *ftw) {
+    uint64_t hash = XKM_CACHE_HASH_INIT;
+    if (type != FTW_F && type != FTW_SL)
+        return 0;
+
+    // Hashing contents of the whole tree is too slow, path, size and modification time are enough to detect changes.
+    // Sum does not depend on traversal order.
+    hash = xkmCacheHash(hash, path, strlen(path));
+    hash = xkmCacheHash(hash, &st->st_size, sizeof(st->st_size));
+    hash = xkmCacheHash(hash, &st->st_mtim, sizeof(st->st_mtim));
+    xkmCacheTree += hash;
+    return 0;
+}
+
+static Bool xkmCacheCopy(const char* from, const char* to) {
+    char buf[16384];
+    ssize_t len, total = 0;
+    int in, out;
+
+    if (-1 == (in = open(from, O_RDONLY | O_CLOEXEC)))
+        return FALSE;
+
+    if (-1 == (out = open(to, O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0600))) {
+        close(in);
+        return FALSE;
+    }
+
+    while ((len = read(in, buf, sizeof(buf))) > 0 && write(out, buf, len) == len)
+        total += len;
+
+    close(in);
+    return !close(out) && !len && total > 0;
+}
+
+static int xkmCacheCompareAge(const void* a, const void* b) {
+    const struct timespec *x = &((const struct stat*) a)->st_mtim, *y = &((const struct stat*) b)->st_mtim;
+    return x->tv_sec != y->tv_sec ? (y->tv_sec > x->tv_sec) - (y->tv_sec < x->tv_sec) : (y->tv_nsec > x->tv_nsec) - (y->tv_nsec < x->tv_nsec);
+}
+
+static void xkmCacheInit(void) {
+    char path[PATH_MAX], tree[32] = {0}, stored[32] = {0};
+    struct { struct stat st; char name[32]; } entries[XKM_CACHE_ENTRIES * 2];
+    size_t count = 0;
+    struct dirent *e;
+    DIR *dir;
+    int fd;
+
+    snprintf(xkmCacheDir, sizeof(xkmCacheDir), "%s/.xkm-cache", getenv("TMPDIR") ?: "/tmp");
+    if (mkdir(xkmCacheDir, 0700) && errno != EEXIST) {
+        log(ERROR, "Failed to create keymap cache directory %s: %s", xkmCacheDir, strerror(errno));
+        xkmCacheDir[0] = 0;
+        return;
+    }
+
+    nftw(XkbBaseDirectory, xkmCacheHashTreeEntry, 16, FTW_PHYS);
+    snprintf(tree, sizeof(tree), "%016llx", (unsigned long long) xkmCacheTree);
+
+    // Entries compiled against another XkbBaseDirectory can not be hit anymore, it is better to drop them at once.
+    snprintf(path, sizeof(path), "%s/tree", xkmCacheDir);
+    if ((fd = open(path, O_RDONLY | O_CLOEXEC)) != -1) {
+        read(fd, stored, sizeof(stored) - 1);
+        close(fd);
+    }
+
+    if (!(dir = opendir(xkmCacheDir)))
+        return;
+
+    while ((e = readdir(dir))) {
+        size_t len = strlen(e->d_name);
+        struct stat st;
+        if (!strcmp(e->d_name, ".") || !strcmp(e->d_name, "..") || !strcmp(e->d_name, "tree"))
+            continue;
+
+        snprintf(path, sizeof(path), "%s/%s", xkmCacheDir, e->d_name);
+        // Temporary files of interrupted writes and empty entries are removed too.
+        if (strcmp(tree, stored) || len != 20 || strcmp(e->d_name + 16, ".xkm") || stat(path, &st) || !st.st_size) {
+            unlink(path);
+            continue;
+        }
+
+        if (count == sizeof(entries) / sizeof(*entries)) {
+            // Keep only the most recently used ones, the rest will be pruned anyway.
+            qsort(entries, count, sizeof(*entries), xkmCacheCompareAge);
+            for (; count > XKM_CACHE_ENTRIES; count--) {
+                snprintf(path, sizeof(path), "%s/%s", xkmCacheDir, entries[count - 1].name);
+                unlink(path);
+            }
+        }
+
+        entries[count].st = st;
+        strlcpy(entries[count++].name, e->d_name, sizeof(entries[0].name));
+    }
+    closedir(dir);
+
+    qsort(entries, count, sizeof(*entries), xkmCacheCompareAge);
+    for (; count > XKM_CACHE_ENTRIES; count--) {
+        snprintf(path, sizeof(path), "%s/%s", xkmCacheDir, entries[count - 1].name);
+        unlink(path);
+    }
+
+    if (strcmp(tree, stored)) {
+        snprintf(path, sizeof(path), "%s/tree", xkmCacheDir);
+        if ((fd = open(path, O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0600)) != -1) {
+            write(fd, tree, strlen(tree));
+            close(fd);
+        }
+    }
+}
+
+static Bool xkbcompRunForked(const char* source, size_t len, const char* command) {
+    FILE *out = Popen(command, "w");
+    if (!out) {
+        LogMessage(X_ERROR, "XKB: Could not invoke xkbcomp\n");
+        return FALSE;
+    }
+
+    fwrite(source, 1, len, out);
+    return !Pclose(out);
+}
+
+/*
+ * Called by RunXkbComp instead of running xkbcomp directly.
+ * Returns TRUE if compiled keymap was written to `xkm`.
+ */
+Bool lorieCompileKeymap(void (*writeSource)(FILE *out, void *userdata), void *userdata, const char *command, const char *xkm) {
+    static Bool initialized = FALSE;
+    char cached[PATH_MAX], tmp[PATH_MAX];
+    uint64_t key = XKM_CACHE_HASH_INIT, start;
+    char *source = NULL;
+    size_t len = 0;
+    FILE *out;
+
+    if (!initialized) {
+        xkmCacheInit();
+        initialized = TRUE;
+    }
+
+    if (!(out = open_memstream(&source, &len)))
+        return FALSE;
+
+    writeSource(out, userdata);
+    if (fclose(out)) {
+        free(source);
+        return FALSE;
+    }
+
+    key = xkmCacheHash(key, &xkmCacheTree, sizeof(xkmCacheTree));
+    // The last argument is output file, it does not affect the result.
+    for (int i = 0; i < xkbcomp_argc - 1; i++)
+        key = xkmCacheHash(key, xkbcomp_argv[i], strlen(xkbcomp_argv[i]) + 1);
+    key = xkmCacheHash(key, source, len);
+    snprintf(cached, sizeof(cached), "%s/%016llx.xkm", xkmCacheDir, (unsigned long long) key);
+
+    if (xkmCacheDir[0] && xkmCacheCopy(cached, xkm)) {
+        utimensat(AT_FDCWD, cached, NULL, 0); // Mark entry as recently used
+        free(source);
+        return TRUE;
+    }
+
+    // Forked xkbcomp is a fallback if in-process compilation fails.
+    start = lorieTimestamp();
+    if (lorie_xkbcomp_run(source, len, xkm))
+        log(DEBUG, "Keymap compiled in process in %.2f ms", (lorieTimestamp() - start) / 1000.f);
+    else if (xkbcompRunForked(source, len, command))
+        log(DEBUG, "Keymap compiled by forked xkbcomp in %.2f ms", (lorieTimestamp() - start) / 1000.f);
+    else {
+        LogMessage(X_ERROR, "Error compiling keymap (%s) executing '%s'\n", xkm, command);
+        free(source);
+        return FALSE;
+    }
+    free(source);
+
+    // Entry appears in the cache atomically, so concurrent servers never read partially written file.
+    snprintf(tmp, sizeof(tmp), "%s/.%016llx.%d", xkmCacheDir, (unsigned long long) key, getpid());
+    if (xkmCacheDir[0] && (!xkmCacheCopy(xkm, tmp) || rename(tmp, cached)))
+        unlink(tmp);
+
+    return TRUE;
+}
+
 JNIEXPORT jobject JNICALL
 Java_com_termux_x11_CmdEntryPoint_getXConnection(JNIEnv *env, __unused jobject cls) {
     int client[2];
@@ -577,5 +1075,6 @@ void abort(void) {
 }
 
 void exit(int code) {
+    lorie_xkbcomp_exit(code);
     _exit(code);
 }
@@ -0,0 +1,88 @@
+#pragma once
+
+#include <stddef.h>
+#include <stdint.h>
+
+typedef enum {
+    EVENT_UNKNOWN __unused = 0,
+    EVENT_SHARED_SERVER_STATE,
+    EVENT_ADD_BUFFER,
+    EVENT_REMOVE_BUFFER,
+    EVENT_SCREEN_SIZE,
+    EVENT_TOUCH,
+    EVENT_MOUSE,
+    EVENT_KEY,
+    EVENT_STYLUS,
+    EVENT_STYLUS_ENABLE,
+    EVENT_UNICODE,
+    EVENT_CLIPBOARD_ENABLE,
+    EVENT_CLIPBOARD_ANNOUNCE,
+    EVENT_CLIPBOARD_REQUEST,
+    EVENT_CLIPBOARD_SEND,
+    EVENT_WINDOW_FOCUS_CHANGED,
+    EVENT_UNICODE_STRING,
+    EVENT_INPUT_RING,
+    EVENT_SOCKET_MESSAGE,
+} eventType;
+
+typedef union {
+    uint8_t type;
+    struct {
+        uint8_t t;
+        uint16_t width, height, framerate;
+        size_t name_size;
+        char *name;
+    } screenSize;
+    struct {
+        uint8_t t;
+        unsigned long id;
+    } removeBuffer;
+    struct {
+        uint8_t t;
+        uint16_t type, id, x, y;
+        uint32_t time; // see lorieEventTime
+    } touch;
+    struct {
+        uint8_t t;
+        float x, y;
+        uint8_t detail, down, relative;
+        uint32_t time;
+    } mouse;
+    struct {
+        uint8_t t;
+        uint16_t key;
+        uint8_t state;
+        uint32_t time;
+    } key;
+    struct {
+        uint8_t t;
+        uint8_t buttons, eraser, mouse;
+        float x, y;
+        uint16_t pressure;
+        int8_t tilt_x, tilt_y;
+        int16_t orientation;
+        uint32_t time;
+    } stylus;
+    struct {
+        uint8_t t, enable;
+    } stylusEnable;
+    struct {
+        uint8_t t;
+        uint32_t code;
+    } unicode;
+    struct {
+        uint8_t t;
+        uint32_t length; // followed by `length` bytes of UTF-8 text
+    } unicodeString;
+    struct {
+        uint8_t t;
+        uint8_t enable;
+    } clipboardEnable;
+    struct {
+        uint8_t t;
+        uint32_t count;
+    } clipboardSend;
+} lorieEvent;
+
+// InputEventSender encodes touch and mouse events directly into a direct ByteBuffer using this layout.
+_Static_assert(sizeof(lorieEvent) == 24, "lorieEvent layout must match InputEventSender.EVENT_SIZE");
@@ -0,0 +1,109 @@
+#pragma once
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include "event.h"
+
+#define LORIE_INPUT_WORK_NODES 256
+
+typedef struct lorieInputWork {
+    struct lorieInputWork *next;
+    uint32_t nextFree;
+    bool allocated;
+    void (*function)(lorieEvent *e);
+    lorieEvent e;
+} lorieInputWork;
+
+/*
+ * Lock-free multi-producer single-consumer queue of input events which must be processed on X server thread.
+ * Producers take nodes from preallocated free list and push them to `pending`, X server thread takes the whole list at once,
+ * restores the order and processes it in one pass. Free list head is node index + 1 (0 means empty) tagged with generation
+ * counter in upper 32 bits so concurrent pops are not affected by ABA. Nodes are allocated only if free list is exhausted.
+ */
+struct lorie_input_work_queue {
+    lorieInputWork nodes[LORIE_INPUT_WORK_NODES];
+    uint64_t freeHead;
+    lorieInputWork *pending;
+};
+
+static inline void lorie_input_work_init(struct lorie_input_work_queue* queue) {
+    for (uint32_t i = 0; i < LORIE_INPUT_WORK_NODES; i++)
+        queue->nodes[i].nextFree = i + 1 < LORIE_INPUT_WORK_NODES ? i + 2 : 0;
+    __atomic_store_n(&queue->pending, NULL, __ATOMIC_RELAXED);
+    __atomic_store_n(&queue->freeHead, 1, __ATOMIC_RELEASE);
+}
+
+static inline lorieInputWork* lorie_input_work_take(struct lorie_input_work_queue* queue) {
+    uint64_t head = __atomic_load_n(&queue->freeHead, __ATOMIC_ACQUIRE), next;
+    lorieInputWork *node;
+
+    do {
+        if (!(uint32_t) head) {
+            node = calloc(1, sizeof(*node));
+            if (node)
+                node->allocated = true;
+            return node;
+        }
+
+        node = &queue->nodes[(uint32_t) head - 1];
+        // Node can be taken by other producer in the meantime, in this case the tag makes CAS fail.
+        next = ((head >> 32) + 1) << 32 | __atomic_load_n(&node->nextFree, __ATOMIC_RELAXED);
+    } while (!__atomic_compare_exchange_n(&queue->freeHead, &head, next, true, __ATOMIC_ACQUIRE, __ATOMIC_ACQUIRE));
+
+    return node;
+}
+
+static inline void lorie_input_work_release(struct lorie_input_work_queue* queue, lorieInputWork *node) {
+    uint64_t head = __atomic_load_n(&queue->freeHead, __ATOMIC_RELAXED), next;
+
+    if (node->allocated) {
+        free(node);
+        return;
+    }
+
+    do {
+        __atomic_store_n(&node->nextFree, (uint32_t) head, __ATOMIC_RELAXED);
+        next = ((head >> 32) + 1) << 32 | (uint32_t) (node - queue->nodes + 1);
+    } while (!__atomic_compare_exchange_n(&queue->freeHead, &head, next, true, __ATOMIC_RELEASE, __ATOMIC_RELAXED));
+}
+
+/*
+ * Queues a copy of the event to be passed to `function` by lorie_input_work_process().
+ * Returns false if no node could be allocated. `wasEmpty` is set if the consumer must be woken.
+ */
+static inline bool lorie_input_work_push(struct lorie_input_work_queue* queue, void (*function)(lorieEvent *e), lorieEvent *e, bool* wasEmpty) {
+    lorieInputWork *node, *head;
+
+    if (!(node = lorie_input_work_take(queue)))
+        return false;
+
+    node->function = function;
+    node->e = *e;
+    head = __atomic_load_n(&queue->pending, __ATOMIC_RELAXED);
+    do {
+        node->next = head;
+    } while (!__atomic_compare_exchange_n(&queue->pending, &head, node, true, __ATOMIC_RELEASE, __ATOMIC_RELAXED));
+
+    // Consumer is already woken by whoever queued work into empty queue and it did not process it yet.
+    *wasEmpty = !head;
+    return true;
+}
+
+/* Processes all queued events in the order they were queued. Must be called only by the consumer. */
+static inline void lorie_input_work_process(struct lorie_input_work_queue* queue) {
+    lorieInputWork *node = __atomic_exchange_n(&queue->pending, NULL, __ATOMIC_ACQUIRE), *ordered = NULL, *next;
+
+    // Pending list is LIFO, reverse it to process events in the order they were received.
+    for (; node; node = next) {
+        next = node->next;
+        node->next = ordered;
+        ordered = node;
+    }
+
+    for (node = ordered; node; node = next) {
+        next = node->next;
+        node->function(&node->e);
+        lorie_input_work_release(queue, node);
+    }
+}
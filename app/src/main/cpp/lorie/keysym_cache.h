@@ -0,0 +1,76 @@
+#pragma once
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <string.h>
+
+/*
+ * Finding a keycode takes translating every key of the keymap, up to four
+ * times if the keysym requires Shift or Level 3, which is too slow to do
+ * for every typed character. Found keycodes are cached by keysym and
+ * modifier state. Keymap can be modified by clients or by lorieAddKeysym()
+ * at any time, so every cached keycode is translated once again before
+ * it is used and the entry is dropped if the key does not produce the
+ * keysym anymore. The whole cache is dropped if keymap is replaced or its
+ * keycode range changes. Misses are not cached since they are usually
+ * followed by lorieAddKeysym().
+ */
+#define LORIE_KEYSYM_CACHE_BITS 9
+
+struct lorie_keysym_cache {
+    const void* keymap;
+    uint8_t min_key_code, max_key_code;
+    struct {
+        uint32_t keysym;
+        unsigned state, new_state;
+        bool want_new_state;
+        uint8_t keycode;
+    } entries[1 << LORIE_KEYSYM_CACHE_BITS];
+};
+
+/* Returns keysym produced by the key with given modifier state. */
+typedef uint32_t (*lorie_keycode_to_keysym_fn)(const void* keymap, uint8_t keycode, unsigned state);
+/* Scans the keymap for the keysym, `new_state` is NULL if the modifier state can not be changed. */
+typedef uint8_t (*lorie_keysym_to_keycode_fn)(const void* keymap, uint32_t keysym, unsigned state, unsigned* new_state);
+
+static inline __always_inline uint8_t lorie_keysym_cache_lookup(struct lorie_keysym_cache* cache, const void* keymap,
+                                                                uint8_t min_key_code, uint8_t max_key_code,
+                                                                uint32_t keysym, unsigned state, unsigned* new_state,
+                                                                lorie_keycode_to_keysym_fn translate, lorie_keysym_to_keycode_fn scan) {
+    unsigned found_state = state;
+    uint8_t keycode;
+    uint32_t hash;
+    typeof(cache->entries[0]) *entry;
+
+    if (cache->keymap != keymap || cache->min_key_code != min_key_code || cache->max_key_code != max_key_code) {
+        memset(cache, 0, sizeof(*cache));
+        cache->keymap = keymap;
+        cache->min_key_code = min_key_code;
+        cache->max_key_code = max_key_code;
+    }
+
+    hash = (keysym ^ state * 0x85EBCA77u ^ (new_state != NULL)) * 0x9E3779B1u;
+    entry = &cache->entries[hash >> (32 - LORIE_KEYSYM_CACHE_BITS)];
+    if (entry->keycode != 0 && entry->keysym == keysym && entry->state == state && entry->want_new_state == (new_state != NULL)) {
+        if (translate(keymap, entry->keycode, entry->new_state) == keysym) {
+            if (new_state != NULL)
+                *new_state = entry->new_state;
+            return entry->keycode;
+        }
+        entry->keycode = 0;
+    }
+
+    keycode = scan(keymap, keysym, state, new_state ? &found_state : NULL);
+    if (new_state != NULL)
+        *new_state = found_state;
+
+    if (keycode != 0) {
+        entry->keysym = keysym;
+        entry->state = state;
+        entry->new_state = found_state;
+        entry->want_new_state = new_state != NULL;
+        entry->keycode = keycode;
+    }
+
+    return keycode;
+}
@@ -6,14 +6,21 @@
 #include <android/log.h>
 
 #include <stdbool.h>
+#include <stdatomic.h>
 #include <X11/Xdefs.h>
 #include <X11/keysymdef.h>
 #include <jni.h>
 #include <screenint.h>
 #include <errno.h>
+#include <signal.h>
+#include <unistd.h>
 #include <sys/socket.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
 #include "linux/input-event-codes.h"
 #include "buffer.h"
+#include "mutex.h"
+#include "event.h"
 
 #define PORT 7892
 #define MAGIC "0xDEADBEEF"
@@ -29,9 +36,13 @@ void lorieHandleClipboardAnnounce(void);
 void lorieHandleClipboardData(const char* data);
 void lorieSetStylusEnabled(Bool enabled);
 void lorieWakeServer(void);
+void lorieProcessInputWork(void);
 void lorieChoreographerFrameCallback(__unused long t, AChoreographer* d);
+void lorieChoreographerInit(AChoreographer* choreographer);
+void lorieRequestVsync(void);
 void lorieActivityConnected(void);
-void lorieSendSharedServerState(int memfd);
+void lorieSendSharedServerState(int memfd, int doorbell);
+void lorieRecordInputLatency(int type, uint32_t time);
 void lorieRegisterBuffer(LorieBuffer* buffer);
 void lorieUnregisterBuffer(LorieBuffer* buffer);
 bool lorieConnectionAlive(void);
@@ -39,122 +50,133 @@ bool lorieConnectionAlive(void);
 __unused void rendererInit(JNIEnv* env);
 __unused void rendererTestCapabilities(int* legacy_drawing, uint8_t* flip);
 __unused void rendererSetWindow(ANativeWindow* newWin);
-__unused void rendererSetSharedState(struct lorie_shared_server_state* newState);
+__unused void rendererSetSharedState(struct lorie_shared_server_state* newState, int doorbell);
 __unused void rendererAddBuffer(LorieBuffer* buf);
 __unused void rendererRemoveBuffer(uint64_t id);
 __unused void rendererRemoveAllBuffers(void);
 
-static inline __always_inline void lorie_mutex_lock(pthread_mutex_t* mutex, pid_t* lockingPid) {
-    // Unfortunately there is no robust mutexes in bionic.
-    // Posix does not define any valid way to unlock stuck non-robust mutex
-    // so in the case if renderer or X server process unexpectedly die with locked mutex
-    // we will simply reinitialize it.
+/* Microseconds of CLOCK_MONOTONIC, the same in both X server and activity processes. */
+static inline uint64_t lorieTimestamp(void) {
     struct timespec ts = {0};
-    while(true) {
-        clock_gettime(CLOCK_MONOTONIC, &ts);
-
-        // 33 msec is enough to complete any drawing operation on both X server and renderer side
-        // In the case if mutex is locked most likely other thread died with the mutex locked
-        ts.tv_nsec += 33UL * 1000000UL;
-        if (ts.tv_nsec >= 1000000000L) {
-            ts.tv_sec  += ts.tv_nsec / 1000000000L;
-            ts.tv_nsec  = ts.tv_nsec % 1000000000L;
-        }
-
-        int ret = pthread_mutex_timedlock(mutex, &ts);
-        if (ret == ETIMEDOUT) {
-            if (*lockingPid == getpid() || lorieConnectionAlive())
-                continue;
-
-            pthread_mutexattr_t attr;
-            pthread_mutex_t initializer = PTHREAD_MUTEX_INITIALIZER;
-            pthread_mutexattr_init(&attr);
-            pthread_mutexattr_setpshared(&attr, PTHREAD_PROCESS_SHARED);
-            pthread_mutexattr_settype(&attr, PTHREAD_MUTEX_RECURSIVE);
-            memcpy(mutex, &initializer, sizeof(initializer));
-            pthread_mutex_init(mutex, &attr);
-            // Mutex will be locked fine on the next iteration
-        } else {
-            *lockingPid = getpid();
-            return;
-        }
-    }
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
 }
 
-static inline __always_inline void lorie_mutex_unlock(pthread_mutex_t* mutex, pid_t* lockingPid) {
-    *lockingPid = 0;
-    pthread_mutex_unlock(mutex);
+/*
+ * Timestamp of input event in microseconds of CLOCK_MONOTONIC truncated to 32 bits.
+ * It is the same clock as SystemClock.uptimeMillis() so MotionEvent.getEventTime() * 1000 can be used directly.
+ */
+static inline uint32_t lorieEventTime(void) {
+    return (uint32_t) lorieTimestamp();
 }
 
-typedef enum {
-    EVENT_UNKNOWN __unused = 0,
-    EVENT_SHARED_SERVER_STATE,
-    EVENT_ADD_BUFFER,
-    EVENT_REMOVE_BUFFER,
-    EVENT_SCREEN_SIZE,
-    EVENT_TOUCH,
-    EVENT_MOUSE,
-    EVENT_KEY,
-    EVENT_STYLUS,
-    EVENT_STYLUS_ENABLE,
-    EVENT_UNICODE,
-    EVENT_CLIPBOARD_ENABLE,
-    EVENT_CLIPBOARD_ANNOUNCE,
-    EVENT_CLIPBOARD_REQUEST,
-    EVENT_CLIPBOARD_SEND,
-    EVENT_WINDOW_FOCUS_CHANGED,
-} eventType;
-
-typedef union {
-    uint8_t type;
-    struct {
-        uint8_t t;
-        uint16_t width, height, framerate;
-        size_t name_size;
-        char *name;
-    } screenSize;
-    struct {
-        uint8_t t;
-        unsigned long id;
-    } removeBuffer;
-    struct {
-        uint8_t t;
-        uint16_t type, id, x, y;
-    } touch;
-    struct {
-        uint8_t t;
-        float x, y;
-        uint8_t detail, down, relative;
-    } mouse;
-    struct {
-        uint8_t t;
-        uint16_t key;
-        uint8_t state;
-    } key;
-    struct {
-        uint8_t t;
-        float x, y;
-        uint16_t pressure;
-        int8_t tilt_x, tilt_y;
-        int16_t orientation;
-        uint8_t buttons, eraser, mouse;
-    } stylus;
-    struct {
-        uint8_t t, enable;
-    } stylusEnable;
-    struct {
-        uint8_t t;
-        uint32_t code;
-    } unicode;
-    struct {
-        uint8_t t;
-        uint8_t enable;
-    } clipboardEnable;
-    struct {
-        uint8_t t;
-        uint32_t count;
-    } clipboardSend;
-} lorieEvent;
+enum {
+    LORIE_LATENCY_TOUCH,
+    LORIE_LATENCY_MOUSE,
+    LORIE_LATENCY_STYLUS,
+    LORIE_LATENCY_KEY,
+    LORIE_LATENCY_TYPES,
+};
+
+/*
+ * Log-linear (HDR-style) histogram of microsecond values with 16 sub-buckets per power of two,
+ * so any reported percentile is within 6.25% of the real value. Values are capped at 2^26 us (~67 seconds).
+ */
+#define LORIE_LATENCY_SUB_BUCKETS 16
+#define LORIE_LATENCY_MAX_VALUE ((1U << 26) - 1)
+#define LORIE_LATENCY_BUCKETS (23 * LORIE_LATENCY_SUB_BUCKETS)
+
+struct lorie_latency_histogram {
+    uint32_t count, max;
+    uint32_t buckets[LORIE_LATENCY_BUCKETS];
+};
+
+static inline uint32_t lorie_latency_bucket(uint32_t value) {
+    int msb;
+    if (value < LORIE_LATENCY_SUB_BUCKETS)
+        return value;
+
+    msb = 31 - __builtin_clz(value);
+    return (msb - 3) * LORIE_LATENCY_SUB_BUCKETS + ((value >> (msb - 4)) & (LORIE_LATENCY_SUB_BUCKETS - 1));
+}
+
+static inline uint32_t lorie_latency_bucket_value(uint32_t bucket) {
+    // Highest value which falls into this bucket.
+    uint32_t shift;
+    if (bucket < LORIE_LATENCY_SUB_BUCKETS)
+        return bucket;
+
+    shift = bucket / LORIE_LATENCY_SUB_BUCKETS - 1;
+    return ((LORIE_LATENCY_SUB_BUCKETS + bucket % LORIE_LATENCY_SUB_BUCKETS + 1) << shift) - 1;
+}
+
+static inline void lorie_latency_record(struct lorie_latency_histogram* h, uint32_t value) {
+    // Histogram can be updated from both X server main and input threads.
+    if (value > LORIE_LATENCY_MAX_VALUE)
+        value = LORIE_LATENCY_MAX_VALUE;
+    __atomic_fetch_add(&h->buckets[lorie_latency_bucket(value)], 1, __ATOMIC_RELAXED);
+    __atomic_fetch_add(&h->count, 1, __ATOMIC_RELAXED);
+    for (uint32_t max = __atomic_load_n(&h->max, __ATOMIC_RELAXED); value > max;)
+        if (__atomic_compare_exchange_n(&h->max, &max, value, true, __ATOMIC_RELAXED, __ATOMIC_RELAXED))
+            break;
+}
+
+static inline uint32_t lorie_latency_percentile(const struct lorie_latency_histogram* h, double percentile) {
+    uint64_t target = (uint64_t) (h->count * percentile / 100.0 + 0.5), seen = 0;
+    if (!h->count)
+        return 0;
+
+    for (uint32_t i = 0; i < LORIE_LATENCY_BUCKETS; i++)
+        if ((seen += h->buckets[i]) >= (target ?: 1))
+            return lorie_latency_bucket_value(i) < h->max ? lorie_latency_bucket_value(i) : h->max;
+    return h->max;
+}
+
+#define LORIE_INPUT_RING_SIZE 1024 // must be a power of two
+
+/*
+ * Single producer single consumer ring of input events, shared by activity and X server.
+ * Activity only advances `head`, X server input thread only advances `tail`.
+ * Once activity maps the ring it replies with EVENT_INPUT_RING and from then on every event goes through the ring
+ * to keep them ordered. Events with payload are still written to the socket, but only after EVENT_SOCKET_MESSAGE
+ * is pushed to the ring in their place, X server reads exactly one socket message when it reaches it.
+ * Activity signals the doorbell eventfd only if the ring was empty, X server drains it until it is empty.
+ * If the ring is full activity sets `waiting` and sleeps on the space eventfd, which X server signals
+ * after advancing `tail` if it sees `waiting` set. Both sides use sequentially consistent accesses for that.
+ */
+struct lorie_input_ring {
+    _Atomic uint32_t head __attribute__((aligned(64)));
+    _Atomic uint32_t tail __attribute__((aligned(64)));
+    _Atomic uint32_t waiting;
+    lorieEvent events[LORIE_INPUT_RING_SIZE] __attribute__((aligned(64)));
+};
+
+/*
+ * Damaged part of root window which was not drawn by renderer yet, in root window pixels.
+ * X server appends rectangles in lorieRedraw, renderer takes them all before drawing a frame.
+ * In the case if rectangles do not fit the whole root window must be redrawn.
+ */
+#define LORIE_DAMAGE_MAX_RECTS 16
+#define LORIE_DAMAGE_FULL (LORIE_DAMAGE_MAX_RECTS + 1)
+struct lorie_damage_rect {
+    int16_t x1, y1, x2, y2;
+};
+
+#define LORIE_TIMELINE_SIZE 128 // must be a power of two
+
+/*
+ * Timestamps of a single frame drawn by renderer, see lorieTimestamp.
+ * X server side timestamps belong to the latest lorieRedraw and publication before renderer took the frame.
+ */
+struct lorie_frame_timeline {
+    uint64_t redraw; // X server started lorieRedraw
+    uint64_t published; // X server published damage and root window buffer
+    uint64_t started; // renderer took the frame
+    uint64_t locked; // renderer acquired root window lock, or decided it is not needed
+    uint64_t drawn; // renderer issued all draw calls
+    uint64_t fenced; // GPU finished drawing
+    uint64_t swapped; // eglSwapBuffers returned
+};
 
 struct lorie_shared_server_state {
     /*
@@ -163,15 +185,13 @@ struct lorie_shared_server_state {
      * Reading/drawing root window in renderer the same time X server writes it can cause
      * tearing, texture garbling and other visual artifacts so we should block X server while we are drawing.
      */
-    pthread_mutex_t lock; // initialized at X server side.
-    pid_t lockingPid;
+    struct lorie_mutex lock;
 
     /*
-     * Renderer thread sleeps when it is idle so we must explicitly wake it up.
+     * ID of root window texture to be drawn.
+     * In double buffered mode it is the back buffer holding the latest complete frame.
+     * Changed by X server with damage.lock held.
      */
-    pthread_cond_t cond; // initialized at X server side.
-
-    /* ID of root window texture to be drawn. */
     uint64_t rootWindowTextureID;
 
     /* A signal to renderer to update root window texture content from shared fragment if needed */
@@ -202,13 +222,42 @@ struct lorie_shared_server_state {
     struct {
         // We should not allow updating cursor content the same time renderer draws it.
         // locking the mutex protecting the root window can cause waiting for the frame to be drawn which is unacceptable
-        pthread_mutex_t lock; // initialized at X server side.
-        pid_t lockingPid;
+        struct lorie_mutex lock;
         uint32_t x, y, xhot, yhot, width, height;
+        // Unique id of converted cursor image, renderer can reuse the texture it uploaded for this id. 0 if not cached.
+        uint32_t id;
         uint32_t bits[512*512]; // 1 megabyte should be enough for any cursor up to 512x512
         // Signals to renderer to update cursor's texture or its coordinates
         volatile uint8_t updated, moved;
     } cursor;
+
+    struct {
+        // Protects only the rectangle list, both sides hold it for a few instructions.
+        struct lorie_mutex lock;
+        uint32_t count; // number of rects or LORIE_DAMAGE_FULL
+        struct lorie_damage_rect rects[LORIE_DAMAGE_MAX_RECTS];
+        // X server does not write to rootWindowTextureID buffer so renderer does not need to hold the lock while drawing it.
+        uint8_t immutable;
+        // Back buffer renderer samples right now, X server does not copy frames there. Set by renderer with the lock held.
+        uint64_t reading;
+    } damage;
+
+    /*
+     * Ring of timelines of the last LORIE_TIMELINE_SIZE frames. Renderer fills `frames[head % LORIE_TIMELINE_SIZE]`
+     * and then increments `head`, so readers should re-read `head` after copying entries to drop overwritten ones.
+     * `redraw` and `published` are written by X server (the latter with damage.lock held) and copied to the frame by renderer.
+     */
+    struct {
+        uint32_t head;
+        uint64_t redraw, published;
+        struct lorie_frame_timeline frames[LORIE_TIMELINE_SIZE];
+    } timeline;
+
+    /*
+     * Time from MotionEvent (or JNI call for events without one) to the moment X server queues the event,
+     * in microseconds, indexed by LORIE_LATENCY_* event type. Written by X server, can be read by activity.
+     */
+    struct lorie_latency_histogram inputLatency[LORIE_LATENCY_TYPES];
 };
 
 static int android_to_linux_keycode[304] = {
@@ -0,0 +1,80 @@
+#pragma once
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <errno.h>
+#include <signal.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+
+/*
+ * Recursive lock shared between X server and activity processes, it lives in shared memory and zeroed memory is unlocked lock.
+ * Unfortunately there is no robust mutexes in bionic, so it is built directly on futex.
+ * `word` is 0 when unlocked, otherwise it holds TID of the owner thread and LORIE_MUTEX_WAITERS bit if somebody sleeps on it.
+ * Both processes are in the same pid namespace, so waiter can check if the owner thread is still alive.
+ * In the case if the owner died with the lock held (i.e. process was killed) the lock is taken over in LORIE_MUTEX_CHECK_MS.
+ */
+#define LORIE_MUTEX_WAITERS 0x80000000U
+#define LORIE_MUTEX_TID_MASK 0x3FFFFFFFU
+#define LORIE_MUTEX_CHECK_MS 100
+
+struct lorie_mutex {
+    uint32_t word;
+    pid_t pid; // process of the owner, only for debugging
+    uint32_t depth; // recursion depth, changed only by the owner
+};
+
+static inline __always_inline bool lorie_mutex_owner_dead(uint32_t word) {
+    // Dead thread can not be signaled. Signaling alive thread of other app fails with EPERM.
+    return kill((pid_t) (word & LORIE_MUTEX_TID_MASK), 0) == -1 && errno == ESRCH;
+}
+
+static inline __always_inline void lorie_mutex_lock(struct lorie_mutex* mutex) {
+    static const struct timespec timeout = { .tv_nsec = LORIE_MUTEX_CHECK_MS * 1000000L };
+    uint32_t tid = (uint32_t) gettid(), word = 0;
+
+    if ((__atomic_load_n(&mutex->word, __ATOMIC_RELAXED) & LORIE_MUTEX_TID_MASK) == tid) {
+        mutex->depth++;
+        return;
+    }
+
+    // Uncontended case is a single CAS, no syscalls.
+    if (!__atomic_compare_exchange_n(&mutex->word, &word, tid, false, __ATOMIC_ACQUIRE, __ATOMIC_RELAXED)) {
+        while (true) {
+            word = __atomic_load_n(&mutex->word, __ATOMIC_RELAXED);
+            if (!word) {
+                // Other threads may still sleep on it, so we keep the waiters bit.
+                if (__atomic_compare_exchange_n(&mutex->word, &word, tid | LORIE_MUTEX_WAITERS, false, __ATOMIC_ACQUIRE, __ATOMIC_RELAXED))
+                    break;
+                continue;
+            }
+
+            if (!(word & LORIE_MUTEX_WAITERS) && !__atomic_compare_exchange_n(&mutex->word, &word, word | LORIE_MUTEX_WAITERS, false, __ATOMIC_RELAXED, __ATOMIC_RELAXED))
+                continue;
+
+            if (syscall(SYS_futex, &mutex->word, FUTEX_WAIT, word | LORIE_MUTEX_WAITERS, &timeout, NULL, 0) == -1
+                    && errno == ETIMEDOUT && lorie_mutex_owner_dead(word)) {
+                // The owner will never unlock it, take it over.
+                word |= LORIE_MUTEX_WAITERS;
+                if (__atomic_compare_exchange_n(&mutex->word, &word, tid | LORIE_MUTEX_WAITERS, false, __ATOMIC_ACQUIRE, __ATOMIC_RELAXED))
+                    break;
+            }
+        }
+    }
+
+    mutex->pid = getpid();
+    mutex->depth = 0;
+}
+
+static inline __always_inline void lorie_mutex_unlock(struct lorie_mutex* mutex) {
+    if (mutex->depth) {
+        mutex->depth--;
+        return;
+    }
+
+    mutex->pid = 0;
+    if (__atomic_exchange_n(&mutex->word, 0, __ATOMIC_RELEASE) & LORIE_MUTEX_WAITERS)
+        syscall(SYS_futex, &mutex->word, FUTEX_WAKE, 1, NULL, NULL, 0);
+}
@@ -18,6 +18,10 @@
 #include <android/log.h>
 #include <dlfcn.h>
 #include <sys/mman.h>
+#include <sys/eventfd.h>
+#include <poll.h>
+#include <string.h>
+#include <math.h>
 #include "list.h"
 #include "lorie.h"
 
@@ -113,32 +117,48 @@ static EGLContext ctx = EGL_NO_CONTEXT;
 static EGLSurface defaultSfc = EGL_NO_SURFACE, sfc = EGL_NO_SURFACE;
 static EGLConfig cfg = 0;
 static ANativeWindow *defaultWin = NULL, *win = NULL;
-static volatile struct xorg_list addedBuffers, buffers, removedBuffers;
+static volatile LorieBufferList addedBuffers, buffers, removedBuffers;
 
 static JNIEnv* renderEnv = NULL;
 static volatile bool stateChanged = false, windowChanged = false;
 static volatile struct lorie_shared_server_state* pendingState = NULL;
 static volatile ANativeWindow* pendingWin = NULL;
+static volatile int pendingDoorbell = -1;
 
 static pthread_mutex_t stateLock;
-static pthread_cond_t stateCond;
 static pthread_cond_t stateChangeFinishCond;
+// Renderer thread sleeps on both doorbells: local one is rung by activity threads, remote one by X server.
+static int localDoorbell = -1, remoteDoorbell = -1;
 static pthread_spinlock_t bufferLock;
 static volatile struct lorie_shared_server_state* state = NULL;
+// Number of cursor images kept uploaded, see lorieSetCursor
+#define CURSOR_TEXTURES 8
 static struct {
     GLuint id;
     bool cursorChanged;
+    struct {
+        uint32_t id; // id of cursor image, 0 if texture is free
+        GLuint texture;
+        uint64_t lastUsed;
+    } cache[CURSOR_TEXTURES];
 } cursor;
 
+// Number of previous frames damage is remembered for. Surfaces older than that are redrawn completely.
+#define DAMAGE_HISTORY 4
+static struct {
+    bool valid; // history below is applicable to current surface
+    uint64_t bufferId; // buffer drawn in the previous frame
+    struct lorie_damage_rect cursor; // cursor rectangle drawn in the previous frame
+    struct lorie_damage_rect history[DAMAGE_HISTORY]; // bounding boxes of damage of previous frames, newest first
+} frame;
+static bool bufferAgeSupported = false, bufferPreserved = false;
+static PFNEGLSWAPBUFFERSWITHDAMAGEKHRPROC swapBuffersWithDamage = NULL;
+
 GLuint g_texture_program = 0, gv_pos = 0, gv_coords = 0;
 GLuint g_texture_program_bgra = 0, gv_pos_bgra = 0, gv_coords_bgra = 0;
 
 static void* rendererThread(void);
 
-static void pthreadCondVarProxyInit(void);
-static void* pthreadCondVarProxyThread(void* cookie);
-static void pthreadCondVarProxyListenOtherCondVar(pthread_cond_t* var);
-
 static inline __always_inline void bindLinearTexture(GLuint id) {
     glBindTexture(GL_TEXTURE_2D, id);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
@@ -169,9 +189,9 @@ int rendererInitThread(JavaVM *vm) {
 
     pthread_setname_np(pthread_self(), "LorieRendererThread");
 
-    xorg_list_init(&addedBuffers);
-    xorg_list_init(&buffers);
-    xorg_list_init(&removedBuffers);
+    LorieBufferList_init(&addedBuffers);
+    LorieBufferList_init(&buffers);
+    LorieBufferList_init(&removedBuffers);
 
     (*vm)->AttachCurrentThread(vm, &env, NULL);
 
@@ -185,6 +205,13 @@ int rendererInitThread(JavaVM *vm) {
     log("Xlorie: Initialized EGL version %d.%d\n", major, minor);
     eglBindAPI(EGL_OPENGL_ES_API);
 
+    const char* extensions = eglQueryString(egl_display, EGL_EXTENSIONS) ?: "";
+    // EGL_BUFFER_AGE_KHR of EGL_KHR_partial_update has the same value as EGL_BUFFER_AGE_EXT.
+    bufferAgeSupported = strstr(extensions, "EGL_EXT_buffer_age") || strstr(extensions, "EGL_KHR_partial_update");
+    if (strstr(extensions, "EGL_KHR_swap_buffers_with_damage"))
+        swapBuffersWithDamage = (PFNEGLSWAPBUFFERSWITHDAMAGEKHRPROC) eglGetProcAddress("eglSwapBuffersWithDamageKHR");
+    log("Xlorie: buffer age %ssupported, swap with damage %ssupported\n", bufferAgeSupported ? "" : "not ", swapBuffersWithDamage ? "" : "not ");
+
     if (eglChooseConfig(egl_display, configAttribs, &cfg, 1, &numConfigs) != EGL_TRUE &&
         (*alphaAttrib = 8) &&
         eglChooseConfig(egl_display, configAttribs, &cfg, 1, &numConfigs) != EGL_TRUE)
@@ -233,7 +260,9 @@ int rendererInitThread(JavaVM *vm) {
     gv_coords_bgra = (GLuint) glGetAttribLocation(g_texture_program_bgra, "texCoords");
 
     glActiveTexture(GL_TEXTURE0);
-    glGenTextures(1, &cursor.id);
+    for (int i = 0; i < CURSOR_TEXTURES; i++)
+        glGenTextures(1, &cursor.cache[i].texture);
+    cursor.id = cursor.cache[0].texture;
 
     rendererThread();
     return 1;
@@ -248,10 +277,8 @@ void rendererInit(JNIEnv* env) {
 
     (*env)->GetJavaVM(env, &vm);
 
-    pthreadCondVarProxyInit();
-
+    localDoorbell = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
     pthread_mutex_init(&stateLock, NULL);
-    pthread_cond_init(&stateCond, NULL);
     pthread_cond_init(&stateChangeFinishCond, NULL);
     pthread_spin_init(&bufferLock, false);
 
@@ -368,11 +395,18 @@ void rendererTestCapabilities(int* legacy_drawing, uint8_t* flip) {
     }
 }
 
-__unused void rendererSetSharedState(struct lorie_shared_server_state* newState) {
+static inline void rendererWake(void) {
+    eventfd_write(localDoorbell, 1);
+}
+
+__unused void rendererSetSharedState(struct lorie_shared_server_state* newState, int doorbell) {
     pthread_mutex_lock(&stateLock);
+    if (pendingDoorbell != -1)
+        close(pendingDoorbell);
     pendingState = newState;
+    pendingDoorbell = doorbell;
     stateChanged = true;
-    pthread_cond_signal(&stateCond);
+    rendererWake();
 
     while(stateChanged)
         pthread_cond_wait(&stateChangeFinishCond, &stateLock);
@@ -383,7 +417,7 @@ __unused void rendererSetSharedState(struct lorie_shared_server_state* newState)
 void rendererAddBuffer(LorieBuffer* buf) {
     pthread_spin_lock(&bufferLock);
     LorieBuffer_addToList(buf, &addedBuffers);
-    pthread_cond_signal(&stateCond);
+    rendererWake();
     pthread_spin_unlock(&bufferLock);
 }
 
@@ -391,17 +425,16 @@ void rendererRemoveBuffer(uint64_t id) {
     pthread_spin_lock(&bufferLock);
     LorieBuffer* buf = LorieBufferList_findById(&addedBuffers, id);
     if (buf)
-        // Buffer was not attached to GL yet, it is safe to release it now.
-        LorieBuffer_release(buf);
+        LorieBuffer_removeFromList(buf);
     else {
-        buf = LorieBufferList_findById(&buffers, id);
-        if (buf) {
-            // The buffer is attached to GL so we should release it from renderer thread.
-            LorieBuffer_removeFromList(buf);
-            LorieBuffer_addToList(buf, &removedBuffers);
-        }
+        // The buffer is attached to GL so we should release it from renderer thread.
+        LorieBuffer_addToList(LorieBufferList_findById(&buffers, id), &removedBuffers);
     }
     pthread_spin_unlock(&bufferLock);
+
+    // Buffer was not attached to GL yet, it is safe to release it now, outside of the lock.
+    if (buf)
+        LorieBuffer_release(buf);
 }
 
 void rendererRemoveAllBuffers(void) {
@@ -434,7 +467,7 @@ void rendererSetWindow(ANativeWindow* newWin) {
     pendingWin = newWin;
     windowChanged = TRUE;
 
-    pthread_cond_signal(&stateCond);
+    rendererWake();
 
     // We should wait until renderer destroys EGLSurface before SurfaceCallback::surfaceDestroyed finishes
     // Otherwise we will have weird errors like
@@ -500,6 +533,13 @@ void rendererRefreshContext(void) {
 
     eglSwapInterval(egl_display, 0);
 
+    // Without buffer age we still can reuse the previous frame if the surface preserves it.
+    // It fails on configs without EGL_SWAP_BEHAVIOR_PRESERVED_BIT, in this case we simply draw every frame completely.
+    bufferPreserved = !bufferAgeSupported && eglSurfaceAttrib(egl_display, sfc, EGL_SWAP_BEHAVIOR, EGL_BUFFER_PRESERVED) == EGL_TRUE;
+
+    // Contents of buffers of new surface are undefined, the first frame must be drawn completely
+    frame.valid = false;
+
     // We should redraw image at least once right after surface change
     if (state)
         state->surfaceAvailable = state->drawRequested = state->cursor.updated = win != defaultWin;
@@ -511,58 +551,238 @@ void rendererRefreshContext(void) {
 static void draw(GLuint id, float x0, float y0, float x1, float y1, float xfactor, uint8_t flip);
 static void drawCursor(float displayWidth, float displayHeight);
 
+/*
+ * Points cursor.id to texture of the given cursor image.
+ * Returns true if the image is already uploaded there, otherwise the least recently used texture is taken.
+ */
+static bool cursorTextureFind(uint32_t id) {
+    static uint64_t clock = 0;
+    int victim = 0;
+    for (int i = 0; i < CURSOR_TEXTURES; i++) {
+        if (id && cursor.cache[i].id == id) {
+            cursor.cache[i].lastUsed = ++clock;
+            cursor.id = cursor.cache[i].texture;
+            return true;
+        }
+        if (cursor.cache[i].lastUsed < cursor.cache[victim].lastUsed)
+            victim = i;
+    }
+
+    cursor.cache[victim].id = id;
+    cursor.cache[victim].lastUsed = ++clock;
+    cursor.id = cursor.cache[victim].texture;
+    return false;
+}
+
+static inline __always_inline void damageAdd(struct lorie_damage_rect* rects, int* count, int x1, int y1, int x2, int y2) {
+    if (x1 < x2 && y1 < y2)
+        rects[(*count)++] = (struct lorie_damage_rect) { (int16_t) x1, (int16_t) y1, (int16_t) x2, (int16_t) y2 };
+}
+
+static inline __always_inline void damageUnion(struct lorie_damage_rect* box, struct lorie_damage_rect* r) {
+    if (box->x1 >= box->x2 || box->y1 >= box->y2) {
+        *box = *r;
+        return;
+    }
+
+    box->x1 = r->x1 < box->x1 ? r->x1 : box->x1;
+    box->y1 = r->y1 < box->y1 ? r->y1 : box->y1;
+    box->x2 = r->x2 > box->x2 ? r->x2 : box->x2;
+    box->y2 = r->y2 > box->y2 ? r->y2 : box->y2;
+}
+
+static inline __always_inline void damageToWindow(struct lorie_damage_rect* r, EGLint* out, float sx, float sy, int winWidth, int winHeight) {
+    // One extra texel on each side is covered because of linear filtering
+    int x1 = (int) floorf((float) (r->x1 - 1) * sx), x2 = (int) ceilf((float) (r->x2 + 1) * sx);
+    int y1 = (int) floorf((float) (r->y1 - 1) * sy), y2 = (int) ceilf((float) (r->y2 + 1) * sy);
+    x1 = x1 < 0 ? 0 : x1;
+    y1 = y1 < 0 ? 0 : y1;
+    x2 = x2 > winWidth ? winWidth : x2;
+    y2 = y2 > winHeight ? winHeight : y2;
+
+    // GL window coordinates start at the bottom left corner
+    out[0] = x1;
+    out[1] = winHeight - y2;
+    out[2] = x2 - x1;
+    out[3] = y2 - y1;
+}
+
 void rendererRedrawLocked(bool* waitingForBuffers) {
+    // X server damage, both cursor rectangles, damage of previous frames and the pixel cleared after swap
+    struct lorie_damage_rect rects[LORIE_DAMAGE_MAX_RECTS + DAMAGE_HISTORY + 3], box = {0}, cursorRect = {0};
+    EGLint windowRects[4 * (LORIE_DAMAGE_MAX_RECTS + DAMAGE_HISTORY + 3)];
+    int damaged, count = 0, i, width, height, winWidth, winHeight;
+    bool fullUpload, fullDraw, locked;
+    uint64_t id;
+    EGLint age = 0;
     float xfactor = 1.f;
     LorieBuffer_Desc *desc = NULL;
     EGLSync fence;
+    EGLBoolean swapped;
+    struct lorie_frame_timeline timeline = { .started = lorieTimestamp() };
+
+    state->drawRequested = FALSE;
+
+    // Take the latest frame and the damage X server accumulated since the previous frame
+    lorie_mutex_lock(&state->damage.lock);
+    id = state->rootWindowTextureID;
+    locked = !state->damage.immutable;
+    __atomic_store_n(&state->damage.reading, id, __ATOMIC_RELEASE);
+    timeline.redraw = state->timeline.redraw;
+    timeline.published = state->timeline.published;
+    damaged = (int) state->damage.count;
+    if (damaged <= LORIE_DAMAGE_MAX_RECTS)
+        memcpy(rects, (const void*) state->damage.rects, damaged * sizeof(*rects));
+    state->damage.count = 0;
+    lorie_mutex_unlock(&state->damage.lock);
+
     // The buffer will not be released until this function ends, but main thread can modify buffer list
     pthread_spin_lock(&bufferLock);
-    LorieBuffer *buffer = LorieBufferList_findById(&buffers, state->rootWindowTextureID);
+    LorieBuffer *buffer = LorieBufferList_findById(&buffers, id);
     // Probably X server requested us to draw removed buffer and immediately requested to remove it. Let's display it one last time.
     if (!buffer)
-        buffer = LorieBufferList_findById(&removedBuffers, state->rootWindowTextureID);
+        buffer = LorieBufferList_findById(&removedBuffers, id);
     if (!buffer)
         *waitingForBuffers = true;
     pthread_spin_unlock(&bufferLock);
     if (!buffer) {
-        log("Buffer %llu not found", state->rootWindowTextureID);
+        log("Buffer %llu not found", id);
+        // The damage was taken but not drawn
+        lorie_mutex_lock(&state->damage.lock);
+        state->damage.count = LORIE_DAMAGE_FULL;
+        __atomic_store_n(&state->damage.reading, 0, __ATOMIC_RELEASE);
+        lorie_mutex_unlock(&state->damage.lock);
         return;
     }
 
     desc = LorieBuffer_description(buffer);
+    width = LorieBuffer_getWidth(buffer);
+    height = LorieBuffer_getHeight(buffer);
+    winWidth = ANativeWindow_getWidth(win);
+    winHeight = ANativeWindow_getHeight(win);
+
+    // Texture can not be updated partially if it holds contents of another buffer or surface was recreated
+    // X server marks damage full if buffer is changed to unrelated one, only the texture of shared memory buffer can be outdated.
+    fullUpload = damaged == LORIE_DAMAGE_FULL || !frame.valid || (desc->type == LORIEBUFFER_FD && frame.bufferId != id);
+
+    // Contents of the surface buffer are `age` frames old, so we should repaint damage of `age - 1` previous frames too
+    fullDraw = fullUpload;
+    if (!fullDraw && bufferPreserved)
+        age = 1;
+    else if (!fullDraw && (!bufferAgeSupported || eglQuerySurface(egl_display, sfc, EGL_BUFFER_AGE_EXT, &age) != EGL_TRUE || age <= 0 || age > DAMAGE_HISTORY + 1))
+        fullDraw = true;
+
+    // Only cursor changed, the rest of the frame is reused, so we do not wait for X server. Shared memory buffer is
+    // drawn from the texture uploaded on previous frames. Hardware buffer is sampled directly under the cursor rectangles,
+    // but if X server is writing there right now it reports the damage and the area is redrawn with the lock held
+    // on the next frame, so a torn cursor area is visible for one frame at most.
+    if (!damaged && !fullDraw)
+        locked = false;
+
+    // We should signal X server to not use root window while we actively copy it.
+    // In double buffered mode X server does not touch the buffer holding complete frame.
+    if (locked)
+        lorie_mutex_lock(&state->lock);
+    timeline.locked = lorieTimestamp();
+
+    if (fullUpload) {
+        LorieBuffer_bindTexture(buffer);
+        damageAdd(rects, &count, 0, 0, width, height);
+    } else {
+        // Only binds the texture in the case if nothing was damaged
+        LorieBuffer_bindTextureRegion(buffer, 0, 0, 0, 0);
+        for (count = 0; count < damaged; count++)
+            LorieBuffer_bindTextureRegion(buffer, rects[count].x1, rects[count].y1, rects[count].x2 - rects[count].x1, rects[count].y2 - rects[count].y1);
+    }
 
-    // We should signal X server to not use root window while we actively copy it
-    lorie_mutex_lock(&state->lock, &state->lockingPid);
-    state->drawRequested = FALSE;
+    if (locked && desc->type == LORIEBUFFER_FD) {
+        // glTexSubImage2D copies pixels before returning, X server can continue drawing.
+        lorie_mutex_unlock(&state->lock);
+        locked = false;
+    }
+
+    // Cursor must be erased at the old position and drawn at the new one
+    if (state->cursor.width && state->cursor.height) {
+        cursorRect.x1 = (int16_t) (state->cursor.x - state->cursor.xhot);
+        cursorRect.y1 = (int16_t) (state->cursor.y - state->cursor.yhot);
+        cursorRect.x2 = (int16_t) (cursorRect.x1 + state->cursor.width);
+        cursorRect.y2 = (int16_t) (cursorRect.y1 + state->cursor.height);
+    }
+    damageAdd(rects, &count, frame.cursor.x1, frame.cursor.y1, frame.cursor.x2, frame.cursor.y2);
+    damageAdd(rects, &count, cursorRect.x1, cursorRect.y1, cursorRect.x2, cursorRect.y2);
+    for (i = 0; i < count; i++)
+        damageUnion(&box, &rects[i]);
+
+    if (!fullDraw)
+        for (i = 0; i < age - 1; i++)
+            damageAdd(rects, &count, frame.history[i].x1, frame.history[i].y1, frame.history[i].x2, frame.history[i].y2);
+
+    // Pixel overwritten after the previous swap
+    damageAdd(rects, &count, 0, height - 1, 1, height);
+
+    memmove(&frame.history[1], &frame.history[0], sizeof(frame.history) - sizeof(*frame.history));
+    frame.history[0] = box;
+    frame.cursor = cursorRect;
+    frame.bufferId = id;
+    frame.valid = true;
+
+    if (!fullDraw) {
+        for (i = 0; i < count; i++)
+            damageToWindow(&rects[i], &windowRects[i * 4], (float) winWidth / (float) width, (float) winHeight / (float) height, winWidth, winHeight);
+        glEnable(GL_SCISSOR_TEST);
+    } else
+        count = 1;
 
-    LorieBuffer_bindTexture(buffer);
     if (desc->type == LORIEBUFFER_FD)
         xfactor = (float) desc->width/(float) desc->stride;
-    draw(0, -1.f, -1.f, 1.f, 1.f, xfactor, LorieBuffer_isRgba(buffer));
+    for (i = 0; i < count; i++) {
+        if (!fullDraw)
+            glScissor(windowRects[i * 4], windowRects[i * 4 + 1], windowRects[i * 4 + 2], windowRects[i * 4 + 3]);
+        draw(0, -1.f, -1.f, 1.f, 1.f, xfactor, LorieBuffer_isRgba(buffer));
+    }
     fence = eglCreateSyncKHR(egl_display, EGL_SYNC_FENCE_KHR, NULL);
     glFlush();
 
     if (state->cursor.updated) {
         log("Xlorie: updating cursor\n");
-        lorie_mutex_lock(&state->cursor.lock, &state->cursor.lockingPid);
+        lorie_mutex_lock(&state->cursor.lock);
         state->cursor.updated = false;
-        bindLinearTexture(cursor.id);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, (GLsizei) state->cursor.width, (GLsizei) state->cursor.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, state->cursor.bits);
-        lorie_mutex_unlock(&state->cursor.lock, &state->cursor.lockingPid);
+        if (!cursorTextureFind(state->cursor.id)) {
+            bindLinearTexture(cursor.id);
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, (GLsizei) state->cursor.width, (GLsizei) state->cursor.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, state->cursor.bits);
+        }
+        lorie_mutex_unlock(&state->cursor.lock);
     }
 
     state->cursor.moved = FALSE;
-    drawCursor((float) (LorieBuffer_getWidth(buffer)), (float) (LorieBuffer_getHeight(buffer)));
+    for (i = 0; i < count; i++) {
+        if (!fullDraw)
+            glScissor(windowRects[i * 4], windowRects[i * 4 + 1], windowRects[i * 4 + 2], windowRects[i * 4 + 3]);
+        drawCursor((float) width, (float) height);
+    }
+    glDisable(GL_SCISSOR_TEST);
     glFlush();
+    timeline.drawn = lorieTimestamp();
 
     // Wait until root window drawing is finished before giving control back to X server
     eglClientWaitSyncKHR(egl_display, fence, 0, EGL_FOREVER);
     eglDestroySyncKHR(egl_display, fence);
+    timeline.fenced = lorieTimestamp();
     state->waitForNextFrame = true;
-    lorie_mutex_unlock(&state->lock, &state->lockingPid);
-
-    if (eglSwapBuffers(egl_display, sfc) != EGL_TRUE)
+    __atomic_store_n(&state->damage.reading, 0, __ATOMIC_RELEASE);
+    if (locked)
+        lorie_mutex_unlock(&state->lock);
+
+    if (!fullDraw && swapBuffersWithDamage)
+        swapped = swapBuffersWithDamage(egl_display, sfc, windowRects, count);
+    else
+        swapped = eglSwapBuffers(egl_display, sfc);
+    if (swapped != EGL_TRUE)
         printEglError("Failed to swap buffers", __LINE__);
+    timeline.swapped = lorieTimestamp();
+
+    state->timeline.frames[state->timeline.head % LORIE_TIMELINE_SIZE] = timeline;
+    __atomic_store_n(&state->timeline.head, state->timeline.head + 1, __ATOMIC_RELEASE);
 
     // Perform a little drawing operation to make sure the next buffer is ready on the next invocation of drawing
     glEnable(GL_SCISSOR_TEST);
@@ -581,7 +801,7 @@ static inline __always_inline bool rendererShouldWait(bool *waitingForBuffers) {
     static uint64_t lastRequestedBufferId = 0;
     bool buffersChanged;
     pthread_spin_lock(&bufferLock);
-    buffersChanged = !xorg_list_is_empty(&addedBuffers) || !xorg_list_is_empty(&removedBuffers);
+    buffersChanged = LorieBufferList_first(&addedBuffers) || LorieBufferList_first(&removedBuffers);
     pthread_spin_unlock(&bufferLock);
     if (stateChanged || windowChanged || buffersChanged)
         // If there are pending changes we should process them immediately.
@@ -605,12 +825,31 @@ static inline __always_inline bool rendererShouldWait(bool *waitingForBuffers) {
     return true;
 }
 
+static void rendererSleep(void) {
+    struct pollfd fds[] = {{ .fd = localDoorbell, .events = POLLIN }, { .fd = remoteDoorbell, .events = POLLIN }};
+    eventfd_t dummy;
+
+    // Doorbells are drained before rechecking the state, so signals sent after this point are not lost.
+    pthread_mutex_unlock(&stateLock);
+    if (poll(fds, remoteDoorbell == -1 ? 1 : 2, -1) > 0) {
+        for (int i = 0; i < 2; i++)
+            if (fds[i].revents & POLLIN)
+                eventfd_read(fds[i].fd, &dummy);
+        if (fds[1].revents & (POLLERR | POLLNVAL)) {
+            loge("X server doorbell failed, waiting for local events only");
+            close(remoteDoorbell);
+            remoteDoorbell = -1;
+        }
+    }
+    pthread_mutex_lock(&stateLock);
+}
+
 __noreturn static void* rendererThread(void) {
     LorieBuffer* buf;
     bool waitingForBuffers = false;
     while (true) {
         while (rendererShouldWait(&waitingForBuffers))
-            pthread_cond_wait(&stateCond, &stateLock);
+            rendererSleep();
 
         if (stateChanged) {
             struct lorie_shared_server_state* oldState = NULL;
@@ -619,9 +858,17 @@ __noreturn static void* rendererThread(void) {
 
             state = pendingState;
             pendingState = NULL;
+            if (remoteDoorbell != -1)
+                close(remoteDoorbell);
+            remoteDoorbell = pendingDoorbell;
+            pendingDoorbell = -1;
             stateChanged = false;
             waitingForBuffers = false;
 
+            frame.valid = false;
+            // Cursor image ids are assigned by X server, new server can reuse them.
+            for (int i = 0; i < CURSOR_TEXTURES; i++)
+                cursor.cache[i].id = cursor.cache[i].lastUsed = 0;
             if (state)
                 state->surfaceAvailable = win != defaultWin;
             else if (win != defaultWin) {
@@ -630,8 +877,6 @@ __noreturn static void* rendererThread(void) {
                 eglSwapBuffers(egl_display, sfc);
             }
 
-            pthreadCondVarProxyListenOtherCondVar(state ? &state->cond : NULL);
-
             if (oldState)
                 munmap(oldState, sizeof(*oldState));
         }
@@ -754,45 +999,3 @@ __unused static void drawCursor(float displayWidth, float displayHeight) {
     draw(cursor.id, x, y, x + w, y + h, 1.f, false);
     glDisable(GL_BLEND);
 }
-
-// auxillary pthread condition var proxy shenanigans
-static volatile struct {
-    pthread_mutex_t lock;
-    pthread_cond_t def, *current, *pending;
-    bool relocked;
-} proxy = { .current = &proxy.def };
-
-static void pthreadCondVarProxyInit(void) {
-    pthread_t t;
-    pthread_mutex_init(&proxy.lock, NULL);
-    pthread_cond_init(&proxy.def, NULL);
-    pthread_create(&t, NULL, pthreadCondVarProxyThread, NULL);
-}
-
-__noreturn static void* pthreadCondVarProxyThread(void* cookie) {
-    // We can not wait for two conditional variables simultaneously.
-    // But we are required to listen for both remote and local events.
-    // This thread waits for remote signals and proxies them to the local cond var.
-    pthread_setname_np(pthread_self(), "PthreadCondVarProxy");
-    pthread_mutex_lock(&proxy.lock);
-    log("pthreadCondVarProxyThread %ld started", pthread_self());
-    while (true) {
-        pthread_cond_wait(proxy.current, &proxy.lock);
-        if (proxy.pending) {
-            proxy.current = proxy.pending;
-            proxy.pending = NULL;
-        }
-        proxy.relocked = true;
-        pthread_cond_signal(&stateCond);
-    }
-}
-
-static void pthreadCondVarProxyListenOtherCondVar(pthread_cond_t* var) {
-    pthread_mutex_lock(&proxy.lock);
-    pthread_cond_broadcast(proxy.current);
-    proxy.pending = var ?: &proxy.def;
-    proxy.relocked = false;
-    while(!proxy.relocked)
-        pthread_cond_wait(&stateCond, &proxy.lock);
-    pthread_mutex_unlock(&proxy.lock);
-}
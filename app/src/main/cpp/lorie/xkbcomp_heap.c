@@ -0,0 +1,141 @@
+#include <errno.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * xkbcomp exits after compiling a keymap, so it never frees parse trees, compiled keymap and most of its strings.
+ * Recipe renames allocator calls of xkbcomp sources to the functions below. When xkbcomp runs in X server process
+ * xkbcomp_main() starts tracking allocations, and xkbcomp_heap_release() frees everything the run did not free.
+ * Sources keeping atoms and keysym database for next runs are not renamed, so their allocations are never tracked.
+ */
+
+void* xkbcomp_malloc(size_t size);
+void* xkbcomp_calloc(size_t count, size_t size);
+void* xkbcomp_realloc(void* ptr, size_t size);
+void* xkbcomp_reallocarray(void* ptr, size_t count, size_t size);
+char* xkbcomp_strdup(const char* str);
+void xkbcomp_free(void* ptr);
+void xkbcomp_heap_track(void);
+void xkbcomp_heap_release(void);
+
+static void** tracked = NULL; // Open addressing hash set of blocks allocated during the run
+static size_t trackedCapacity = 0, trackedCount = 0;
+static bool tracking = false;
+
+static inline size_t slot(const void* ptr) {
+    return (size_t) (((uintptr_t) ptr >> 4) * 0x9E3779B97F4A7C15ULL >> 16) & (trackedCapacity - 1);
+}
+
+static void insert(void* ptr) {
+    size_t i = slot(ptr);
+    while (tracked[i])
+        i = (i + 1) & (trackedCapacity - 1);
+    tracked[i] = ptr;
+    trackedCount++;
+}
+
+static bool grow(void) {
+    void** old = tracked;
+    size_t oldCapacity = trackedCapacity;
+    void** table = calloc(trackedCapacity ? trackedCapacity * 2 : 1024, sizeof(*table));
+    if (!table)
+        return false;
+
+    tracked = table;
+    trackedCapacity = oldCapacity ? oldCapacity * 2 : 1024;
+    trackedCount = 0;
+    for (size_t i = 0; i < oldCapacity; i++)
+        if (old[i])
+            insert(old[i]);
+    free(old);
+    return true;
+}
+
+static void* track(void* ptr) {
+    // Block which can not be tracked is leaked, the same way it is without tracking.
+    if (ptr && tracking && ((trackedCount + 1) * 2 <= trackedCapacity || grow()))
+        insert(ptr);
+    return ptr;
+}
+
+static bool untrack(void* ptr) {
+    size_t i, j, k;
+    if (!ptr || !trackedCount)
+        return false;
+
+    for (i = slot(ptr); tracked[i] != ptr; i = (i + 1) & (trackedCapacity - 1))
+        if (!tracked[i])
+            return false;
+
+    // Following blocks of the same probe sequence are shifted back, lookups stop at the first empty slot.
+    for (j = (i + 1) & (trackedCapacity - 1); tracked[j]; j = (j + 1) & (trackedCapacity - 1)) {
+        k = slot(tracked[j]);
+        if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+            continue;
+        tracked[i] = tracked[j];
+        i = j;
+    }
+    tracked[i] = NULL;
+    trackedCount--;
+    return true;
+}
+
+void* xkbcomp_malloc(size_t size) {
+    return track(malloc(size));
+}
+
+void* xkbcomp_calloc(size_t count, size_t size) {
+    return track(calloc(count, size));
+}
+
+char* xkbcomp_strdup(const char* str) {
+    return track(strdup(str));
+}
+
+// Resized block is tracked if it was tracked before, blocks allocated before the run (i.e. include path array) are kept.
+void* xkbcomp_realloc(void* ptr, size_t size) {
+    bool wasTracked = untrack(ptr);
+    void* result = realloc(ptr, size);
+
+    if (!result) {
+        if (wasTracked && size)
+            track(ptr); // Old block is intact
+        return NULL;
+    }
+
+    if (!ptr || wasTracked)
+        track(result);
+    return result;
+}
+
+// bionic has reallocarray only since API 29.
+void* xkbcomp_reallocarray(void* ptr, size_t count, size_t size) {
+    if (size && count > SIZE_MAX / size) {
+        errno = ENOMEM;
+        return NULL;
+    }
+    return xkbcomp_realloc(ptr, count * size);
+}
+
+void xkbcomp_free(void* ptr) {
+    untrack(ptr);
+    free(ptr);
+}
+
+void xkbcomp_heap_track(void) {
+    tracking = true;
+}
+
+// Table itself is kept, next runs allocate about the same number of blocks.
+void xkbcomp_heap_release(void) {
+    tracking = false;
+    for (size_t i = 0; trackedCount && i < trackedCapacity; i++) {
+        if (tracked[i]) {
+            free(tracked[i]);
+            tracked[i] = NULL;
+            trackedCount--;
+        }
+    }
+}
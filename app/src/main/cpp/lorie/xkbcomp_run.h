@@ -0,0 +1,76 @@
+#pragma once
+
+#include <fcntl.h>
+#include <setjmp.h>
+#include <stdbool.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <unistd.h>
+
+// Defined by patched xkbcomp and X server's xkb/ddxLoad.c.
+extern char* xkbcomp_argv[];
+extern int xkbcomp_argc;
+extern FILE *xkbcomp_input, *xkbcomp_output;
+int xkbcomp_main(int argc, char *argv[]);
+void xkbcomp_cleanup(void);
+
+static __thread jmp_buf* lorie_xkbcomp_exit_jump = NULL; // xkbcomp reports fatal errors with exit()
+
+/* Must be called by exit() override, returns only if xkbcomp is not running in this thread. */
+static inline void lorie_xkbcomp_exit(int code) {
+    if (lorie_xkbcomp_exit_jump)
+        longjmp(*lorie_xkbcomp_exit_jump, code ?: 1);
+}
+
+/*
+ * Runs xkbcomp in X server process, forking server with hundreds of MB of mapped buffers is slow
+ * and the child may be killed by low memory killer. Returns true if compiled keymap was written to `xkm`.
+ * xkbcomp resets its globals and scanner on every run, include path and everything else the run allocated
+ * are freed by xkbcomp_cleanup() even if it exited, only atoms are kept for next runs.
+ */
+static inline bool lorie_xkbcomp_run(const char* source, size_t len, const char* xkm) {
+    char *data = NULL;
+    size_t size = 0;
+    jmp_buf exitJump;
+    int cwd, fd, ret;
+    bool written = false;
+    FILE *in = fmemopen((void*) source, len, "r"), *out = open_memstream(&data, &size);
+
+    if (!in || !out) {
+        if (in)
+            fclose(in);
+        if (out)
+            fclose(out);
+        free(data);
+        return false;
+    }
+
+    // xkbcomp changes working directory to XKB root.
+    cwd = open(".", O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    xkbcomp_input = in;
+    xkbcomp_output = out;
+    lorie_xkbcomp_exit_jump = &exitJump;
+    if (!(ret = setjmp(exitJump)))
+        ret = xkbcomp_main(xkbcomp_argc, xkbcomp_argv);
+    lorie_xkbcomp_exit_jump = NULL;
+    xkbcomp_cleanup();
+
+    if (cwd != -1) {
+        fchdir(cwd);
+        close(cwd);
+    }
+
+    // xkbcomp closes output stream only if it started writing keymap, input stream is never closed by it.
+    if (xkbcomp_output)
+        fclose(xkbcomp_output);
+    fclose(in);
+    xkbcomp_input = xkbcomp_output = NULL;
+
+    if (!ret && size && (fd = open(xkm, O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0600)) != -1) {
+        written = write(fd, data, size) == (ssize_t) size;
+        written = !close(fd) && written;
+    }
+
+    free(data);
+    return written;
+}
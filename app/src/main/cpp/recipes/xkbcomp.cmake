@@ -50,6 +50,7 @@ add_library(xkbcomp STATIC
         "xkbcomp/xkbparse.y"
         "xkbcomp/xkbpath.c"
         "xkbcomp/xkbscan.c"
+        "lorie/xkbcomp_heap.c"
         "${CMAKE_CURRENT_BINARY_DIR}/ks_tables.h"
         "${CMAKE_CURRENT_BINARY_DIR}/xkbparse.c")
 target_include_directories(xkbcomp
@@ -66,6 +67,11 @@ target_include_directories(xkbcomp
 target_link_libraries(xkbcomp PRIVATE xorgproto)
 target_link_options(xkbcomp PRIVATE "-fPIE" "-fPIC")
 target_compile_options(xkbcomp PRIVATE ${common_compile_options} "-fvisibility=hidden" "-DHAVE_STRCASECMP" "-DHAVE_STRDUP" "-DDFLT_XKB_CONFIG_ROOT=\"/\"" "-DHAVE_SYS_IOCTL_H" "-fPIE" "-fPIC" "-DPACKAGE_VERSION=\"2.70\"" "-Wno-shadow")
+# Everything in-process xkbcomp allocates is freed after the run (see lorie/xkbcomp_heap.c) except atoms and keysym database.
+get_target_property(xkbcomp_tracked_sources xkbcomp SOURCES)
+list(REMOVE_ITEM xkbcomp_tracked_sources "lorie/xkbcomp_heap.c" "libx11/src/Quarks.c" "libx11/src/StrKeysym.c" "libx11/src/Xrm.c" "libxkbfile/src/xkbatom.c")
+set_source_files_properties(${xkbcomp_tracked_sources} PROPERTIES COMPILE_DEFINITIONS
+        "malloc=xkbcomp_malloc;calloc=xkbcomp_calloc;realloc=xkbcomp_realloc;reallocarray=xkbcomp_reallocarray;strdup=xkbcomp_strdup;free=xkbcomp_free")
 target_apply_patch(xkbcomp "${CMAKE_CURRENT_SOURCE_DIR}/xkbcomp" "${CMAKE_CURRENT_SOURCE_DIR}/patches/xkbcomp.patch")
 target_apply_patch(xkbfile "${CMAKE_CURRENT_SOURCE_DIR}/libxkbfile" "${CMAKE_CURRENT_SOURCE_DIR}/patches/xkbfile.patch")
 target_apply_patch(X11 "${CMAKE_CURRENT_SOURCE_DIR}/libx11" "${CMAKE_CURRENT_SOURCE_DIR}/patches/x11.patch")
@@ -52,6 +52,7 @@ import androidx.core.math.MathUtils;
 import com.termux.x11.input.InputStub;
 import com.termux.x11.input.TouchInputHandler;
 
+import java.nio.ByteBuffer;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.function.Consumer;
@@ -809,6 +810,7 @@ public class LorieView extends SurfaceView implements InputStub {
     @FastNative static native void sendWindowChange(int width, int height, int framerate, String name);
     @FastNative public native void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative);
     @FastNative public native void sendTouchEvent(int action, int id, int x, int y);
+    @FastNative public native void flushEvents(ByteBuffer events, int count);
     @FastNative public native void sendStylusEvent(float x, float y, int pressure, int tiltX, int tiltY, int orientation, int buttons, boolean eraser, boolean mouseMode);
     @FastNative static public native void requestStylusEnabled(boolean enabled);
     public boolean sendKeyEvent(int scanCode, int keyCode, boolean keyDown) {
@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
 import android.content.res.Configuration;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -65,6 +66,7 @@ import androidx.viewpager.widget.ViewPager;
 
 import com.termux.x11.input.InputEventSender;
 import com.termux.x11.input.InputStub;
+import com.termux.x11.input.InputTrace;
 import com.termux.x11.input.TouchInputHandler;
 import com.termux.x11.utils.FullscreenWorkaround;
 import com.termux.x11.utils.KeyInterceptor;
@@ -72,6 +74,11 @@ import com.termux.x11.utils.SamsungDexUtils;
 import com.termux.x11.utils.TermuxX11ExtraKeys;
 import com.termux.x11.utils.X11ToolbarViewPager;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 
@@ -122,6 +129,7 @@ public class MainActivity extends AppCompatActivity {
     
     public static final String ACTION_STOP = "com.termux.x11.ACTION_STOP";
     public static final String ACTION_CUSTOM = "com.termux.x11.ACTION_CUSTOM";
+    public static final String ACTION_INPUT_TRACE = "com.termux.x11.ACTION_INPUT_TRACE";
 
     public static Handler handler = new Handler();
     FrameLayout frm;
@@ -138,6 +146,7 @@ public class MainActivity extends AppCompatActivity {
     private boolean filterOutWinKey = false;
     boolean useTermuxEKBarBehaviour = false;
     private boolean isInPictureInPictureMode = false;
+    private OutputStream mInputTrace;
 
     public static Prefs prefs = null;
 
@@ -165,6 +174,8 @@ public class MainActivity extends AppCompatActivity {
             } else if (ACTION_CUSTOM.equals(intent.getAction())) {
                 android.util.Log.d("ACTION_CUSTOM", "action " + intent.getStringExtra("what"));
                 mInputHandler.extractUserActionFromPreferences(prefs, intent.getStringExtra("what")).accept(0, true);
+            } else if (ACTION_INPUT_TRACE.equals(intent.getAction())) {
+                setInputTraceRecording(intent.getBooleanExtra("record", false));
             }
         }
     };
@@ -270,6 +281,7 @@ public class MainActivity extends AppCompatActivity {
             addAction(ACTION_PREFERENCES_CHANGED);
             addAction(ACTION_STOP);
             addAction(ACTION_CUSTOM);
+            addAction(ACTION_INPUT_TRACE);
         }}, SDK_INT >= VERSION_CODES.TIRAMISU ? RECEIVER_EXPORTED : 0);
 
         inputMethodManager = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
@@ -305,6 +317,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         unregisterReceiver(receiver);
+        setInputTraceRecording(false);
         super.onDestroy();
     }
 
@@ -687,6 +700,31 @@ public class MainActivity extends AppCompatActivity {
         super.onPause();
     }
 
+    /**
+     * Records events reaching input handler to input.trace in external files dir of the app, debuggable builds only.
+     * {@code adb shell am broadcast -a com.termux.x11.ACTION_INPUT_TRACE --ez record true} starts recording, {@code false} stops it.
+     * The trace can be replayed with {@link InputTrace#replay}.
+     */
+    private void setInputTraceRecording(boolean record) {
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0 || mInputHandler == null)
+            return;
+
+        mInputHandler.setTraceRecorder(null);
+        try {
+            if (mInputTrace != null)
+                mInputTrace.close();
+            mInputTrace = null;
+            if (record) {
+                File file = new File(getExternalFilesDir(null), "input.trace");
+                mInputTrace = new BufferedOutputStream(new FileOutputStream(file));
+                mInputHandler.setTraceRecorder(new InputTrace.Recorder(mInputTrace));
+                Log.i("MainActivity", "Recording input trace to " + file);
+            }
+        } catch (IOException e) {
+            Log.e("MainActivity", "Failed to record input trace", e);
+        }
+    }
+
     public LorieView getLorieView() {
         return findViewById(R.id.lorieView);
     }
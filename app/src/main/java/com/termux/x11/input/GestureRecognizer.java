@@ -0,0 +1,569 @@
+package com.termux.x11.input;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import android.view.ViewConfiguration;
+
+import androidx.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.ref.WeakReference;
+
+/**
+ * Classifies finger gestures in a single pass over the MotionEvent stream: tap, long-press,
+ * double-tap, one finger drag, two-finger scroll, pinch, three finger swipe and two-finger swipes
+ * classified by the system touchpad driver.
+ *
+ * <p>Every event moves the recognizer between the states of {@link State}, transitions happen
+ * only in {@link #onTouchEvent} and in the timer callback. At most one timer message (long-press
+ * or delayed tap) is pending at any time. Events are not retained and nothing is allocated per event.
+ */
+public class GestureRecognizer {
+    /** The listener for receiving notifications of recognized gestures. */
+    public interface Listener {
+        /**
+         * Notified as soon as the fingers of a tap go up, before {@link #onTap}. It is the place to move the cursor,
+         * since {@link #onTap} of a one finger tap is delayed if {@link #waitForDoubleTap} is set.
+         *
+         * @param pointerCount The number of fingers that were tapped.
+         * @param x The x coordinate of the initial finger tapped.
+         * @param y The y coordinate of the initial finger tapped.
+         */
+        void onTapUp(int pointerCount, float x, float y);
+
+        /**
+         * Notified when a tap event occurs.
+         *
+         * @param pointerCount The number of fingers that were tapped.
+         * @param x The x coordinate of the initial finger tapped.
+         * @param y The y coordinate of the initial finger tapped.
+         */
+        void onTap(int pointerCount, float x, float y);
+
+        /**
+         * Notified when a long-touch event occurs.
+         *
+         * @param pointerCount The number of fingers held down.
+         * @param x The x coordinate of the initial finger tapped.
+         * @param y The y coordinate of the initial finger tapped.
+         */
+        void onLongPress(int pointerCount, float x, float y);
+
+        /** Notified when the finger goes down for the second time of a double-tap. */
+        void onDoubleTapDown(float x, float y);
+
+        /**
+         * Notified when the single finger moves. During a double-tap it is notified without waiting for the touch slop.
+         *
+         * @param x The current x coordinate of the finger.
+         * @param y The current y coordinate of the finger.
+         * @param distanceX The distance along the x-axis since the previous notification, previous minus current.
+         * @param distanceY The distance along the y-axis since the previous notification, previous minus current.
+         */
+        void onDrag(float x, float y, float distanceX, float distanceY);
+
+        /**
+         * Notified when two fingers move in the same direction.
+         *
+         * @param x The x coordinate of the initial finger of the gesture.
+         * @param y The y coordinate of the initial finger of the gesture.
+         * @param distanceX The distance the focus point moved along the x-axis, previous minus current.
+         * @param distanceY The distance the focus point moved along the y-axis, previous minus current.
+         */
+        void onScroll(float x, float y, float distanceX, float distanceY);
+
+        /** Notified once per gesture when three or more fingers moved far enough vertically. */
+        void onSwipe(boolean down);
+
+        /** Notified when a touchpad reports a two-finger swipe classified by the system, current minus previous. */
+        void onTrackpadScroll(float deltaX, float deltaY);
+    }
+
+    @IntDef({State.IDLE, State.POSSIBLE_TAP, State.HOLD, State.DRAG, State.TWO_FINGER, State.SCROLL, State.PINCH, State.SWIPE, State.IGNORE, State.TRACKPAD_SCROLL})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface State {
+        /** No fingers are down. */
+        int IDLE = 0;
+        /** Fingers are down and did not move beyond the touch slop. */
+        int POSSIBLE_TAP = 1;
+        /** Same as POSSIBLE_TAP, but long-press was reported or tap was cancelled, so no tap will follow. */
+        int HOLD = 2;
+        /** Single finger moves, reported with {@link Listener#onDrag}. */
+        int DRAG = 3;
+        /** Two fingers are moving, but not both of them left the touch slop yet. */
+        int TWO_FINGER = 4;
+        /** Two fingers are moving in the same direction, reported with {@link Listener#onScroll}. */
+        int SCROLL = 5;
+        /** Two fingers are moving in opposite directions. Not reported, the desktop is not zoomed locally. */
+        int PINCH = 6;
+        /** Three or more fingers are moving, motion along y-axis is accumulated until it is reported with {@link Listener#onSwipe}. */
+        int SWIPE = 7;
+        /** Motion is ignored until all fingers are up. Entered after a completed swipe or scroll. */
+        int IGNORE = 8;
+        /** Events classified as touchpad two-finger swipe, reported with {@link Listener#onTrackpadScroll}. */
+        int TRACKPAD_SCROLL = 9;
+    }
+
+    private static final int MSG_LONG_PRESS = 1;
+    private static final int MSG_TAP = 2;
+
+    /** Minimal time between the first tap going up and the second going down, same as android.view.GestureDetector uses. */
+    private static final int DOUBLE_TAP_MIN_TIME = 40;
+
+    /** MotionEvent pointer IDs are always in range 0..31. */
+    private static final int MAX_POINTER_ID = 32;
+
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final int mTouchSlopSquare;
+    private final int mDoubleTapSlopSquare;
+    private final int mLongPressTimeout;
+    private final int mDoubleTapTimeout;
+    private final float mSwipeThreshold;
+
+    /**
+     * When set, {@link Listener#onTap} of one finger taps is notified after the double-tap timeout, and not notified
+     * if it turns out to be a double-tap. {@link Listener#onTapUp} is not delayed.
+     */
+    public boolean waitForDoubleTap = false;
+
+    private @State int mState = State.IDLE;
+
+    /**
+     * Location of each pointer (by pointer ID) when it went down or when the number of pointers
+     * last changed, used for touch slop and swipe/pinch disambiguation. Bits of mTrackedPointers
+     * tell which entries are valid.
+     */
+    private final float[] mInitialX = new float[MAX_POINTER_ID];
+    private final float[] mInitialY = new float[MAX_POINTER_ID];
+    private int mTrackedPointers;
+
+    /** The maximum number of fingers seen in the gesture. */
+    private int mPointerCount;
+
+    /** Location and time of the first finger down in the gesture. */
+    private float mDownX, mDownY;
+
+    /** Location of the focus point (or of the first pointer in TRACKPAD_SCROLL state) when motion was last reported. */
+    private float mLastFocusX, mLastFocusY;
+
+    /** Set when the current gesture is the second tap of a double-tap. */
+    private boolean mIsDoubleTapping;
+
+    /** The previous gesture was a one finger tap which can begin a double-tap. */
+    private boolean mHasPreviousTap;
+    private float mPreviousTapX, mPreviousTapY;
+    private long mPreviousTapUpTime;
+
+    /** Vertical motion of the three finger swipe. */
+    private float mTotalMotionY;
+
+    /** @noinspection NullableProblems*/
+    // This static inner class holds a WeakReference to the outer object, to avoid triggering the
+    // lint HandlerLeak warning.
+    private static class EventHandler extends Handler {
+        private final WeakReference<GestureRecognizer> mRecognizer;
+
+        public EventHandler(GestureRecognizer recognizer) {
+            super(Looper.getMainLooper());
+            mRecognizer = new WeakReference<>(recognizer);
+        }
+
+        @Override
+        public void handleMessage(Message message) {
+            GestureRecognizer recognizer = mRecognizer.get();
+            if (recognizer != null)
+                recognizer.onTimer(message.what);
+        }
+    }
+
+    public GestureRecognizer(Context context, Listener listener) {
+        mListener = listener;
+        mHandler = new EventHandler(this);
+        ViewConfiguration config = ViewConfiguration.get(context);
+        int touchSlop = config.getScaledTouchSlop();
+        int doubleTapSlop = config.getScaledDoubleTapSlop();
+        mTouchSlopSquare = touchSlop * touchSlop;
+        mDoubleTapSlopSquare = doubleTapSlop * doubleTapSlop;
+        mLongPressTimeout = ViewConfiguration.getLongPressTimeout();
+        mDoubleTapTimeout = ViewConfiguration.getDoubleTapTimeout();
+        mSwipeThreshold = 40 * context.getResources().getDisplayMetrics().density;
+    }
+
+    public @State int getState() {
+        return mState;
+    }
+
+    /** Returns whether the event is a part of touchpad two-finger swipe classified by the system. */
+    @SuppressLint({"WrongConstant", "InlinedApi"})
+    public static boolean isTrackpadScrollEvent(MotionEvent e) {
+        // Accept mouse+finger (OnePlus/DeX) or real touchpad + classified two-finger swipe
+        boolean looksLikeTouchpad =
+                ((e.getSource() & InputDevice.SOURCE_TOUCHPAD) == InputDevice.SOURCE_TOUCHPAD) ||
+                (((e.getSource() & InputDevice.SOURCE_MOUSE) == InputDevice.SOURCE_MOUSE) &&
+                        e.getToolType(e.getActionIndex()) == MotionEvent.TOOL_TYPE_FINGER);
+
+        if (!looksLikeTouchpad) return false;
+
+        if ((e.getFlags() & 0x14000000) != 0) { // vendor "generated gesture" flags
+            return true;
+        }
+        // Android 10+: official classification
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                e.getClassification() == MotionEvent.CLASSIFICATION_TWO_FINGER_SWIPE);
+    }
+
+    /** Analyzes the finger event and notifies the listener if a gesture was recognized. */
+    public void onTouchEvent(MotionEvent event) {
+        if (isTrackpadScrollEvent(event)) {
+            onTrackpadScrollEvent(event);
+            return;
+        }
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                onDown(event);
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                onPointerDown(event);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                onMove(event);
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                onPointerUp(event);
+                break;
+            case MotionEvent.ACTION_UP:
+                onUp(event);
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                // The gesture was taken away, so a tap waiting for double-tap must not be reported nor begin a double-tap.
+                cancelTimer(MSG_LONG_PRESS);
+                cancelTimer(MSG_TAP);
+                mHasPreviousTap = false;
+                mIsDoubleTapping = false;
+                mState = State.IDLE;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Processes a motion of captured touchpad which is not sent through {@link #onTouchEvent}.
+     * It only cancels pending tap and long-press if any finger moved beyond the touch slop.
+     */
+    public void onCapturedMotionEvent(MotionEvent event) {
+        if (mState == State.POSSIBLE_TAP && movedBeyondSlop(event)) {
+            cancelTimer(MSG_LONG_PRESS);
+            mState = State.HOLD;
+        }
+    }
+
+    private void onTrackpadScrollEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                cancelTimer(MSG_LONG_PRESS);
+                mState = State.TRACKPAD_SCROLL;
+                mLastFocusX = event.getX();
+                mLastFocusY = event.getY();
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (mState != State.TRACKPAD_SCROLL) { // vendor stacks may skip DOWN
+                    cancelTimer(MSG_LONG_PRESS);
+                    mState = State.TRACKPAD_SCROLL;
+                } else
+                    mListener.onTrackpadScroll(event.getX() - mLastFocusX, event.getY() - mLastFocusY);
+                mLastFocusX = event.getX();
+                mLastFocusY = event.getY();
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mState = State.IDLE;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onDown(MotionEvent event) {
+        float x = event.getX(), y = event.getY();
+        long time = event.getEventTime();
+
+        mIsDoubleTapping = mHasPreviousTap
+                && time - mPreviousTapUpTime <= mDoubleTapTimeout
+                && time - mPreviousTapUpTime >= DOUBLE_TAP_MIN_TIME
+                && square(x - mPreviousTapX, y - mPreviousTapY) < mDoubleTapSlopSquare;
+        mHasPreviousTap = false;
+
+        if (mHandler.hasMessages(MSG_TAP)) {
+            // The tap waiting for double-tap is dropped if it was the first tap of the double-tap.
+            cancelTimer(MSG_TAP);
+            if (!mIsDoubleTapping)
+                mListener.onTap(1, mPreviousTapX, mPreviousTapY);
+        }
+
+        mState = State.POSSIBLE_TAP;
+        mTrackedPointers = 0;
+        mPointerCount = 1;
+        mDownX = x;
+        mDownY = y;
+        mLastFocusX = x;
+        mLastFocusY = y;
+        trackPointer(event.getPointerId(0), x, y);
+        mHandler.sendEmptyMessageDelayed(MSG_LONG_PRESS, mLongPressTimeout);
+
+        if (mIsDoubleTapping)
+            mListener.onDoubleTapDown(x, y);
+    }
+
+    private void onPointerDown(MotionEvent event) {
+        int index = event.getActionIndex();
+        int pointerCount = event.getPointerCount();
+        mIsDoubleTapping = false;
+        updateFocus(event, -1);
+        switch (mState) {
+            case State.POSSIBLE_TAP:
+            case State.HOLD:
+                trackPointer(event.getPointerId(index), event.getX(index), event.getY(index));
+                mPointerCount = Math.max(mPointerCount, pointerCount);
+                break;
+            case State.DRAG:
+            case State.TWO_FINGER:
+            case State.PINCH:
+            case State.SCROLL:
+            case State.SWIPE:
+                trackPointers(event, -1);
+                startMotion(pointerCount);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onPointerUp(MotionEvent event) {
+        int index = event.getActionIndex();
+        int pointerCount = event.getPointerCount() - 1;
+        updateFocus(event, index);
+        switch (mState) {
+            case State.POSSIBLE_TAP:
+            case State.HOLD:
+                cancelTimer(MSG_LONG_PRESS);
+                untrackPointer(event.getPointerId(index));
+                break;
+            case State.SCROLL:
+                // The remaining finger should not move the cursor after scrolling.
+                mState = State.IGNORE;
+                break;
+            case State.TWO_FINGER:
+            case State.PINCH:
+            case State.SWIPE:
+                trackPointers(event, index);
+                startMotion(pointerCount);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onMove(MotionEvent event) {
+        switch (mState) {
+            case State.POSSIBLE_TAP:
+            case State.HOLD:
+                if (mIsDoubleTapping && event.getPointerCount() == 1)
+                    reportMotion(event);
+                if (!movedBeyondSlop(event))
+                    return;
+                cancelTimer(MSG_LONG_PRESS);
+                mIsDoubleTapping = false;
+                startMotion(event.getPointerCount());
+                break;
+            case State.TWO_FINGER:
+                if (event.getPointerCount() == 2)
+                    classifyTwoFingerMotion(event);
+                break;
+            default:
+                break;
+        }
+
+        switch (mState) {
+            case State.DRAG:
+            case State.SCROLL:
+            case State.SWIPE:
+            case State.TWO_FINGER:
+            case State.PINCH:
+                reportMotion(event);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onUp(MotionEvent event) {
+        cancelTimer(MSG_LONG_PRESS);
+        if (mState == State.POSSIBLE_TAP) {
+            if (mPointerCount == 1 && !mIsDoubleTapping) {
+                mHasPreviousTap = true;
+                mPreviousTapX = mDownX;
+                mPreviousTapY = mDownY;
+                mPreviousTapUpTime = event.getEventTime();
+            }
+
+            mListener.onTapUp(mPointerCount, mDownX, mDownY);
+            if (mPointerCount == 1 && waitForDoubleTap)
+                mHandler.sendEmptyMessageDelayed(MSG_TAP, mDoubleTapTimeout);
+            else
+                mListener.onTap(mPointerCount, mDownX, mDownY);
+        }
+        mIsDoubleTapping = false;
+        mState = State.IDLE;
+    }
+
+    private void onTimer(int what) {
+        if (what == MSG_LONG_PRESS && mState == State.POSSIBLE_TAP) {
+            mState = State.HOLD;
+            mListener.onLongPress(mPointerCount, mDownX, mDownY);
+        } else if (what == MSG_TAP)
+            mListener.onTap(1, mPreviousTapX, mPreviousTapY);
+    }
+
+    /** Enters the motion state matching the number of fingers. */
+    private void startMotion(int pointerCount) {
+        if (pointerCount == 1)
+            mState = State.DRAG;
+        else if (pointerCount == 2)
+            mState = State.TWO_FINGER;
+        else {
+            mState = State.SWIPE;
+            mTotalMotionY = 0;
+        }
+    }
+
+    /**
+     * Once both fingers have moved beyond the touch slop the gesture is a scroll if the fingers
+     * have moved in the same direction (the scalar product of the direction vectors is positive),
+     * and a pinch otherwise. One finger might be held stationary whilst the other finger is moved
+     * a long distance, it stays unclassified in this case.
+     */
+    private void classifyTwoFingerMotion(MotionEvent event) {
+        int id0 = event.getPointerId(0), id1 = event.getPointerId(1);
+        if (!isTracked(id0) || !isTracked(id1)) {
+            trackPointers(event, -1);
+            return;
+        }
+
+        float deltaX0 = event.getX(0) - mInitialX[id0], deltaY0 = event.getY(0) - mInitialY[id0];
+        float deltaX1 = event.getX(1) - mInitialX[id1], deltaY1 = event.getY(1) - mInitialY[id1];
+        if (square(deltaX0, deltaY0) > mTouchSlopSquare && square(deltaX1, deltaY1) > mTouchSlopSquare)
+            mState = deltaX0 * deltaX1 + deltaY0 * deltaY1 > 0 ? State.SCROLL : State.PINCH;
+    }
+
+    /** Reports the motion of the focus point since the previous report to the listener of current state. */
+    private void reportMotion(MotionEvent event) {
+        float lastFocusX = mLastFocusX, lastFocusY = mLastFocusY;
+        updateFocus(event, -1);
+        float distanceX = lastFocusX - mLastFocusX, distanceY = lastFocusY - mLastFocusY;
+        if (Math.abs(distanceX) < 1 && Math.abs(distanceY) < 1) {
+            // Accumulate small movements, as android.view.GestureDetector does.
+            mLastFocusX = lastFocusX;
+            mLastFocusY = lastFocusY;
+            return;
+        }
+
+        switch (mState) {
+            case State.DRAG:
+            case State.POSSIBLE_TAP:
+            case State.HOLD:
+                mListener.onDrag(event.getX(), event.getY(), distanceX, distanceY);
+                break;
+            case State.SCROLL:
+                mListener.onScroll(mDownX, mDownY, distanceX, distanceY);
+                break;
+            case State.SWIPE:
+                mTotalMotionY -= distanceY;
+                if (Math.abs(mTotalMotionY) > mSwipeThreshold) {
+                    mListener.onSwipe(mTotalMotionY > 0);
+                    mState = State.IGNORE;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Sets the focus point to the average location of all pointers except the one with the given index. */
+    private void updateFocus(MotionEvent event, int skipIndex) {
+        float sumX = 0, sumY = 0;
+        int count = 0;
+        for (int i = 0; i < event.getPointerCount(); i++) {
+            if (i == skipIndex)
+                continue;
+            sumX += event.getX(i);
+            sumY += event.getY(i);
+            count++;
+        }
+        if (count == 0)
+            return;
+        mLastFocusX = sumX / count;
+        mLastFocusY = sumY / count;
+    }
+
+    /** Returns whether any pointer moved beyond the touch slop. Pointers without a DOWN event are tracked from this event. */
+    private boolean movedBeyondSlop(MotionEvent event) {
+        for (int i = 0; i < event.getPointerCount(); i++) {
+            int pointerId = event.getPointerId(i);
+            float x = event.getX(i), y = event.getY(i);
+            if (pointerId < 0 || pointerId >= MAX_POINTER_ID)
+                continue;
+            if (!isTracked(pointerId)) {
+                // There was no corresponding DOWN event, so add it. This is an inconsistency
+                // which shouldn't normally occur.
+                trackPointer(pointerId, x, y);
+                continue;
+            }
+            if (square(x - mInitialX[pointerId], y - mInitialY[pointerId]) > mTouchSlopSquare)
+                return true;
+        }
+        return false;
+    }
+
+    /** Stores current locations of all pointers except the one with the given index as initial ones. */
+    private void trackPointers(MotionEvent event, int skipIndex) {
+        mTrackedPointers = 0;
+        for (int i = 0; i < event.getPointerCount(); i++)
+            if (i != skipIndex)
+                trackPointer(event.getPointerId(i), event.getX(i), event.getY(i));
+    }
+
+    private void trackPointer(int pointerId, float x, float y) {
+        if (pointerId < 0 || pointerId >= MAX_POINTER_ID)
+            return;
+        mTrackedPointers |= 1 << pointerId;
+        mInitialX[pointerId] = x;
+        mInitialY[pointerId] = y;
+    }
+
+    private void untrackPointer(int pointerId) {
+        if (pointerId >= 0 && pointerId < MAX_POINTER_ID)
+            mTrackedPointers &= ~(1 << pointerId);
+    }
+
+    private boolean isTracked(int pointerId) {
+        return pointerId >= 0 && pointerId < MAX_POINTER_ID && (mTrackedPointers & (1 << pointerId)) != 0;
+    }
+
+    private void cancelTimer(int what) {
+        mHandler.removeMessages(what);
+    }
+
+    private static float square(float x, float y) {
+        return x * x + y * y;
+    }
+}
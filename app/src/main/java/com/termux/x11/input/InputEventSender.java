@@ -10,14 +10,15 @@ import static androidx.core.math.MathUtils.clamp;
 import static com.termux.x11.input.InputStub.*;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
-import android.graphics.PointF;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
 import com.termux.x11.MainActivity;
 
-import java.util.List;
-import java.util.TreeSet;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
 
 /**
  * A set of functions to send users' activities, which are represented by Android classes, to
@@ -28,8 +29,22 @@ public final class InputEventSender {
     private static final int XI_TouchUpdate = 19;
     private static final int XI_TouchEnd = 20;
 
+    // Must match sizeof(lorieEvent) and eventType in lorie.h.
+    static final int EVENT_SIZE = 24;
+    static final int EVENT_TOUCH = 5;
+    static final int EVENT_MOUSE = 6;
+    static final int EVENT_STYLUS = 8;
+    private static final int MAX_BATCHED_EVENTS = 256;
+
     private final InputStub mInjector;
 
+    /** Events encoded in native lorieEvent layout, waiting to be sent with {@link #flushEvents()}. */
+    private final ByteBuffer mEvents = ByteBuffer.allocateDirect(EVENT_SIZE * MAX_BATCHED_EVENTS).order(ByteOrder.nativeOrder());
+    private int mEventCount = 0;
+
+    /** Time of the MotionEvent being sent in microseconds, see lorieEventTime in lorie.h. */
+    private int mTouchEventTime = 0;
+
     public boolean tapToMove = false;
     public boolean preferScancodes = false;
     public boolean pointerCapture = false;
@@ -39,62 +54,141 @@ public final class InputEventSender {
     public boolean pauseKeyInterceptingWithEsc = false;
     public boolean stylusIsMouse = false;
     public boolean stylusButtonContactModifierMode = false;
+    public boolean coalesceRelativeMotion = false;
+    /** Send every historical sample of touch and stylus MotionEvents instead of the latest one only. */
+    public boolean forwardHistoricalSamples = false;
+
+    /**
+     * Relative motion accumulated since the last frame when coalesceRelativeMotion is set.
+     * Only whole pixels are sent, the fractional remainder is kept for the next frame.
+     */
+    private float mPendingDx, mPendingDy;
+    private boolean mFrameCallbackPosted = false;
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> {
+        mFrameCallbackPosted = false;
+        queuePendingMotion();
+        flushEvents();
+    };
 
     /** Set of pressed keys for which we've sent TextEvent. */
-    private final TreeSet<Integer> mPressedTextKeys;
-    private final TreeSet<Integer> mPressedKeys;
+    private final BitSet mPressedTextKeys = new BitSet(KeyEvent.getMaxKeyCode() + 1);
+    private final BitSet mPressedKeys = new BitSet(KeyEvent.getMaxKeyCode() + 1);
+
+    /** Reusable buffers for UTF-8 encoding of a single char, indexed by encoded length. */
+    private final byte[][] mUtf8Char = { null, new byte[1], new byte[2], new byte[3] };
 
     public InputEventSender(InputStub injector) {
         if (injector == null)
             throw new NullPointerException();
         mInjector = injector;
-        mPressedTextKeys = new TreeSet<>();
-        mPressedKeys = new TreeSet<>();
     }
 
-    private static final List<Integer> buttons = List.of(BUTTON_UNDEFINED, BUTTON_LEFT, BUTTON_MIDDLE, BUTTON_RIGHT);
-    public void sendMouseEvent(PointF pos, int button, boolean down, boolean relative) {
-        if (!buttons.contains(button))
+    private static boolean isValidButton(int button) {
+        return button >= BUTTON_UNDEFINED && button <= BUTTON_RIGHT;
+    }
+
+    public void sendMouseEvent(float x, float y, int button, boolean down, boolean relative) {
+        if (!isValidButton(button))
             return;
-        mInjector.sendMouseEvent(pos != null ? (int) pos.x : 0, pos != null ? (int) pos.y : 0, button, down, relative);
+        sendPendingMotion();
+        mInjector.sendMouseEvent((int) x, (int) y, button, down, relative);
     }
 
-    public void sendStylusEvent(float x, float y, int pressure, int tiltX, int tiltY, int orientation, int buttons, boolean eraser, boolean mouse) {
-        mInjector.sendStylusEvent(x, y, pressure, tiltX, tiltY, orientation, buttons, eraser, mouse);
-        android.util.Log.d("STYLUS_EVENT", "transformed x " + x + " y " + y + " pressure " + pressure + " tiltX " + tiltX + " tiltY " + tiltY + " orientation " + orientation + " buttons " + buttons + " eraser " + eraser + " mouseMode " + mouse);
+    /** Queues stylus event, it will be sent with the next {@link #flushEvents()}. */
+    public void queueStylusEvent(float x, float y, int pressure, int tiltX, int tiltY, int orientation, int buttons, boolean eraser, boolean mouse) {
+        queuePendingMotion();
+        int offset = nextEvent(EVENT_STYLUS);
+        mEvents.put(offset + 1, (byte) buttons);
+        mEvents.put(offset + 2, (byte) (eraser ? 1 : 0));
+        mEvents.put(offset + 3, (byte) (mouse ? 1 : 0));
+        mEvents.putFloat(offset + 4, x);
+        mEvents.putFloat(offset + 8, y);
+        mEvents.putShort(offset + 12, (short) pressure);
+        mEvents.put(offset + 14, (byte) tiltX);
+        mEvents.put(offset + 15, (byte) tiltY);
+        mEvents.putShort(offset + 16, (short) orientation);
+        mEvents.putInt(offset + 20, mTouchEventTime);
+        if (android.util.Log.isLoggable("STYLUS_EVENT", android.util.Log.DEBUG)) // Avoid building the string for every event
+            android.util.Log.d("STYLUS_EVENT", "transformed x " + x + " y " + y + " pressure " + pressure + " tiltX " + tiltX + " tiltY " + tiltY + " orientation " + orientation + " buttons " + buttons + " eraser " + eraser + " mouseMode " + mouse);
     }
 
     public void sendMouseDown(int button, boolean relative) {
-        if (!buttons.contains(button)) 
+        if (!isValidButton(button))
             return;
+        sendPendingMotion();
         mInjector.sendMouseEvent(0, 0, button, true, relative);
     }
 
     public void sendMouseUp(int button, boolean relative) {
-        if (!buttons.contains(button))
+        if (!isValidButton(button))
             return;
+        sendPendingMotion();
         mInjector.sendMouseEvent(0, 0, button, false, relative);
     }
 
     public void sendMouseClick(int button, boolean relative) {
-        if (!buttons.contains(button))
+        if (!isValidButton(button))
             return;
-        mInjector.sendMouseEvent(0, 0, button, true, relative);
-        mInjector.sendMouseEvent(0, 0, button, false, relative);
+        queuePendingMotion();
+        queueMouseEvent(0, 0, button, true, relative);
+        queueMouseEvent(0, 0, button, false, relative);
+        flushEvents();
     }
 
     public void sendCursorMove(float x, float y, boolean relative) {
+        if (relative && coalesceRelativeMotion) {
+            mPendingDx += x;
+            mPendingDy += y;
+            if (!mFrameCallbackPosted) {
+                mFrameCallbackPosted = true;
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
+            }
+            return;
+        }
+
+        sendPendingMotion();
         mInjector.sendMouseEvent(x, y, BUTTON_UNDEFINED, false, relative);
     }
 
     public void sendMouseWheelEvent(float distanceX, float distanceY) {
+        sendPendingMotion();
         mInjector.sendMouseWheelEvent(distanceX, distanceY);
     }
 
-    final boolean[] pointers = new boolean[10];
+    /** Queues whole pixels of coalesced relative motion, if any. */
+    private void queuePendingMotion() {
+        int dx = (int) mPendingDx, dy = (int) mPendingDy;
+        if (dx == 0 && dy == 0)
+            return;
+
+        mPendingDx -= dx;
+        mPendingDy -= dy;
+        queueMouseEvent(dx, dy, BUTTON_UNDEFINED, false, true);
+    }
+
+    /**
+     * Sends coalesced relative motion right away, so events which are sent right after it
+     * (button transitions in the first place) are not reordered with the motion preceding them.
+     */
+    private void sendPendingMotion() {
+        queuePendingMotion();
+        flushEvents();
+    }
+
+    /** Must match NTOUCHPOINTS of lorieTouchProc in InitInput.c. */
+    private static final int MAX_TOUCH_POINTS = 20;
+
+    /** Bitmask of pointer ids for which XI_TouchBegin was sent and XI_TouchEnd was not. */
+    private int mActiveTouches = 0;
+    /** Last coordinates sent for every active pointer id, used to drop redundant updates. */
+    private final int[] mTouchX = new int[MAX_TOUCH_POINTS];
+    private final int[] mTouchY = new int[MAX_TOUCH_POINTS];
+
     /**
      * Extracts the touch point data from a MotionEvent, converts each point into a marshallable
      * object and passes the set of points to the JNI layer to be transmitted to the remote host.
+     * Only real state transitions of every pointer are sent: XI_TouchBegin when pointer goes down,
+     * XI_TouchUpdate when its clamped position changes and XI_TouchEnd when it goes up.
      *
      * @param event The event to send to the remote host for injection.  NOTE: This object must be
      *              updated to represent the remote machine's coordinate system before calling this
@@ -102,41 +196,158 @@ public final class InputEventSender {
      */
     public void sendTouchEvent(MotionEvent event, RenderData renderData) {
         int action = event.getActionMasked();
+        int pointerCount = event.getPointerCount();
+        queuePendingMotion();
+        mTouchEventTime = (int) (event.getEventTime() * 1000);
+
+        switch (action) {
+            case MotionEvent.ACTION_DOWN:
+            case ACTION_POINTER_DOWN: {
+                int index = event.getActionIndex();
+                trackTouch(event.getPointerId(index), touchX(event, index, renderData), touchY(event, index, renderData));
+                break;
+            }
+            case MotionEvent.ACTION_UP:
+            case ACTION_POINTER_UP: {
+                int index = event.getActionIndex();
+                int id = event.getPointerId(index);
+                trackTouch(id, touchX(event, index, renderData), touchY(event, index, renderData));
+                endTouch(id);
+                // Nothing can remain pressed after ACTION_UP.
+                if (action == MotionEvent.ACTION_UP)
+                    endTouches(0);
+                break;
+            }
+            case ACTION_CANCEL:
+                endTouches(0);
+                break;
+            case ACTION_MOVE:
+            case ACTION_HOVER_MOVE:
+            case ACTION_HOVER_ENTER:
+            case ACTION_HOVER_EXIT: {
+                if (forwardHistoricalSamples) {
+                    // Intermediate samples batched by Android, oldest first. Pointers are the same as in the current sample.
+                    for (int h = 0; h < event.getHistorySize(); h++) {
+                        setEventTime(event.getHistoricalEventTime(h));
+                        for (int p = 0; p < pointerCount; p++)
+                            trackTouch(event.getPointerId(p), historicalTouchX(event, p, h, renderData), historicalTouchY(event, p, h, renderData));
+                    }
+                    setEventTime(event.getEventTime());
+                }
+
+                int present = 0;
+                for (int p = 0; p < pointerCount; p++) {
+                    int id = event.getPointerId(p);
+                    if (id >= MAX_TOUCH_POINTS)
+                        continue;
+                    present |= 1 << id;
+                    trackTouch(id, touchX(event, p, renderData), touchY(event, p, renderData));
+                }
+
+                // Sometimes Android does not send ACTION_POINTER_UP/ACTION_UP so some pointers are "stuck" in pressed state.
+                endTouches(present);
+                break;
+            }
+            default:
+                break;
+        }
 
-        if (action == ACTION_MOVE || action == ACTION_HOVER_MOVE || action == ACTION_HOVER_ENTER || action == ACTION_HOVER_EXIT) {
-            // In order to process all of the events associated with an ACTION_MOVE event, we need
-            // to walk the list of historical events in order and add each event to our list, then
-            // retrieve the current move event data.
-            int pointerCount = event.getPointerCount();
+        flushEvents();
+    }
 
-            for (int p = 0; p < pointerCount; p++)
-                pointers[event.getPointerId(p)] = false;
+    private static int touchX(MotionEvent event, int index, RenderData renderData) {
+        return clamp((int) (event.getX(index) * renderData.scale.x), 0, renderData.screenWidth);
+    }
 
-            for (int p = 0; p < pointerCount; p++) {
-                int x = clamp((int) (event.getX(p) * renderData.scale.x), 0, renderData.screenWidth);
-                int y = clamp((int) (event.getY(p) * renderData.scale.y), 0, renderData.screenHeight);
-                pointers[event.getPointerId(p)] = true;
-                mInjector.sendTouchEvent(XI_TouchUpdate, event.getPointerId(p), x, y);
-            }
+    private static int touchY(MotionEvent event, int index, RenderData renderData) {
+        return clamp((int) (event.getY(index) * renderData.scale.y), 0, renderData.screenHeight);
+    }
 
-            // Sometimes Android does not send ACTION_POINTER_UP/ACTION_UP so some pointers are "stuck" in pressed state.
-            for (int p = 0; p < 10; p++) {
-                if (!pointers[p])
-                    mInjector.sendTouchEvent(XI_TouchEnd, p, 0, 0);
-            }
-        } else {
-            // For all other events, we only want to grab the current/active pointer.  The event
-            // contains a list of every active pointer but passing all of of these to the host can
-            // cause confusion on the remote OS side and result in broken touch gestures.
-            int activePointerIndex = event.getActionIndex();
-            int id = event.getPointerId(activePointerIndex);
-            int x =  clamp((int) (event.getX(activePointerIndex) * renderData.scale.x), 0, renderData.screenWidth);
-            int y =  clamp((int) (event.getY(activePointerIndex) * renderData.scale.y), 0, renderData.screenHeight);
-            int a = (action == MotionEvent.ACTION_DOWN || action == ACTION_POINTER_DOWN) ? XI_TouchBegin : XI_TouchEnd;
-            if (a == XI_TouchEnd)
-                mInjector.sendTouchEvent(XI_TouchUpdate, id, x, y);
-            mInjector.sendTouchEvent(a, id, x, y);
-        }
+    private static int historicalTouchX(MotionEvent event, int index, int pos, RenderData renderData) {
+        return clamp((int) (event.getHistoricalX(index, pos) * renderData.scale.x), 0, renderData.screenWidth);
+    }
+
+    private static int historicalTouchY(MotionEvent event, int index, int pos, RenderData renderData) {
+        return clamp((int) (event.getHistoricalY(index, pos) * renderData.scale.y), 0, renderData.screenHeight);
+    }
+
+    /** Sets time of the sample being queued, in milliseconds of SystemClock.uptimeMillis(). */
+    void setEventTime(long eventTime) {
+        mTouchEventTime = (int) (eventTime * 1000);
+    }
+
+    /** Begins the touch if it is not active yet or updates it if its position has changed. */
+    private void trackTouch(int id, int x, int y) {
+        if (id < 0 || id >= MAX_TOUCH_POINTS)
+            return;
+
+        if ((mActiveTouches & (1 << id)) == 0) {
+            mActiveTouches |= 1 << id;
+            queueTouchEvent(XI_TouchBegin, id, x, y);
+        } else if (mTouchX[id] != x || mTouchY[id] != y)
+            queueTouchEvent(XI_TouchUpdate, id, x, y);
+        else
+            return;
+
+        mTouchX[id] = x;
+        mTouchY[id] = y;
+    }
+
+    /** Ends the touch if it is active. */
+    private void endTouch(int id) {
+        if (id < 0 || id >= MAX_TOUCH_POINTS || (mActiveTouches & (1 << id)) == 0)
+            return;
+
+        mActiveTouches &= ~(1 << id);
+        queueTouchEvent(XI_TouchEnd, id, mTouchX[id], mTouchY[id]);
+    }
+
+    /** Ends all active touches which are not present in the given bitmask. */
+    private void endTouches(int present) {
+        int stale = mActiveTouches & ~present;
+        for (int id = 0; stale != 0; id++, stale >>>= 1)
+            if ((stale & 1) != 0)
+                endTouch(id);
+    }
+
+    /** Reserves the next lorieEvent slot in the batch, zeroes it and returns its offset. */
+    private int nextEvent(int type) {
+        if (mEventCount == MAX_BATCHED_EVENTS)
+            flushEvents();
+
+        int offset = mEventCount++ * EVENT_SIZE;
+        for (int i = 0; i < EVENT_SIZE; i += 8)
+            mEvents.putLong(offset + i, 0);
+        mEvents.put(offset, (byte) type);
+        return offset;
+    }
+
+    /** Encodes lorieEvent.touch: uint16_t type, id, x, y; uint32_t time. */
+    private void queueTouchEvent(int type, int id, int x, int y) {
+        int offset = nextEvent(EVENT_TOUCH);
+        mEvents.putShort(offset + 2, (short) type);
+        mEvents.putShort(offset + 4, (short) id);
+        mEvents.putShort(offset + 6, (short) x);
+        mEvents.putShort(offset + 8, (short) y);
+        mEvents.putInt(offset + 12, mTouchEventTime);
+    }
+
+    /** Encodes lorieEvent.mouse: float x, y; uint8_t detail, down, relative. Time is stamped by native code. */
+    private void queueMouseEvent(float x, float y, int button, boolean down, boolean relative) {
+        int offset = nextEvent(EVENT_MOUSE);
+        mEvents.putFloat(offset + 4, x);
+        mEvents.putFloat(offset + 8, y);
+        mEvents.put(offset + 12, (byte) button);
+        mEvents.put(offset + 13, (byte) (down ? 1 : 0));
+        mEvents.put(offset + 14, (byte) (relative ? 1 : 0));
+    }
+
+    /** Sends all queued events to the host with a single JNI call. */
+    void flushEvents() {
+        if (mEventCount == 0)
+            return;
+        mInjector.flushEvents(mEvents, mEventCount);
+        mEventCount = 0;
     }
 
     /**
@@ -147,6 +358,7 @@ public final class InputEventSender {
     public boolean sendKeyEvent(KeyEvent e) {
         int keyCode = e.getKeyCode();
         boolean pressed = e.getAction() == KeyEvent.ACTION_DOWN;
+        sendPendingMotion();
 
         if ((e.getFlags() & KeyEvent.FLAG_CANCELED) == KeyEvent.FLAG_CANCELED) {
             android.util.Log.d("KeyEvent", "We've got key event with FLAG_CANCELED, it will not be consumed. Details: " + e);
@@ -164,7 +376,7 @@ public final class InputEventSender {
             if (e.getCharacters() != null)
                 mInjector.sendTextEvent(e.getCharacters().getBytes(UTF_8));
             else if (e.getUnicodeChar() != 0)
-                mInjector.sendTextEvent(String.valueOf((char)e.getUnicodeChar()).getBytes(UTF_8));
+                mInjector.sendTextEvent(encodeUtf8((char) e.getUnicodeChar()));
             return true;
         }
 
@@ -177,19 +389,19 @@ public final class InputEventSender {
 
         if (!preferScancodes) {
             if (pressed && unicode != 0 && no_modifiers) {
-                mPressedTextKeys.add(keyCode);
+                setPressed(mPressedTextKeys, keyCode, true);
                 if ((e.getMetaState() & META_ALT_RIGHT_ON) != 0)
                     mInjector.sendKeyEvent(0, KEYCODE_ALT_RIGHT, false); // For layouts with AltGr
 
-                mInjector.sendTextEvent(String.valueOf(unicode).getBytes(UTF_8));
+                mInjector.sendTextEvent(encodeUtf8(unicode));
 
                 if ((e.getMetaState() & META_ALT_RIGHT_ON) != 0)
                     mInjector.sendKeyEvent(0, KEYCODE_ALT_RIGHT, true); // For layouts with AltGr
                 return true;
             }
 
-            if (!pressed && mPressedTextKeys.contains(keyCode)) {
-                mPressedTextKeys.remove(keyCode);
+            if (!pressed && isPressed(mPressedTextKeys, keyCode)) {
+                setPressed(mPressedTextKeys, keyCode, false);
                 return true;
             }
         }
@@ -198,21 +410,15 @@ public final class InputEventSender {
         // deprecated, but they still need to be here for older devices and
         // third-party keyboards that may still generate these events. See
         // https://source.android.com/devices/input/keyboard-devices.html#legacy-unsupported-keys
-        char[][] chars = {
-                { KEYCODE_AT, '@', KEYCODE_2 },
-                { KEYCODE_POUND, '#', KEYCODE_3 },
-                { KEYCODE_STAR, '*', KEYCODE_8 },
-                { KEYCODE_PLUS, '+', KEYCODE_EQUALS }
-        };
-
-        for (char[] i: chars) {
-            if (e.getKeyCode() != i[0])
+        for (int i = 0; i < LEGACY_KEYS.length; i++) {
+            if (keyCode != LEGACY_KEYS[i])
                 continue;
 
-            if ((e.getCharacters() != null && String.valueOf(i[1]).contentEquals(e.getCharacters()))
-                    || e.getUnicodeChar() == i[1]) {
+            String characters = e.getCharacters();
+            if ((characters != null && characters.length() == 1 && characters.charAt(0) == LEGACY_CHARS[i])
+                    || e.getUnicodeChar() == LEGACY_CHARS[i]) {
                 mInjector.sendKeyEvent(0, KEYCODE_SHIFT_LEFT, pressed);
-                mInjector.sendKeyEvent(0, i[2], pressed);
+                mInjector.sendKeyEvent(0, LEGACY_REPLACEMENTS[i], pressed);
                 return true;
             }
         }
@@ -220,13 +426,10 @@ public final class InputEventSender {
         // Ignoring Android's autorepeat.
         // But some weird IMEs (or firmwares) send first event with repeatCount=1 (not 0)
         // Probably related to preceding event with FLAG_CANCELLED flag
-        if (e.getRepeatCount() > 0 && mPressedKeys.contains(keyCode))
+        if (e.getRepeatCount() > 0 && isPressed(mPressedKeys, keyCode))
             return true;
 
-        if (pressed)
-            mPressedKeys.add(keyCode);
-        else
-            mPressedKeys.remove(keyCode);
+        setPressed(mPressedKeys, keyCode, pressed);
 
         if (keyCode == KEYCODE_ESCAPE && !pressed && e.hasNoModifiers())
             MainActivity.setCapturingEnabled(false);
@@ -234,4 +437,39 @@ public final class InputEventSender {
         // We try to send all other key codes to the host directly.
         return mInjector.sendKeyEvent(scancode, keyCode, pressed);
     }
+
+    private static final int[] LEGACY_KEYS = { KEYCODE_AT, KEYCODE_POUND, KEYCODE_STAR, KEYCODE_PLUS };
+    private static final char[] LEGACY_CHARS = { '@', '#', '*', '+' };
+    private static final int[] LEGACY_REPLACEMENTS = { KEYCODE_2, KEYCODE_3, KEYCODE_8, KEYCODE_EQUALS };
+
+    private static boolean isPressed(BitSet keys, int keyCode) {
+        return keyCode >= 0 && keys.get(keyCode);
+    }
+
+    private static void setPressed(BitSet keys, int keyCode, boolean pressed) {
+        if (keyCode >= 0)
+            keys.set(keyCode, pressed);
+    }
+
+    /** Encodes a single char the same way String.getBytes(UTF_8) does, into a reused buffer. */
+    private byte[] encodeUtf8(char c) {
+        byte[] out;
+        if (c < 0x80) {
+            out = mUtf8Char[1];
+            out[0] = (byte) c;
+        } else if (c < 0x800) {
+            out = mUtf8Char[2];
+            out[0] = (byte) (0xC0 | (c >> 6));
+            out[1] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            out = mUtf8Char[1];
+            out[0] = '?'; // Unpaired surrogate can not be encoded
+        } else {
+            out = mUtf8Char[3];
+            out[0] = (byte) (0xE0 | (c >> 12));
+            out[1] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            out[2] = (byte) (0x80 | (c & 0x3F));
+        }
+        return out;
+    }
 }
@@ -5,7 +5,6 @@
 package com.termux.x11.input;
 
 import android.content.Context;
-import android.graphics.PointF;
 import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.view.ViewConfiguration;
@@ -74,7 +73,8 @@ public interface InputStrategyInterface {
         /**
          * Stores the position of the last left button single tap processed.
          */
-        private PointF mLastTapPoint;
+        private boolean mHasLastTap;
+        private float mLastTapX, mLastTapY;
 
         /**
          * The maximum distance, in pixels, between two points in order for them to be considered a
@@ -125,7 +125,7 @@ public interface InputStrategyInterface {
 
         @Override
         public void onTap(int button) {
-            PointF currentTapPoint = mRenderData.getCursorPosition();
+            float currentX = mRenderData.getCursorX(), currentY = mRenderData.getCursorY();
             if (button == InputStub.BUTTON_LEFT) {
                 // Left clicks are handled a little differently than the events for other buttons.
                 // This is needed because translating touch events to mouse events has a problem with
@@ -136,15 +136,17 @@ public interface InputStrategyInterface {
                 // squirrel away the time and coordinates of each single tap and if we detect the user
                 // attempting a double tap, we use the original event's location for that second tap.
                 long tapInterval = SystemClock.uptimeMillis() - mLastTapTimeInMs;
-                if (isDoubleTap(currentTapPoint.x, currentTapPoint.y, tapInterval)) {
-                    mLastTapPoint = null;
+                if (isDoubleTap(currentX, currentY, tapInterval)) {
+                    mHasLastTap = false;
                     mLastTapTimeInMs = 0;
                 } else {
-                    mLastTapPoint = currentTapPoint;
+                    mHasLastTap = true;
+                    mLastTapX = currentX;
+                    mLastTapY = currentY;
                     mLastTapTimeInMs = SystemClock.uptimeMillis();
                 }
             } else {
-                mLastTapPoint = null;
+                mHasLastTap = false;
                 mLastTapTimeInMs = 0;
             }
 
@@ -172,18 +174,15 @@ public interface InputStrategyInterface {
         }
 
         private boolean isDoubleTap(float currentX, float currentY, long tapInterval) {
-            if (tapInterval > mDoubleTapDurationInMs || mLastTapPoint == null) {
+            if (tapInterval > mDoubleTapDurationInMs || !mHasLastTap) {
                 return false;
             }
 
             // Convert the image based coordinates back to screen coordinates so the user experiences
             // consistent double tap behavior regardless of zoom level.
             //
-            float[] currentValues = {currentX * mRenderData.scale.x, currentY * mRenderData.scale.y};
-            float[] previousValues = {mLastTapPoint.x * mRenderData.scale.x, mLastTapPoint.y * mRenderData.scale.y};
-
-            int deltaX = (int) (currentValues[0] - previousValues[0]);
-            int deltaY = (int) (currentValues[1] - previousValues[1]);
+            int deltaX = (int) (currentX * mRenderData.scale.x - mLastTapX * mRenderData.scale.x);
+            int deltaY = (int) (currentY * mRenderData.scale.y - mLastTapY * mRenderData.scale.y);
             return ((deltaX * deltaX + deltaY * deltaY) <= mDoubleTapSlopSquareInPx);
         }
     }
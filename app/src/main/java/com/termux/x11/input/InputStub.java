@@ -4,6 +4,8 @@
 
 package com.termux.x11.input;
 
+import java.nio.ByteBuffer;
+
 /**
  * A set of functions to send client users' activities to remote host machine. This interface
  * represents low level functions without relationships with Android system. Consumers can use
@@ -41,5 +43,11 @@ public interface InputStub {
     /** Sends an event, not flushing connection. */
     void sendTouchEvent(int action, int pointerId, int x, int y);
 
+    /**
+     * Sends {@code count} events previously encoded into a direct buffer in native lorieEvent
+     * layout. The whole batch is pushed to the remote host at once.
+     */
+    void flushEvents(ByteBuffer events, int count);
+
     void sendStylusEvent(float x, float y, int pressure, int tiltX, int tiltY, int orientation, int buttons, boolean eraser, boolean mouseMode);
 }
@@ -0,0 +1,319 @@
+package com.termux.x11.input;
+
+import android.os.Build;
+import android.util.Log;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Compact binary trace of the MotionEvent/KeyEvent stream reaching {@link TouchInputHandler}.
+ * Traces are written by {@link Recorder} and fed back to the handler by {@link #replay}, so gesture
+ * handling can be benchmarked and compared against previously recorded output of
+ * {@link RecordingInputStub}.
+ *
+ * <p>Trace layout (big endian): int magic, short version, then records. MotionEvent record is
+ * tag 'M', downTime, action, source, flags, metaState, buttonState, deviceId, edgeFlags,
+ * precisions, classification, pointer ids and tool types, then every historical sample and the
+ * current sample as eventTime followed by a bitmask of non-zero axes and their values for every
+ * pointer. KeyEvent record is tag 'K' followed by its fields.
+ */
+public final class InputTrace {
+    private static final String TAG = "InputTrace";
+    private static final int MAGIC = 0x4C545243; // "LTRC"
+    private static final short VERSION = 1;
+    private static final byte RECORD_MOTION = 'M';
+    private static final byte RECORD_KEY = 'K';
+
+    /** Axes are stored as 64-bit mask, MotionEvent does not define axes beyond that. */
+    private static final int MAX_AXES = 64;
+    private static final int MAX_POINTERS = 16;
+
+    private InputTrace() {}
+
+    /** Serializes events to the given stream. Must be used from UI thread only. */
+    public static final class Recorder {
+        private final DataOutputStream mOut;
+        private final MotionEvent.PointerCoords mCoords = new MotionEvent.PointerCoords();
+        private boolean mFailed = false;
+
+        public Recorder(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(out);
+            mOut.writeInt(MAGIC);
+            mOut.writeShort(VERSION);
+        }
+
+        public void record(MotionEvent e) {
+            if (mFailed)
+                return;
+
+            int pointerCount = Math.min(e.getPointerCount(), MAX_POINTERS);
+            int historySize = e.getHistorySize();
+            try {
+                mOut.writeByte(RECORD_MOTION);
+                mOut.writeLong(e.getDownTime());
+                mOut.writeInt(e.getAction());
+                mOut.writeInt(e.getSource());
+                mOut.writeInt(e.getFlags());
+                mOut.writeInt(e.getMetaState());
+                mOut.writeInt(e.getButtonState());
+                mOut.writeInt(e.getDeviceId());
+                mOut.writeInt(e.getEdgeFlags());
+                mOut.writeFloat(e.getXPrecision());
+                mOut.writeFloat(e.getYPrecision());
+                mOut.writeByte(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? e.getClassification() : 0);
+                mOut.writeByte(pointerCount);
+                for (int p = 0; p < pointerCount; p++) {
+                    mOut.writeByte(e.getPointerId(p));
+                    mOut.writeByte(e.getToolType(p));
+                }
+
+                mOut.writeShort(historySize);
+                for (int h = 0; h <= historySize; h++) {
+                    boolean current = h == historySize;
+                    mOut.writeLong(current ? e.getEventTime() : e.getHistoricalEventTime(h));
+                    for (int p = 0; p < pointerCount; p++) {
+                        if (current)
+                            e.getPointerCoords(p, mCoords);
+                        else
+                            e.getHistoricalPointerCoords(p, h, mCoords);
+                        writeCoords(mCoords);
+                    }
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        public void record(KeyEvent e) {
+            if (mFailed)
+                return;
+
+            try {
+                mOut.writeByte(RECORD_KEY);
+                mOut.writeLong(e.getDownTime());
+                mOut.writeLong(e.getEventTime());
+                mOut.writeInt(e.getAction());
+                mOut.writeInt(e.getKeyCode());
+                mOut.writeInt(e.getRepeatCount());
+                mOut.writeInt(e.getMetaState());
+                mOut.writeInt(e.getDeviceId());
+                mOut.writeInt(e.getScanCode());
+                mOut.writeInt(e.getFlags());
+                mOut.writeInt(e.getSource());
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        public void close() throws IOException {
+            mOut.close();
+        }
+
+        private void writeCoords(MotionEvent.PointerCoords coords) throws IOException {
+            long axes = 0;
+            for (int axis = 0; axis < MAX_AXES; axis++)
+                if (coords.getAxisValue(axis) != 0)
+                    axes |= 1L << axis;
+
+            mOut.writeLong(axes);
+            for (int axis = 0; axes != 0; axis++, axes >>>= 1)
+                if ((axes & 1) != 0)
+                    mOut.writeFloat(coords.getAxisValue(axis));
+        }
+
+        private void fail(IOException ex) {
+            Log.e(TAG, "Failed to write input trace, recording stopped", ex);
+            mFailed = true;
+        }
+    }
+
+    /** Result of {@link #replay}. */
+    public static final class ReplayResult {
+        public final int events;
+        public final long elapsedNanos;
+
+        ReplayResult(int events, long elapsedNanos) {
+            this.events = events;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double eventsPerSecond() {
+            return elapsedNanos > 0 ? events * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d events in %.3f ms, %.0f events/sec", events, elapsedNanos / 1e6, eventsPerSecond());
+        }
+    }
+
+    /**
+     * Feeds every recorded event to the given consumers in recorded order, as fast as possible.
+     * Time spent decoding the trace is not included into the result.
+     * Must be called from UI thread, i.e. {@code InputTrace.replay(in, e -> handler.handleTouchEvent(view, view, e), handler::sendKeyEvent)}.
+     */
+    public static ReplayResult replay(InputStream in, Predicate<MotionEvent> motionConsumer, Predicate<KeyEvent> keyConsumer) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readShort() != VERSION)
+            throw new IOException("Not an input trace or unsupported trace version");
+
+        int events = 0;
+        long elapsed = 0;
+        while (true) {
+            int tag;
+            try {
+                tag = data.readByte();
+            } catch (EOFException e) {
+                break;
+            }
+
+            long start;
+            if (tag == RECORD_MOTION) {
+                MotionEvent e = readMotionEvent(data);
+                start = System.nanoTime();
+                motionConsumer.test(e);
+                elapsed += System.nanoTime() - start;
+                e.recycle();
+            } else if (tag == RECORD_KEY) {
+                KeyEvent e = new KeyEvent(data.readLong(), data.readLong(), data.readInt(), data.readInt(), data.readInt(),
+                        data.readInt(), data.readInt(), data.readInt(), data.readInt(), data.readInt());
+                start = System.nanoTime();
+                keyConsumer.test(e);
+                elapsed += System.nanoTime() - start;
+            } else
+                throw new IOException("Corrupted input trace: unknown record " + tag);
+            events++;
+        }
+
+        return new ReplayResult(events, elapsed);
+    }
+
+    private static MotionEvent readMotionEvent(DataInputStream in) throws IOException {
+        long downTime = in.readLong();
+        int action = in.readInt(), source = in.readInt(), flags = in.readInt(), metaState = in.readInt(),
+                buttonState = in.readInt(), deviceId = in.readInt(), edgeFlags = in.readInt();
+        float xPrecision = in.readFloat(), yPrecision = in.readFloat();
+        in.readByte(); // Classification can not be set through public API, it is only kept for reference.
+        int pointerCount = in.readByte();
+
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[pointerCount];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerCount];
+        for (int p = 0; p < pointerCount; p++) {
+            properties[p] = new MotionEvent.PointerProperties();
+            properties[p].id = in.readByte();
+            properties[p].toolType = in.readByte();
+            coords[p] = new MotionEvent.PointerCoords();
+        }
+
+        // The oldest historical sample creates the event, newer samples are appended with addBatch.
+        MotionEvent event = null;
+        int historySize = in.readShort();
+        for (int h = 0; h <= historySize; h++) {
+            long eventTime = in.readLong();
+            for (int p = 0; p < pointerCount; p++)
+                readCoords(in, coords[p]);
+
+            if (event == null)
+                event = MotionEvent.obtain(downTime, eventTime, action, pointerCount, properties, coords, metaState,
+                        buttonState, xPrecision, yPrecision, deviceId, edgeFlags, source, flags);
+            else
+                event.addBatch(eventTime, coords, metaState);
+        }
+        return event;
+    }
+
+    private static void readCoords(DataInputStream in, MotionEvent.PointerCoords coords) throws IOException {
+        coords.clear();
+        long axes = in.readLong();
+        for (int axis = 0; axes != 0; axis++, axes >>>= 1)
+            if ((axes & 1) != 0)
+                coords.setAxisValue(axis, in.readFloat());
+    }
+
+    /**
+     * {@link InputStub} which sends nothing and records every call in a textual form
+     * suitable for comparing output of two replays.
+     */
+    public static final class RecordingInputStub implements InputStub {
+        private final StringBuilder mOutput = new StringBuilder();
+        private int mCalls = 0;
+
+        public String getOutput() {
+            return mOutput.toString();
+        }
+
+        public int getCalls() {
+            return mCalls;
+        }
+
+        public void reset() {
+            mOutput.setLength(0);
+            mCalls = 0;
+        }
+
+        private void append(String format, Object... args) {
+            mOutput.append(String.format(Locale.ROOT, format, args)).append('\n');
+            mCalls++;
+        }
+
+        @Override
+        public void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative) {
+            append("mouse %.2f %.2f button %d down %b relative %b", x, y, whichButton, buttonDown, relative);
+        }
+
+        @Override
+        public void sendMouseWheelEvent(float deltaX, float deltaY) {
+            append("wheel %.2f %.2f", deltaX, deltaY);
+        }
+
+        @Override
+        public boolean sendKeyEvent(int scanCode, int keyCode, boolean keyDown) {
+            append("key scancode %d keycode %d down %b", scanCode, keyCode, keyDown);
+            return true;
+        }
+
+        @Override
+        public void sendTextEvent(byte[] utf8Bytes) {
+            append("text %s", new String(utf8Bytes, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void sendTouchEvent(int action, int pointerId, int x, int y) {
+            append("touch %d id %d %d %d", action, pointerId, x, y);
+        }
+
+        @Override
+        public void flushEvents(ByteBuffer events, int count) {
+            // Decodes the layout written by InputEventSender, timestamps are not recorded to keep output reproducible.
+            for (int i = 0; i < count; i++) {
+                int offset = i * InputEventSender.EVENT_SIZE;
+                int type = events.get(offset);
+                if (type == InputEventSender.EVENT_TOUCH)
+                    sendTouchEvent(events.getShort(offset + 2), events.getShort(offset + 4), events.getShort(offset + 6), events.getShort(offset + 8));
+                else if (type == InputEventSender.EVENT_MOUSE)
+                    sendMouseEvent(events.getFloat(offset + 4), events.getFloat(offset + 8), events.get(offset + 12), events.get(offset + 13) != 0, events.get(offset + 14) != 0);
+                else if (type == InputEventSender.EVENT_STYLUS)
+                    sendStylusEvent(events.getFloat(offset + 4), events.getFloat(offset + 8), events.getShort(offset + 12) & 0xFFFF, events.get(offset + 14), events.get(offset + 15),
+                            events.getShort(offset + 16), events.get(offset + 1), events.get(offset + 2) != 0, events.get(offset + 3) != 0);
+                else
+                    append("unknown event %d", type);
+            }
+        }
+
+        @Override
+        public void sendStylusEvent(float x, float y, int pressure, int tiltX, int tiltY, int orientation, int buttons, boolean eraser, boolean mouseMode) {
+            append("stylus %.2f %.2f pressure %d tilt %d %d orientation %d buttons %d eraser %b mouse %b", x, y, pressure, tiltX, tiltY, orientation, buttons, eraser, mouseMode);
+        }
+    }
+}
@@ -24,13 +24,14 @@ public class RenderData {
      */
     private final PointF mCursorPosition = new PointF();
 
-    /**
-     * Returns the position of the rendered cursor.
-     *
-     * @return A point representing the current position.
-     */
-    public PointF getCursorPosition() {
-        return new PointF(mCursorPosition.x, mCursorPosition.y);
+    /** Returns the x coordinate of the rendered cursor. */
+    public float getCursorX() {
+        return mCursorPosition.x;
+    }
+
+    /** Returns the y coordinate of the rendered cursor. */
+    public float getCursorY() {
+        return mCursorPosition.y;
     }
 
     /**
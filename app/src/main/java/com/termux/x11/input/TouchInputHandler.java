@@ -9,7 +9,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
-import android.graphics.PointF;
 import android.hardware.display.DisplayManager;
 import android.hardware.input.InputManager;
 import android.os.Build;
@@ -21,7 +20,6 @@ import android.view.InputDevice;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.ViewConfiguration;
 
 import androidx.annotation.IntDef;
 import androidx.core.app.NotificationCompat;
@@ -76,18 +74,16 @@ public class TouchInputHandler {
     }
 
     private final RenderData mRenderData;
-    private final GestureDetector mScroller;
-    private final TapGestureDetector mTapDetector;
+    private final GestureRecognizer mGestureRecognizer;
     private final StylusListener mStylusListener = new StylusListener();
     private final HardwareMouseListener mHMListener = new HardwareMouseListener();
     private final DexListener mDexListener;
     private final TouchInputHandler mTouchpadHandler;
 
-    /** Used to disambiguate a 2-finger gesture as a swipe or a pinch. */
-    private final SwipeDetector mSwipePinchDetector;
-
     private InputStrategyInterface mInputStrategy;
     private final InputEventSender mInjector;
+    private final Context mContext;
+    /** Null if the handler only replays input to the injector, see {@link #TouchInputHandler(Context, RenderData, InputEventSender)}. */
     private final MainActivity mActivity;
     private final DisplayMetrics mMetrics = new DisplayMetrics();
     private final BiConsumer<Integer, Boolean> noAction = (key, down) -> {};
@@ -97,30 +93,6 @@ public class TouchInputHandler {
     private static final int KEY_BACK = 158;
     private boolean keyIntercepting = false;
 
-    /**
-     * Used for tracking swipe gestures. Only the Y-direction is needed for responding to swipe-up
-     * or swipe-down.
-     */
-    private float mTotalMotionY;
-
-    /**
-     * Distance in pixels beyond which a motion gesture is considered to be a swipe. This is
-     * initialized using the Context passed into the constructor.
-     */
-    private final float mSwipeThreshold;
-
-    /**
-     * Set to true to prevent any further movement of the cursor, for example, when showing the
-     * keyboard to prevent the cursor wandering from the area where keystrokes should be sent.
-     */
-    private boolean mSuppressCursorMovement;
-
-    /**
-     * Set to true when 3-finger swipe gesture is complete, so that further movement doesn't
-     * trigger more swipe actions.
-     */
-    private boolean mSwipeCompleted;
-
     /**
      * Set to true when a 1 finger pan gesture originates with a long-press.  This means the user
      * is performing a drag operation.
@@ -162,33 +134,32 @@ public class TouchInputHandler {
         return ((currentBS & mask) != 0);
     }
 
-    // Trackpad scroll state (for classified two-finger swipe that doesn't deliver ACTION_SCROLL)
-    private float mLastScrollX;
-    private float mLastScrollY;
-    private boolean mIsTrackpadScroll;
+    /** Scratch arrays for view locations, reused to avoid allocating on every event. */
+    private final int[] mView0Location = new int[2];
+    private final int[] mViewLocation = new int[2];
+
+    /** Receives every event reaching {@link #handleTouchEvent} and {@link #sendKeyEvent} if set. */
+    private InputTrace.Recorder mTraceRecorder;
 
-    private TouchInputHandler(MainActivity activity, RenderData renderData,
+    private TouchInputHandler(Context context, MainActivity activity, RenderData renderData,
                               final InputEventSender injector, boolean isTouchpad) {
         if (injector == null)
             throw new NullPointerException();
         mRenderData = renderData != null ? renderData : new RenderData();
         mInjector = injector;
+        mContext = context;
         mActivity = activity;
         if (mDisplayManager == null) {
-            mDisplayManager = (DisplayManager) mActivity.getSystemService(Context.DISPLAY_SERVICE);
+            mDisplayManager = (DisplayManager) mContext.getSystemService(Context.DISPLAY_SERVICE);
             mDisplayRotation = mDisplayManager.getDisplay(Display.DEFAULT_DISPLAY).getRotation() % 4;
             mDisplayManager.registerDisplayListener(mDisplayListener, null);
         }
-        GestureListener listener = new GestureListener();
-        mScroller = new GestureDetector(/*desktop*/ activity, listener, null, false);
-        mScroller.setIsLongpressEnabled(false);
-        mTapDetector = new TapGestureDetector(/*desktop*/ activity, listener);
-        mSwipePinchDetector = new SwipeDetector(/*desktop*/ activity);
-        float density = /*desktop*/ activity.getResources().getDisplayMetrics().density;
-        mSwipeThreshold = 40 * density;
+        mGestureRecognizer = new GestureRecognizer(/*desktop*/ context, new GestureListener());
         setInputMode(InputMode.TRACKPAD);
-        mDexListener = new DexListener(activity);
-        mTouchpadHandler = isTouchpad ? null : new TouchInputHandler(activity, mRenderData, injector, true);
+        mDexListener = new DexListener(context);
+        mTouchpadHandler = isTouchpad ? null : new TouchInputHandler(context, activity, mRenderData, injector, true);
+        if (mActivity == null)
+            return;
         refreshInputDevices();
         ((InputManager) mActivity.getSystemService(Context.INPUT_SERVICE)).registerInputDeviceListener(new InputManager.InputDeviceListener() {
             @Override
@@ -209,7 +180,15 @@ public class TouchInputHandler {
     }
 
     public TouchInputHandler(MainActivity activity, final InputEventSender injector) {
-        this(activity, null, injector, false);
+        this(activity, activity, null, injector, false);
+    }
+
+    /**
+     * Handler which is not attached to activity, it sends input to the injector but neither captures pointer
+     * nor follows input devices. Used to replay {@link InputTrace} in tests.
+     */
+    TouchInputHandler(Context context, RenderData renderData, final InputEventSender injector) {
+        this(context, null, renderData, injector, false);
     }
 
     static public void refreshInputDevices() {
@@ -228,24 +207,6 @@ public class TouchInputHandler {
         MainActivity.getInstance().setExternalKeyboardConnected(externalKeyboardAvailable.get());
     }
 
-    // Accept mouse+finger (OnePlus/DeX) or real touchpad + classified two-finger swipe
-    @SuppressLint({"WrongConstant", "InlinedApi"})
-    private static boolean isClassifiedScrollEvent(MotionEvent e) {
-        boolean looksLikeTouchpad =
-                ((e.getSource() & InputDevice.SOURCE_TOUCHPAD) == InputDevice.SOURCE_TOUCHPAD) ||
-                (((e.getSource() & InputDevice.SOURCE_MOUSE) == InputDevice.SOURCE_MOUSE) &&
-                        e.getToolType(e.getActionIndex()) == MotionEvent.TOOL_TYPE_FINGER);
-
-        if (!looksLikeTouchpad) return false;
-
-        if ((e.getFlags() & 0x14000000) != 0) { // vendor "generated gesture" flags
-            return true;
-        }
-        // Android 10+: official classification
-        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
-                e.getClassification() == MotionEvent.CLASSIFICATION_TWO_FINGER_SWIPE);
-    }
-
     boolean isDexEvent(MotionEvent event) {
         return ((event.getSource() & InputDevice.SOURCE_MOUSE) ==
     InputDevice.SOURCE_MOUSE)
@@ -253,7 +214,15 @@ public class TouchInputHandler {
                 && (event.getToolType(event.getActionIndex()) == MotionEvent.TOOL_TYPE_FINGER);
     }
 
+    /** Starts recording input trace if recorder is not null, stops it otherwise. */
+    public void setTraceRecorder(InputTrace.Recorder recorder) {
+        mTraceRecorder = recorder;
+    }
+
     public boolean handleTouchEvent(View view0, View view, MotionEvent event) {
+        if (mTraceRecorder != null)
+            mTraceRecorder.record(event);
+
         // Regular touchpads and Dex touchpad (in captured mode) send events as finger too,
         // but they should be handled as touchscreens with trackpad mode.
         if (mTouchpadHandler != null && ((event.getToolType(event.getActionIndex()) == MotionEvent.TOOL_TYPE_FINGER &&
@@ -261,12 +230,10 @@ public class TouchInputHandler {
             return mTouchpadHandler.handleTouchEvent(view0, view, event);
 
         if (view0 != view) {
-            int[] view0Location = new int[2];
-            int[] viewLocation = new int[2];
-            view0.getLocationInWindow(view0Location);
-            view.getLocationInWindow(viewLocation);
-            int offsetX = viewLocation[0] - view0Location[0];
-            int offsetY = viewLocation[1] - view0Location[1];
+            view0.getLocationInWindow(mView0Location);
+            view.getLocationInWindow(mViewLocation);
+            int offsetX = mViewLocation[0] - mView0Location[0];
+            int offsetY = mViewLocation[1] - mView0Location[1];
             event.offsetLocation(-offsetX, -offsetY);
         }
 
@@ -289,66 +256,33 @@ public class TouchInputHandler {
             if (isDexEvent(event) && mDexListener.onTouch(view, event))
                 return true;
 
-            // --- Handle classified two-finger scroll sequences (mouse+finger or touchpad) ---
-            if (isClassifiedScrollEvent(event)) {
-                switch (event.getActionMasked()) {
-                    case MotionEvent.ACTION_DOWN:
-                        mLastScrollX = event.getX();
-                        mLastScrollY = event.getY();
-                        mIsTrackpadScroll = true;
-                        return true;
-                    case MotionEvent.ACTION_MOVE:
-                        if (!mIsTrackpadScroll) { // vendor stacks may skip DOWN
-                            mLastScrollX = event.getX();
-                            mLastScrollY = event.getY();
-                            mIsTrackpadScroll = true;
-                            return true;
-                        }
-                        float dx = event.getX() - mLastScrollX;
-                        float dy = event.getY() - mLastScrollY;
-                        mLastScrollX = event.getX();
-                        mLastScrollY = event.getY();
-                        // Keep same scaling/signs as ACTION_SCROLL branch
-                        sendWheel(dx, dy);
-                        return true;
-                    case MotionEvent.ACTION_UP:
-                    case MotionEvent.ACTION_CANCEL:
-                        mIsTrackpadScroll = false;
-                        return true;
-                }
-            } else if (event.getActionMasked() == MotionEvent.ACTION_UP || event.getActionMasked() == MotionEvent.ACTION_CANCEL) {
-                mIsTrackpadScroll = false;
+            // Classified two-finger swipes (mouse+finger or touchpad) are only recognized as scroll
+            if (GestureRecognizer.isTrackpadScrollEvent(event)) {
+                mGestureRecognizer.onTouchEvent(event);
+                return true;
             }
-            // --- END classified scroll handling ---
 
             if (mInputStrategy instanceof InputStrategyInterface.NullInputStrategy)
                 mInjector.sendTouchEvent(event, mRenderData);
             else
                 mInputStrategy.onMotionEvent(event);
 
-            mScroller.onTouchEvent(event);
-            mTapDetector.onTouchEvent(event);
-            mSwipePinchDetector.onTouchEvent(event);
+            mGestureRecognizer.onTouchEvent(event);
 
             if ((event.getSource() & InputDevice.SOURCE_TOUCHPAD) == InputDevice.SOURCE_TOUCHPAD) {
                 currentBS = event.getButtonState();
                 for (int[] button: buttons)
                     if (isMouseButtonChanged(button[0]))
-                        mInjector.sendMouseEvent(null, button[1], mouseButtonDown(button[0]), true);
+                        mInjector.sendMouseEvent(0, 0, button[1], mouseButtonDown(button[0]), true);
                 savedBS = currentBS;
             }
 
             switch (event.getActionMasked()) {
                 case MotionEvent.ACTION_DOWN:
-                    mSuppressCursorMovement = false;
-                    mSwipeCompleted = false;
                     mIsDragging = false;
                     break;
                 case MotionEvent.ACTION_SCROLL: // explicit scroll events (e.g., from physical mouse wheel)
                     return processScrollGenericEvent(event);
-                case MotionEvent.ACTION_POINTER_DOWN:
-                    mTotalMotionY = 0;
-                    break;
                 default:
                     break;
             }
@@ -413,12 +347,14 @@ public class TouchInputHandler {
         else if (inputMode == InputMode.TOUCH)
             mInputStrategy = new InputStrategyInterface.NullInputStrategy();
         else if (inputMode == InputMode.SIMULATED_TOUCH)
-            mInputStrategy = new InputStrategyInterface.SimulatedTouchInputStrategy(mRenderData, mInjector, mActivity);
+            mInputStrategy = new InputStrategyInterface.SimulatedTouchInputStrategy(mRenderData, mInjector, mContext);
         else
             mInputStrategy = new InputStrategyInterface.TrackpadInputStrategy(mInjector);
     }
 
     public void setCapturingEnabled(boolean enabled) {
+        if (mActivity == null)
+            return;
         if (mInjector.pointerCapture && enabled)
             mActivity.getLorieView().requestPointerCapture();
         else
@@ -451,6 +387,8 @@ public class TouchInputHandler {
                 "1".equals(p.touchMode.get()) &&
                 !"native".equals(p.displayResolutionMode.get());
         mInjector.capturedPointerSpeedFactor = ((float) p.capturedPointerSpeedFactor.get())/100;
+        mInjector.coalesceRelativeMotion = p.coalesceRelativeMotion.get();
+        mInjector.forwardHistoricalSamples = p.forwardHistoricalSamples.get();
         mInjector.dexMetaKeyCapture = p.dexMetaKeyCapture.get();
         mInjector.stylusIsMouse = p.stylusIsMouse.get();
         mInjector.stylusButtonContactModifierMode = p.stylusButtonContactModifierMode.get();
@@ -482,6 +420,8 @@ public class TouchInputHandler {
         volumeDownAction = extractUserActionFromPreferences(p, "volumeDown");
         backButtonAction = extractUserActionFromPreferences(p, "backButton");
         mediaKeysAction = extractUserActionFromPreferences(p, "mediaKeys");
+        // Left click of tap-to-move is delayed until it is known whether the tap begins a drag.
+        mGestureRecognizer.waitForDoubleTap = mInjector.tapToMove && mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy;
         if(mTouchpadHandler != null)
             mTouchpadHandler.reloadPreferences(p);
     }
@@ -559,66 +499,26 @@ public class TouchInputHandler {
         if (mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy)
             mInjector.sendCursorMove(-deltaX, -deltaY, true);
         else if (mInputStrategy instanceof InputStrategyInterface.SimulatedTouchInputStrategy) {
-            PointF cursorPos = mRenderData.getCursorPosition();
-            cursorPos.offset(-deltaX, -deltaY);
-            cursorPos.set(MathUtils.clamp(cursorPos.x, 0, mRenderData.screenWidth), MathUtils.clamp(cursorPos.y, 0, mRenderData.screenHeight));
-            if (mRenderData.setCursorPosition(cursorPos.x, cursorPos.y))
-                mInjector.sendCursorMove((int) cursorPos.x, (int) cursorPos.y, false);
+            float x = MathUtils.clamp(mRenderData.getCursorX() - deltaX, 0, mRenderData.screenWidth);
+            float y = MathUtils.clamp(mRenderData.getCursorY() - deltaY, 0, mRenderData.screenHeight);
+            if (mRenderData.setCursorPosition(x, y))
+                mInjector.sendCursorMove((int) x, (int) y, false);
         }
     }
 
     /** Moves the cursor to the specified position on the screen. */
     private void moveCursorToScreenPoint(float screenX, float screenY) {
         if (mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy || mInputStrategy instanceof InputStrategyInterface.SimulatedTouchInputStrategy) {
-            float[] imagePoint = {screenX * mRenderData.scale.x, screenY * mRenderData.scale.y};
-            if (mRenderData.setCursorPosition(imagePoint[0], imagePoint[1]))
-                mInjector.sendCursorMove((int) imagePoint[0], imagePoint[1], false);
+            float imageX = screenX * mRenderData.scale.x, imageY = screenY * mRenderData.scale.y;
+            if (mRenderData.setCursorPosition(imageX, imageY))
+                mInjector.sendCursorMove((int) imageX, imageY, false);
         }
     }
 
-    /** Processes a (multi-finger) swipe gesture. */
-    private boolean onSwipe() {
-        if (mTotalMotionY > mSwipeThreshold)
-            swipeDownAction.accept(0, true);
-        else if (mTotalMotionY < -mSwipeThreshold)
-            swipeUpAction.accept(0, true);
-        else
-            return false;
-        mSuppressCursorMovement = true;
-        mSwipeCompleted = true;
-        return true;
-    }
-
-    /** Responds to touch events filtered by the gesture detectors.
-     * @noinspection NullableProblems*/
-    private class GestureListener extends GestureDetector.SimpleOnGestureListener
-            implements TapGestureDetector.OnTapListener {
-        private final Handler mGestureListenerHandler = new Handler(msg -> {
-            if (msg.what == InputStub.BUTTON_LEFT)
-                mInputStrategy.onTap(InputStub.BUTTON_LEFT);
-            return true;
-        });
-
-        /**
-         * Called when the user drags one or more fingers across the touchscreen.
-         */
+    /** Responds to gestures recognized by {@link GestureRecognizer}. */
+    private class GestureListener implements GestureRecognizer.Listener {
         @Override
-        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-            int pointerCount = e2.getPointerCount();
-            if (pointerCount >= 3 && !mSwipeCompleted) {
-                mTotalMotionY -= distanceY;
-                return onSwipe();
-            }
-            if (pointerCount == 2 && mSwipePinchDetector.isSwiping()) {
-                if (!(mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy)) {
-                    moveCursorToScreenPoint(e1.getX(), e1.getY());
-                }
-                mInputStrategy.onScroll(distanceX, distanceY);
-                mSuppressCursorMovement = true;
-                return true;
-            }
-            if (pointerCount != 1 || mSuppressCursorMovement)
-                return false;
+        public void onDrag(float x, float y, float distanceX, float distanceY) {
             if (mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy) {
                 if (mInjector.scaleTouchpad) {
                     distanceX *= mRenderData.scale.x;
@@ -627,15 +527,36 @@ public class TouchInputHandler {
                 moveCursorByOffset(distanceX, distanceY);
             }
             if (!(mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy) && mIsDragging) {
-                moveCursorToScreenPoint(e2.getX(), e2.getY());
+                moveCursorToScreenPoint(x, y);
             }
-            return true;
         }
 
-        /** Called whenever a gesture starts. Always accepts the gesture so it isn't ignored. */
         @Override
-        public boolean onDown(MotionEvent e) {
-            return true;
+        public void onScroll(float x, float y, float distanceX, float distanceY) {
+            if (!(mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy)) {
+                moveCursorToScreenPoint(x, y);
+            }
+            mInputStrategy.onScroll(distanceX, distanceY);
+        }
+
+        @Override
+        public void onSwipe(boolean down) {
+            (down ? swipeDownAction : swipeUpAction).accept(0, true);
+        }
+
+        @Override
+        public void onTrackpadScroll(float deltaX, float deltaY) {
+            // Keep same scaling/signs as ACTION_SCROLL branch
+            sendWheel(deltaX, deltaY);
+        }
+
+        /** Called when the fingers of a tap go up, the cursor is moved right away even if the click waits for double-tap. */
+        @Override
+        public void onTapUp(int pointerCount, float x, float y) {
+            if (mouseButtonFromPointerCount(pointerCount) == InputStub.BUTTON_UNDEFINED)
+                return;
+            if (!(mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy) && !screenPointLiesOutsideImageBoundary(x, y))
+                moveCursorToScreenPoint(x, y);
         }
 
         /**
@@ -646,38 +567,17 @@ public class TouchInputHandler {
             int button = mouseButtonFromPointerCount(pointerCount);
             if (button == InputStub.BUTTON_UNDEFINED)
                 return;
-            if (!(mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy)) {
-                if (screenPointLiesOutsideImageBoundary(x, y))
-                    return;
-                moveCursorToScreenPoint(x, y);
-            }
-            if (button != InputStub.BUTTON_LEFT || !(mInjector.tapToMove && mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy))
-                mInputStrategy.onTap(button);
-            else
-                mGestureListenerHandler.sendEmptyMessageDelayed(InputStub.BUTTON_LEFT, ViewConfiguration.getDoubleTapTimeout());
+            if (!(mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy) && screenPointLiesOutsideImageBoundary(x, y))
+                return;
+            mInputStrategy.onTap(button);
         }
 
-        private float mLastFocusX;
-        private float mLastFocusY;
         @Override
-        public boolean onDoubleTapEvent(MotionEvent e) {
-            if (e.getPointerCount() == 1) {
-                switch(e.getActionMasked()) {
-                    case MotionEvent.ACTION_DOWN:
-                        if (mInjector.tapToMove && mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy) {
-                            mGestureListenerHandler.removeMessages(InputStub.BUTTON_LEFT);
-                            if (mInputStrategy.onPressAndHold(InputStub.BUTTON_LEFT, true))
-                                mIsDragging = true;
-                        }
-                        break;
-                    case MotionEvent.ACTION_MOVE:
-                        onScroll(null, e, mLastFocusX - e.getX(), mLastFocusY - e.getY());
-                        break;
-                }
-                mLastFocusX = e.getX();
-                mLastFocusY = e.getY();
+        public void onDoubleTapDown(float x, float y) {
+            if (mInjector.tapToMove && mInputStrategy instanceof InputStrategyInterface.TrackpadInputStrategy) {
+                if (mInputStrategy.onPressAndHold(InputStub.BUTTON_LEFT, true))
+                    mIsDragging = true;
             }
-            return true;
         }
 
         /** Called when a long-press is triggered for one or more fingers. */
@@ -742,6 +642,9 @@ public class TouchInputHandler {
     }
 
     public boolean sendKeyEvent(KeyEvent e) {
+        if (mTraceRecorder != null)
+            mTraceRecorder.record(e);
+
         int k = e.getKeyCode();
         if (!MainActivity.isConnected()) {
             if (e.getKeyCode() == KEYCODE_BACK)
@@ -843,7 +746,7 @@ public class TouchInputHandler {
                 y *= mInjector.capturedPointerSpeedFactor * mMetrics.density;
                 mInjector.sendCursorMove(x, y, true);
                 if (axis_relative_x && mTouchpadHandler != null)
-                    mTouchpadHandler.mTapDetector.onTouchEvent(e);
+                    mTouchpadHandler.mGestureRecognizer.onCapturedMotionEvent(e);
             }
             else if (e.getAction() == MotionEvent.ACTION_DOWN) {
                 // Initialize last coordinates on the first touch event in captured mode
@@ -854,7 +757,7 @@ public class TouchInputHandler {
             currentBS = e.getButtonState();
             for (int[] button: buttons)
                 if (isMouseButtonChanged(button[0]))
-                    mInjector.sendMouseEvent(null, button[1], mouseButtonDown(button[0]), true);
+                    mInjector.sendMouseEvent(0, 0, button[1], mouseButtonDown(button[0]), true);
             savedBS = currentBS;
             return true;
         }
@@ -872,9 +775,9 @@ public class TouchInputHandler {
         private boolean hasButton(MotionEvent e, int button) {
             return (e.getButtonState() & button) == button;
         }
-        int extractButtons(MotionEvent e) {
+        int extractButtons(MotionEvent e, float pressure) {
             if (mInjector.stylusButtonContactModifierMode) {
-                if (e.getPressure() > 0) {
+                if (pressure > 0) {
                     if (hasButton(e, MotionEvent.BUTTON_STYLUS_SECONDARY))
                         return (1 << 1);
                     if (hasButton(e, MotionEvent.BUTTON_STYLUS_PRIMARY))
@@ -884,7 +787,7 @@ public class TouchInputHandler {
                 } else return 0;
             } else {
                 int buttons = 0;
-                if (e.getPressure() > 0)
+                if (pressure > 0)
                     buttons = STYLUS_INPUT_HELPER_MODE;
                 if (hasButton(e, MotionEvent.BUTTON_STYLUS_SECONDARY))
                     buttons |= (1 << 1);
@@ -893,44 +796,65 @@ public class TouchInputHandler {
                 return buttons;
             }
         }
+
+        /** Returns value of the given axis of historical sample {@code pos}, or of the current sample if {@code pos} is equal to history size. */
+        private float axis(MotionEvent e, int axis, int index, int pos) {
+            return pos == e.getHistorySize() ? e.getAxisValue(axis, index) : e.getHistoricalAxisValue(axis, index, pos);
+        }
+
         @SuppressLint("ClickableViewAccessibility")
         boolean onTouch(MotionEvent e) {
-            int tiltX = 0, tiltY = 0;
-            int newButtons = extractButtons(e);
-            float newX = e.getX(e.getActionIndex()), newY = e.getY(e.getActionIndex());
             InputDevice dev = e.getDevice();
             InputDevice.MotionRange rangeX = dev.getMotionRange(MotionEvent.AXIS_X);
             InputDevice.MotionRange rangeY = dev.getMotionRange(MotionEvent.AXIS_Y);
-            boolean hasTilt = e.getDevice().getMotionRange(MotionEvent.AXIS_TILT) != null;
-            boolean hasOrientation = e.getDevice().getMotionRange(MotionEvent.AXIS_ORIENTATION) != null;
+            boolean hasTilt = dev.getMotionRange(MotionEvent.AXIS_TILT) != null;
+            boolean hasOrientation = dev.getMotionRange(MotionEvent.AXIS_ORIENTATION) != null;
+            float scaleX, scaleY;
             if (MainActivity.getInstance().getLorieView().hasPointerCapture() &&
                     isExternal(dev) && rangeX != null && rangeY != null) {
-                newX *= mRenderData.imageWidth / rangeX.getMax();
-                newY *= mRenderData.imageHeight / rangeY.getMax();
+                scaleX = mRenderData.imageWidth / rangeX.getMax();
+                scaleY = mRenderData.imageHeight / rangeY.getMax();
             } else {
-                newX *= mRenderData.scale.x;
-                newY *= mRenderData.scale.y;
+                scaleX = mRenderData.scale.x;
+                scaleY = mRenderData.scale.y;
             }
-            if (x == newX && y == newY && pressure == e.getPressure() && tilt == e.getAxisValue(MotionEvent.AXIS_TILT) &&
-                    orientation == e.getAxisValue(MotionEvent.AXIS_ORIENTATION) && buttons == newButtons)
-                return true;
-            if (hasTilt && hasOrientation) {
-                orientation = e.getAxisValue(MotionEvent.AXIS_ORIENTATION);
-                tilt = e.getAxisValue(MotionEvent.AXIS_TILT);
+
+            // All samples are queued and sent to the X server with one call.
+            int historySize = e.getHistorySize();
+            for (int pos = mInjector.forwardHistoricalSamples ? 0 : historySize; pos <= historySize; pos++) {
+                mInjector.setEventTime(pos == historySize ? e.getEventTime() : e.getHistoricalEventTime(pos));
+                queueSample(e, pos, scaleX, scaleY, hasTilt && hasOrientation);
+            }
+            mInjector.flushEvents();
+            return true;
+        }
+
+        private void queueSample(MotionEvent e, int pos, float scaleX, float scaleY, boolean hasTilt) {
+            int tiltX = 0, tiltY = 0;
+            int index = e.getActionIndex();
+            float newX = axis(e, MotionEvent.AXIS_X, index, pos) * scaleX, newY = axis(e, MotionEvent.AXIS_Y, index, pos) * scaleY;
+            float newPressure = axis(e, MotionEvent.AXIS_PRESSURE, index, pos);
+            float newTilt = axis(e, MotionEvent.AXIS_TILT, index, pos);
+            float newOrientation = axis(e, MotionEvent.AXIS_ORIENTATION, index, pos);
+            int newButtons = extractButtons(e, newPressure);
+            if (x == newX && y == newY && pressure == newPressure && tilt == newTilt && orientation == newOrientation && buttons == newButtons)
+                return;
+            if (hasTilt) {
+                orientation = newOrientation;
+                tilt = newTilt;
                 tiltX = (int) Math.round((float) Math.asin(-Math.sin(orientation) * Math.sin(tilt)) * 63.5 - 0.5);
                 tiltY = (int) Math.round((float) Math.asin( Math.cos(orientation) * Math.sin(tilt)) * 63.5 - 0.5);
             }
-            mInjector.sendStylusEvent(
+            mInjector.queueStylusEvent(
                     x = newX,
                     y = newY,
-                    (int) ((pressure = e.getPressure()) * 65535),
+                    (int) ((pressure = newPressure) * 65535),
                     tiltX,
                     tiltY,
                     convertOrientation(orientation),
                     buttons = newButtons,
-                    e.getToolType(e.getActionIndex()) == MotionEvent.TOOL_TYPE_ERASER,
+                    e.getToolType(index) == MotionEvent.TOOL_TYPE_ERASER,
                     mInjector.stylusIsMouse);
-            return true;
         }
     }
 
@@ -953,7 +877,7 @@ public class TouchInputHandler {
         }
 
         private final Handler handler = new Handler();
-        private final Runnable mouseDownRunnable = () -> mInjector.sendMouseEvent(mRenderData.getCursorPosition(), InputStub.BUTTON_LEFT, true, false);
+        private final Runnable mouseDownRunnable = () -> mInjector.sendMouseEvent(mRenderData.getCursorX(), mRenderData.getCursorY(), InputStub.BUTTON_LEFT, true, false);
 
         private final int[][] buttons = {
                 {MotionEvent.BUTTON_PRIMARY, InputStub.BUTTON_LEFT},
@@ -973,7 +897,7 @@ public class TouchInputHandler {
             currentBS = e.getButtonState();
             for (int[] button: buttons) {
                 if (isMouseButtonChanged(button[0])) {
-                    mInjector.sendMouseEvent(mRenderData.getCursorPosition(), button[1], mouseButtonDown(button[0]), false);
+                    mInjector.sendMouseEvent(mRenderData.getCursorX(), mRenderData.getCursorY(), button[1], mouseButtonDown(button[0]), false);
                     isHandled = true;
                 }
             }
@@ -1041,7 +965,7 @@ public class TouchInputHandler {
                     mIsScrolling = false;
                     suppressTap = false;
                     if (mIsDragging) {
-                        mInjector.sendMouseEvent(mRenderData.getCursorPosition(), InputStub.BUTTON_LEFT, false, false);
+                        mInjector.sendMouseEvent(mRenderData.getCursorX(), mRenderData.getCursorY(), InputStub.BUTTON_LEFT, false, false);
                         mIsDragging = false;
                     }
                     onTap = false;
@@ -1078,8 +1002,8 @@ public class TouchInputHandler {
         @Override
         public boolean onSingleTapConfirmed(MotionEvent e) {
             if (mIsScrolling || suppressTap) return true; // swallow tap after scroll
-            mInjector.sendMouseEvent(mRenderData.getCursorPosition(), InputStub.BUTTON_LEFT, true, false);
-            mInjector.sendMouseEvent(mRenderData.getCursorPosition(), InputStub.BUTTON_LEFT, false, false);
+            mInjector.sendMouseEvent(mRenderData.getCursorX(), mRenderData.getCursorY(), InputStub.BUTTON_LEFT, true, false);
+            mInjector.sendMouseEvent(mRenderData.getCursorX(), mRenderData.getCursorY(), InputStub.BUTTON_LEFT, false, false);
             return true;
         }
     }
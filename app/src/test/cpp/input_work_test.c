@@ -0,0 +1,156 @@
+#include <pthread.h>
+#include <sched.h>
+#include "input_work.h"
+#include "test.h"
+
+/*
+ * Stress test of the input work queue: several producers queue numbered events while the consumer drains the queue,
+ * every event must be processed exactly once and events of each producer must keep their order.
+ * Producers outpace the consumer, so the free list is exhausted and allocated nodes are used too.
+ * Benchmark compares throughput with a spinlock protected list of allocated nodes, which QueueWorkProc used before.
+ */
+
+#define PRODUCERS 4
+#define EVENTS 1000000
+
+static struct lorie_input_work_queue queue;
+static uint32_t received[PRODUCERS];
+static uint64_t processed;
+static int producersDone;
+
+static void handle(lorieEvent *e) {
+    // Producer is in touch.id, sequence number of its event in touch.time.
+    CHECK(e->touch.id < PRODUCERS);
+    CHECK(e->touch.time == received[e->touch.id]);
+    received[e->touch.id]++;
+    processed++;
+}
+
+static void* produce(void* arg) {
+    lorieEvent e = { .touch = { .t = EVENT_TOUCH, .id = (uint16_t) (intptr_t) arg } };
+    bool wasEmpty;
+
+    for (uint32_t i = 0; i < EVENTS; i++) {
+        e.touch.time = i;
+        CHECK(lorie_input_work_push(&queue, handle, &e, &wasEmpty));
+    }
+    __atomic_add_fetch(&producersDone, 1, __ATOMIC_RELEASE);
+    return NULL;
+}
+
+static void testStress(void) {
+    pthread_t producers[PRODUCERS];
+    lorie_input_work_init(&queue);
+
+    for (int i = 0; i < PRODUCERS; i++)
+        CHECK(!pthread_create(&producers[i], NULL, produce, (void*) (intptr_t) i));
+
+    while (__atomic_load_n(&producersDone, __ATOMIC_ACQUIRE) < PRODUCERS)
+        lorie_input_work_process(&queue);
+    lorie_input_work_process(&queue);
+
+    for (int i = 0; i < PRODUCERS; i++) {
+        pthread_join(producers[i], NULL);
+        CHECK(received[i] == EVENTS);
+    }
+    CHECK(processed == (uint64_t) PRODUCERS * EVENTS);
+
+    // Every preallocated node must be back in the free list.
+    for (int i = 0; i < LORIE_INPUT_WORK_NODES; i++)
+        CHECK(!lorie_input_work_take(&queue)->allocated);
+    CHECK(lorie_input_work_take(&queue)->allocated);
+}
+
+// Queue used before: spinlock protected list of allocated nodes, unlocked around every callback like ProcessWorkQueue.
+typedef struct spinWork {
+    struct spinWork *next;
+    void (*function)(lorieEvent *e);
+    lorieEvent *e;
+} spinWork;
+
+static pthread_spinlock_t spinLock;
+static spinWork *spinHead, **spinTail = &spinHead;
+
+static void spinPush(void (*function)(lorieEvent *e), lorieEvent *e) {
+    spinWork *work = malloc(sizeof(*work));
+    CHECK(work);
+    work->next = NULL;
+    work->function = function;
+    work->e = malloc(sizeof(*e));
+    CHECK(work->e);
+    *work->e = *e;
+    pthread_spin_lock(&spinLock);
+    *spinTail = work;
+    spinTail = &work->next;
+    pthread_spin_unlock(&spinLock);
+}
+
+static void spinProcess(void) {
+    pthread_spin_lock(&spinLock);
+    while (spinHead) {
+        spinWork *work = spinHead;
+        spinHead = work->next;
+        if (!spinHead)
+            spinTail = &spinHead;
+        pthread_spin_unlock(&spinLock);
+        work->function(work->e);
+        free(work->e);
+        free(work);
+        pthread_spin_lock(&spinLock);
+    }
+    pthread_spin_unlock(&spinLock);
+}
+
+static void countEvent(__attribute__((unused)) lorieEvent *e) {
+    processed++;
+}
+
+static void* produceBench(void* arg) {
+    lorieEvent e = { .touch = { .t = EVENT_TOUCH } };
+    bool wasEmpty;
+
+    for (uint32_t i = 0; i < EVENTS; i++) {
+        if (arg)
+            spinPush(countEvent, &e);
+        else
+            while (!lorie_input_work_push(&queue, countEvent, &e, &wasEmpty))
+                sched_yield();
+    }
+    __atomic_add_fetch(&producersDone, 1, __ATOMIC_RELEASE);
+    return NULL;
+}
+
+static double benchQueue(int producers, bool spin) {
+    pthread_t threads[PRODUCERS];
+    uint64_t start = test_now_ns();
+
+    processed = 0;
+    producersDone = 0;
+    for (int i = 0; i < producers; i++)
+        CHECK(!pthread_create(&threads[i], NULL, produceBench, (void*) spin));
+    while (__atomic_load_n(&producersDone, __ATOMIC_ACQUIRE) < producers)
+        spin ? spinProcess() : lorie_input_work_process(&queue);
+    spin ? spinProcess() : lorie_input_work_process(&queue);
+    for (int i = 0; i < producers; i++)
+        pthread_join(threads[i], NULL);
+    CHECK(processed == (uint64_t) producers * EVENTS);
+    return (double) processed * 1000 / (double) (test_now_ns() - start);
+}
+
+static void bench(void) {
+    pthread_spin_init(&spinLock, PTHREAD_PROCESS_PRIVATE);
+    lorie_input_work_init(&queue);
+    printf("%-10s %20s %20s\n", "producers", "spinlock Mevents/s", "lock-free Mevents/s");
+    for (int producers = 1; producers <= PRODUCERS; producers *= 2)
+        printf("%-10d %20.2f %20.2f\n", producers, benchQueue(producers, true), benchQueue(producers, false));
+}
+
+int main(int argc, char** argv) {
+    if (test_is_bench(argc, argv)) {
+        bench();
+        return 0;
+    }
+
+    testStress();
+    return 0;
+}
@@ -0,0 +1,208 @@
+#include "keysym_cache.h"
+#include "test.h"
+
+/*
+ * Types a long mixed-script text against a simulated keymap the way lorieKeysymKeyboardEvent() does: the keycode is looked up
+ * with Shift and Level 3 allowed, keysyms missing in keymap are added to spare keys which are reused when they run out.
+ * Checks that cached lookups always return a key producing the keysym and the same keys uncached lookups return,
+ * and that stale entries are dropped after keymap changes. Benchmark compares time per typed character.
+ */
+
+#define MIN_KEY 8
+#define MAX_KEY 255
+// Keys without symbols which can be reused, most of evdev keycodes are unused in usual layouts.
+#define FIRST_SPARE_KEY 100
+// With less spare keys than distinct added keysyms in the text keys are reused all the time.
+#define FIRST_SPARE_KEY_FEW 200
+#define SHIFT_MASK 0x01
+#define LEVEL3_MASK 0x80
+
+struct keymap {
+    uint32_t syms[MAX_KEY + 1][4];
+    uint8_t firstSpare, nextSpare;
+};
+
+static struct keymap keymaps[2];
+static struct lorie_keysym_cache cache;
+static bool useCache;
+
+static uint32_t translate(const void* keymap, uint8_t keycode, unsigned state) {
+    // Same steps as XkbTranslateKeyCode takes for a four level key type: match modifier map entries, then take the level.
+    static const struct { unsigned mods; int level; } map[] = {
+        { SHIFT_MASK, 1 }, { LEVEL3_MASK, 2 }, { SHIFT_MASK | LEVEL3_MASK, 3 },
+    };
+    const struct keymap* km = keymap;
+    unsigned mods = state & (SHIFT_MASK | LEVEL3_MASK);
+    int level = 0;
+    for (size_t i = 0; i < sizeof(map) / sizeof(*map); i++)
+        if (map[i].mods == mods)
+            level = map[i].level;
+    return km->syms[keycode][level];
+}
+
+static uint8_t find(const struct keymap* km, uint32_t keysym, unsigned state, unsigned* new_state);
+
+// Same search as lorieKeysymToKeycodeUncached(), the retries with toggled modifiers go through the cache too.
+static uint8_t scan(const void* keymap, uint32_t keysym, unsigned state, unsigned* new_state) {
+    static const unsigned toggles[] = { SHIFT_MASK, LEVEL3_MASK, SHIFT_MASK | LEVEL3_MASK };
+    uint8_t key;
+
+    if (new_state)
+        *new_state = state;
+    for (unsigned k = MIN_KEY; k <= MAX_KEY; k++)
+        if (translate(keymap, (uint8_t) k, state) == keysym)
+            return (uint8_t) k;
+
+    if (!new_state)
+        return 0;
+    for (size_t i = 0; i < sizeof(toggles) / sizeof(*toggles); i++) {
+        *new_state = state ^ toggles[i];
+        if ((key = find(keymap, keysym, *new_state, NULL)))
+            return key;
+    }
+    return 0;
+}
+
+static uint8_t find(const struct keymap* km, uint32_t keysym, unsigned state, unsigned* new_state) {
+    if (!useCache)
+        return scan(km, keysym, state, new_state);
+    return lorie_keysym_cache_lookup(&cache, km, MIN_KEY, MAX_KEY, keysym, state, new_state, translate, scan);
+}
+
+static void initKeymap(struct keymap* km, uint8_t firstSpare) {
+    memset(km, 0, sizeof(*km));
+    for (int i = 0; i < 26; i++) {
+        uint32_t* syms = km->syms[10 + i];
+        syms[0] = 'a' + i;
+        syms[1] = 'A' + i;
+        // Cyrillic letters on Level 3, as in a Latin/Cyrillic layout.
+        syms[2] = 0x1000000 | (0x430 + i);
+        syms[3] = 0x1000000 | (0x410 + i);
+    }
+    for (int i = 0; i < 6; i++) {
+        km->syms[40 + i][2] = 0x1000000 | (0x430 + 26 + i);
+        km->syms[40 + i][3] = 0x1000000 | (0x410 + 26 + i);
+    }
+    for (int i = 0; i < 10; i++)
+        km->syms[50 + i][0] = '0' + i;
+    km->syms[60][0] = ' ';
+    km->syms[61][0] = ',';
+    km->syms[61][1] = '!';
+    km->syms[62][0] = '.';
+    km->firstSpare = km->nextSpare = firstSpare;
+}
+
+// Like lorieAddKeysym(): every level of the reused key produces the keysym.
+static uint8_t addKeysym(struct keymap* km, uint32_t keysym) {
+    uint8_t key = km->nextSpare;
+    km->nextSpare = key == MAX_KEY ? km->firstSpare : key + 1;
+    for (int level = 0; level < 4; level++)
+        km->syms[key][level] = keysym;
+    return key;
+}
+
+static size_t decode(const char* text, uint32_t* keysyms, size_t max) {
+    const unsigned char* s = (const unsigned char*) text;
+    size_t count = 0;
+    while (*s && count < max) {
+        uint32_t cp;
+        if (*s < 0x80)
+            cp = *s++;
+        else if ((*s & 0xE0) == 0xC0)
+            cp = (s[0] & 0x1Fu) << 6 | (s[1] & 0x3Fu), s += 2;
+        else if ((*s & 0xF0) == 0xE0)
+            cp = (s[0] & 0x0Fu) << 12 | (s[1] & 0x3Fu) << 6 | (s[2] & 0x3Fu), s += 3;
+        else
+            cp = (s[0] & 0x07u) << 18 | (s[1] & 0x3Fu) << 12 | (s[2] & 0x3Fu) << 6 | (s[3] & 0x3Fu), s += 4;
+        // Latin-1 keysyms match code points, other characters use Unicode keysyms.
+        keysyms[count++] = cp < 0x100 ? cp : 0x1000000 | cp;
+    }
+    return count;
+}
+
+static const char paragraph[] =
+        "Hello, world! The quick brown fox jumps over the lazy dog 0123456789. "
+        "Съешь же ещё этих мягких французских булок, да выпей чаю! "
+        "Ξεσκεπάζω την ψυχοφθόρα βδελυγμία. "
+        "天地玄黄宇宙洪荒日月盈昃辰宿列张寒来暑往秋收冬藏闰余成岁律吕调阳云腾致雨露结为霜金生丽水玉出昆冈. "
+        "Zażółć gęślą jaźń. Ça va très bien, merci! ";
+
+#define REPEATS 100
+#define MAX_CHARS (sizeof(paragraph) * REPEATS)
+
+/* Types the text and stores keycodes used for it, returns nanoseconds spent in lookups and additions. */
+static uint64_t type(struct keymap* km, const uint32_t* keysyms, size_t count, uint8_t* keycodes) {
+    uint64_t start = test_now_ns();
+    for (size_t i = 0; i < count; i++) {
+        unsigned new_state;
+        uint8_t key = find(km, keysyms[i], 0, &new_state);
+        if (!key) {
+            addKeysym(km, keysyms[i]);
+            key = find(km, keysyms[i], 0, &new_state);
+        }
+        CHECK(key && translate(km, key, new_state) == keysyms[i]);
+        keycodes[i] = key;
+    }
+    return test_now_ns() - start;
+}
+
+static uint32_t keysyms[MAX_CHARS];
+static uint8_t uncachedKeys[MAX_CHARS], cachedKeys[MAX_CHARS];
+
+static size_t prepareText(void) {
+    size_t count = 0;
+    for (int i = 0; i < REPEATS; i++)
+        count += decode(paragraph, keysyms + count, MAX_CHARS - count);
+    return count;
+}
+
+static void testTyping(size_t count, uint8_t firstSpare, uint64_t* uncachedTime, uint64_t* cachedTime) {
+    useCache = false;
+    initKeymap(&keymaps[0], firstSpare);
+    *uncachedTime = type(&keymaps[0], keysyms, count, uncachedKeys);
+
+    useCache = true;
+    initKeymap(&keymaps[0], firstSpare);
+    *cachedTime = type(&keymaps[0], keysyms, count, cachedKeys);
+    CHECK(!memcmp(uncachedKeys, cachedKeys, count));
+}
+
+static void testInvalidation(void) {
+    unsigned new_state;
+    useCache = true;
+    initKeymap(&keymaps[0], FIRST_SPARE_KEY);
+    initKeymap(&keymaps[1], FIRST_SPARE_KEY);
+
+    CHECK(find(&keymaps[0], 'x', 0, &new_state) == 10 + 'x' - 'a' && new_state == 0);
+    CHECK(find(&keymaps[0], 'X', 0, &new_state) == 10 + 'X' - 'A' && new_state == SHIFT_MASK);
+
+    // Key is reused for other keysym and the keysym is moved to other key.
+    keymaps[0].syms[10 + 'x' - 'a'][0] = 'y';
+    keymaps[0].syms[99][0] = 'x';
+    CHECK(find(&keymaps[0], 'x', 0, &new_state) == 99);
+
+    // Other keymap starts with empty cache.
+    CHECK(find(&keymaps[1], 'x', 0, &new_state) == 10 + 'x' - 'a');
+    CHECK(cache.keymap == &keymaps[1]);
+}
+
+int main(int argc, char** argv) {
+    static const struct { const char* name; uint8_t firstSpare; } cases[] = {
+        { "spare keys", FIRST_SPARE_KEY }, { "few spare keys", FIRST_SPARE_KEY_FEW },
+    };
+    uint64_t uncachedTime, cachedTime;
+    size_t count = prepareText();
+
+    testInvalidation();
+    for (size_t c = 0; c < sizeof(cases) / sizeof(*cases); c++) {
+        testTyping(count, cases[c].firstSpare, &uncachedTime, &cachedTime);
+        if (!test_is_bench(argc, argv))
+            continue;
+
+        for (int i = 0; i < 4; i++)
+            testTyping(count, cases[c].firstSpare, &uncachedTime, &cachedTime);
+        printf("%s, %zu characters: uncached %.1f ns/char, cached %.1f ns/char\n", cases[c].name, count,
+               (double) uncachedTime / (double) count, (double) cachedTime / (double) count);
+    }
+    return 0;
+}
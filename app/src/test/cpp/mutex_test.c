@@ -0,0 +1,178 @@
+#include <pthread.h>
+#include <sys/mman.h>
+#include <sys/wait.h>
+#include "mutex.h"
+#include "test.h"
+
+/*
+ * Checks lorie_mutex under contention of threads and processes, recursion and takeover of the lock held by a dead process.
+ * Benchmark compares it with the process shared pthread mutex locked with 33 ms timeout, which was used before.
+ */
+
+#define THREADS 8
+#define PROCESSES 4
+#define ITERATIONS 200000
+
+struct shared {
+    struct lorie_mutex mutex;
+    pthread_mutex_t pmutex;
+    pid_t pmutexPid;
+    // Incremented non-atomically with the lock held, lost updates show mutual exclusion failures.
+    volatile uint64_t counter;
+    volatile int inside;
+};
+
+static struct shared* shared;
+
+static void* contend(void* arg) {
+    int iterations = (int) (intptr_t) arg;
+    for (int i = 0; i < iterations; i++) {
+        lorie_mutex_lock(&shared->mutex);
+        CHECK(!shared->inside++);
+        if (!(i % 1024)) {
+            // Recursive locking by the owner must not deadlock or release the lock early.
+            lorie_mutex_lock(&shared->mutex);
+            lorie_mutex_unlock(&shared->mutex);
+        }
+        shared->counter++;
+        shared->inside--;
+        lorie_mutex_unlock(&shared->mutex);
+    }
+    return NULL;
+}
+
+static void runThreads(int count, int iterations, void* (*fn)(void*)) {
+    pthread_t threads[THREADS];
+    for (int i = 0; i < count; i++)
+        CHECK(!pthread_create(&threads[i], NULL, fn, (void*) (intptr_t) iterations));
+    for (int i = 0; i < count; i++)
+        pthread_join(threads[i], NULL);
+}
+
+static void testThreads(void) {
+    shared->counter = 0;
+    runThreads(THREADS, ITERATIONS, contend);
+    CHECK(shared->counter == (uint64_t) THREADS * ITERATIONS);
+    CHECK(shared->mutex.word == 0);
+}
+
+static void testProcesses(void) {
+    pid_t children[PROCESSES];
+    int status;
+
+    shared->counter = 0;
+    for (int i = 0; i < PROCESSES; i++) {
+        if (!(children[i] = fork())) {
+            runThreads(2, ITERATIONS / 2, contend);
+            _exit(0);
+        }
+        CHECK(children[i] > 0);
+    }
+    for (int i = 0; i < PROCESSES; i++) {
+        CHECK(waitpid(children[i], &status, 0) == children[i]);
+        CHECK(WIFEXITED(status) && !WEXITSTATUS(status));
+    }
+    CHECK(shared->counter == (uint64_t) PROCESSES * ITERATIONS);
+    CHECK(shared->mutex.word == 0);
+}
+
+static void testDeadOwner(void) {
+    uint64_t start;
+    int status;
+    pid_t child = fork();
+    if (!child) {
+        lorie_mutex_lock(&shared->mutex);
+        _exit(0); // Dies with the lock held
+    }
+    CHECK(child > 0);
+    CHECK(waitpid(child, &status, 0) == child);
+    CHECK(shared->mutex.word != 0);
+
+    start = test_now_ns();
+    lorie_mutex_lock(&shared->mutex);
+    CHECK((shared->mutex.word & LORIE_MUTEX_TID_MASK) == (uint32_t) gettid());
+    CHECK(test_now_ns() - start < 10ULL * LORIE_MUTEX_CHECK_MS * 1000000);
+    lorie_mutex_unlock(&shared->mutex);
+    CHECK(shared->mutex.word == 0);
+}
+
+// Implementation used before lorie_mutex, the peer is always alive here.
+static void pthreadLock(pthread_mutex_t* mutex, pid_t* lockingPid) {
+    struct timespec ts = {0};
+    while (true) {
+        clock_gettime(CLOCK_MONOTONIC, &ts);
+        ts.tv_nsec += 33UL * 1000000UL;
+        if (ts.tv_nsec >= 1000000000L) {
+            ts.tv_sec += ts.tv_nsec / 1000000000L;
+            ts.tv_nsec = ts.tv_nsec % 1000000000L;
+        }
+
+        if (pthread_mutex_timedlock(mutex, &ts) != ETIMEDOUT) {
+            *lockingPid = getpid();
+            return;
+        }
+    }
+}
+
+static void pthreadUnlock(pthread_mutex_t* mutex, pid_t* lockingPid) {
+    *lockingPid = 0;
+    pthread_mutex_unlock(mutex);
+}
+
+static void* contendPthread(void* arg) {
+    int iterations = (int) (intptr_t) arg;
+    for (int i = 0; i < iterations; i++) {
+        pthreadLock(&shared->pmutex, &shared->pmutexPid);
+        shared->counter++;
+        pthreadUnlock(&shared->pmutex, &shared->pmutexPid);
+    }
+    return NULL;
+}
+
+static void* contendFutex(void* arg) {
+    int iterations = (int) (intptr_t) arg;
+    for (int i = 0; i < iterations; i++) {
+        lorie_mutex_lock(&shared->mutex);
+        shared->counter++;
+        lorie_mutex_unlock(&shared->mutex);
+    }
+    return NULL;
+}
+
+static void bench(void) {
+    static const int threadCounts[] = { 1, 2, 4, 8 };
+    pthread_mutexattr_t attr;
+    pthread_mutexattr_init(&attr);
+    pthread_mutexattr_setpshared(&attr, PTHREAD_PROCESS_SHARED);
+    pthread_mutexattr_settype(&attr, PTHREAD_MUTEX_RECURSIVE);
+    pthread_mutex_init(&shared->pmutex, &attr);
+
+    printf("%-8s %16s %16s\n", "threads", "pthread ns/op", "lorie_mutex ns/op");
+    for (size_t i = 0; i < sizeof(threadCounts) / sizeof(*threadCounts); i++) {
+        int threads = threadCounts[i], iterations = 2000000 / threads;
+        uint64_t start = test_now_ns(), pthreadTime, futexTime;
+        runThreads(threads, iterations, contendPthread);
+        pthreadTime = test_now_ns() - start;
+
+        start = test_now_ns();
+        runThreads(threads, iterations, contendFutex);
+        futexTime = test_now_ns() - start;
+
+        printf("%-8d %16.1f %16.1f\n", threads, (double) pthreadTime / (threads * iterations), (double) futexTime / (threads * iterations));
+    }
+}
+
+int main(int argc, char** argv) {
+    shared = mmap(NULL, sizeof(*shared), PROT_READ | PROT_WRITE, MAP_SHARED | MAP_ANONYMOUS, -1, 0);
+    CHECK(shared != MAP_FAILED);
+
+    if (test_is_bench(argc, argv)) {
+        bench();
+        return 0;
+    }
+
+    testThreads();
+    testProcesses();
+    testDeadOwner();
+    return 0;
+}
@@ -0,0 +1,185 @@
+#include <poll.h>
+#include <pthread.h>
+#include <stdatomic.h>
+#include <stdbool.h>
+#include <sys/eventfd.h>
+#include <sys/mman.h>
+#include <sys/wait.h>
+#include <unistd.h>
+#include "test.h"
+
+/*
+ * X server process publishes frames and wakes renderer thread of the activity process the two ways renderer.c did it.
+ * Before: X server signals the process shared condition variable, a proxy thread waiting on it signals the local
+ * condition variable renderer thread sleeps on. Now: X server rings its eventfd doorbell, renderer thread polls it
+ * together with the local doorbell. Renderer acknowledges every frame, X server rings again if it is not taken in time.
+ * Test checks that doorbells take every frame without lost wakeups, benchmark compares publish-to-take latency.
+ */
+
+#define FRAMES 500
+#define BENCH_FRAMES 5000
+#define FRAME_GAP_US 200 // Renderer must be asleep when the next frame is published
+#define ACK_TIMEOUT_MS 50
+
+enum { CONDVAR, DOORBELL };
+
+struct shared {
+    pthread_cond_t cond; // Process shared, was lorie_shared_server_state::cond
+    _Atomic uint64_t published; // Publication time of the frame which is not taken yet
+    _Atomic bool stop;
+};
+
+static struct shared* shared;
+static int mode, frames;
+static int localDoorbell, remoteDoorbell, ack;
+static uint64_t latencies[BENCH_FRAMES];
+
+static pthread_mutex_t stateLock = PTHREAD_MUTEX_INITIALIZER, proxyLock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t stateCond = PTHREAD_COND_INITIALIZER;
+
+static void wake(void) {
+    if (mode == CONDVAR)
+        pthread_cond_signal(&shared->cond);
+    else
+        eventfd_write(remoteDoorbell, 1);
+}
+
+// X server side, returns the number of frames which had to be signalled again.
+static int publish(void) {
+    struct pollfd pfd = { .fd = ack, .events = POLLIN };
+    eventfd_t dummy;
+    int lost = 0;
+
+    for (int i = 0; i < frames; i++) {
+        usleep(FRAME_GAP_US);
+        atomic_store(&shared->published, test_now_ns());
+        wake();
+        while (poll(&pfd, 1, ACK_TIMEOUT_MS) == 0) {
+            lost++;
+            wake();
+        }
+        eventfd_read(ack, &dummy);
+    }
+    return lost;
+}
+
+// Copy of pthreadCondVarProxyThread removed from renderer.c.
+static void* proxyThread(__unused void* cookie) {
+    pthread_mutex_lock(&proxyLock);
+    while (!atomic_load(&shared->stop)) {
+        pthread_cond_wait(&shared->cond, &proxyLock);
+        pthread_cond_signal(&stateCond);
+    }
+    pthread_mutex_unlock(&proxyLock);
+    return NULL;
+}
+
+// Same as rendererSleep in renderer.c.
+static void doorbellSleep(void) {
+    struct pollfd fds[] = {{ .fd = localDoorbell, .events = POLLIN }, { .fd = remoteDoorbell, .events = POLLIN }};
+    eventfd_t dummy;
+
+    pthread_mutex_unlock(&stateLock);
+    if (poll(fds, 2, -1) > 0)
+        for (int i = 0; i < 2; i++)
+            if (fds[i].revents & POLLIN)
+                eventfd_read(fds[i].fd, &dummy);
+    pthread_mutex_lock(&stateLock);
+}
+
+static void* rendererThread(__unused void* cookie) {
+    uint64_t published;
+    pthread_mutex_lock(&stateLock);
+    for (int i = 0; i < frames; i++) {
+        while (!(published = atomic_exchange(&shared->published, 0))) {
+            if (mode == CONDVAR)
+                pthread_cond_wait(&stateCond, &stateLock);
+            else
+                doorbellSleep();
+        }
+        latencies[i] = test_now_ns() - published;
+        eventfd_write(ack, 1);
+    }
+    pthread_mutex_unlock(&stateLock);
+    return NULL;
+}
+
+// Runs both sides and returns the number of lost wakeups, latencies of taken frames are in `latencies`.
+static int run(int newMode, int newFrames) {
+    pthread_t renderer, proxy;
+    int status;
+    pid_t child;
+
+    mode = newMode;
+    frames = newFrames;
+    atomic_store(&shared->published, 0);
+    atomic_store(&shared->stop, false);
+    CHECK((localDoorbell = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK)) != -1);
+    CHECK((remoteDoorbell = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK)) != -1);
+    CHECK((ack = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK)) != -1);
+
+    if (mode == CONDVAR)
+        CHECK(!pthread_create(&proxy, NULL, proxyThread, NULL));
+    CHECK(!pthread_create(&renderer, NULL, rendererThread, NULL));
+
+    CHECK((child = fork()) != -1);
+    if (!child) {
+        int lost = publish();
+        _exit(lost < 255 ? lost : 255);
+    }
+
+    pthread_join(renderer, NULL);
+    CHECK(waitpid(child, &status, 0) == child && WIFEXITED(status));
+
+    if (mode == CONDVAR) {
+        // Proxy thread is woken until it notices the flag.
+        atomic_store(&shared->stop, true);
+        while (pthread_tryjoin_np(proxy, NULL)) {
+            pthread_cond_broadcast(&shared->cond);
+            usleep(100);
+        }
+    }
+
+    close(localDoorbell);
+    close(remoteDoorbell);
+    close(ack);
+    return WEXITSTATUS(status);
+}
+
+static int compareLatencies(const void* a, const void* b) {
+    uint64_t x = *(const uint64_t*) a, y = *(const uint64_t*) b;
+    return x < y ? -1 : x > y;
+}
+
+static void bench(void) {
+    static const char* names[] = { "condvar+proxy", "doorbells" };
+    for (int m = CONDVAR; m <= DOORBELL; m++) {
+        uint64_t sum = 0;
+        int lost = run(m, BENCH_FRAMES);
+        for (int i = 0; i < BENCH_FRAMES; i++)
+            sum += latencies[i];
+        qsort(latencies, BENCH_FRAMES, sizeof(*latencies), compareLatencies);
+        printf("%-14s mean %6.1f us, median %6.1f us, p99 %7.1f us, max %7.1f us, %d lost wakeups of %d frames\n", names[m],
+               (double) sum / BENCH_FRAMES / 1e3, (double) latencies[BENCH_FRAMES / 2] / 1e3,
+               (double) latencies[BENCH_FRAMES * 99 / 100] / 1e3, (double) latencies[BENCH_FRAMES - 1] / 1e3, lost, BENCH_FRAMES);
+    }
+}
+
+int main(int argc, char** argv) {
+    pthread_condattr_t attr;
+
+    shared = mmap(NULL, sizeof(*shared), PROT_READ | PROT_WRITE, MAP_SHARED | MAP_ANONYMOUS, -1, 0);
+    CHECK(shared != MAP_FAILED);
+    pthread_condattr_init(&attr);
+    pthread_condattr_setpshared(&attr, PTHREAD_PROCESS_SHARED);
+    pthread_cond_init(&shared->cond, &attr);
+
+    if (test_is_bench(argc, argv))
+        bench();
+    else
+        // Every frame must be taken after the first wakeup.
+        CHECK(run(DOORBELL, FRAMES) == 0);
+
+    munmap(shared, sizeof(*shared));
+    return 0;
+}
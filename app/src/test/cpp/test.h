@@ -0,0 +1,28 @@
+#pragma once
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+/*
+ * Minimal helpers shared by host tests of lorie code. Every test is a separate executable which exits with non-zero
+ * status on the first failed check. Executables started with "bench" argument run benchmarks instead of checks.
+ */
+#define CHECK(cond) do { \
+    if (!(cond)) { \
+        fprintf(stderr, "%s:%d: check failed: %s\n", __FILE__, __LINE__, #cond); \
+        exit(1); \
+    } \
+} while (0)
+
+static inline uint64_t test_now_ns(void) {
+    struct timespec ts = {0};
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+static inline int test_is_bench(int argc, char** argv) {
+    return argc > 1 && !strcmp(argv[1], "bench");
+}
@@ -0,0 +1,209 @@
+#include <dirent.h>
+#include <limits.h>
+#include <malloc.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/wait.h>
+#include "xkbcomp_run.h"
+#include "test.h"
+
+/*
+ * Compiles keymaps with xkbcomp running in the test process the way lorieCompileKeymap() does.
+ * xkbcomp keeps its globals between runs, so the same keymap is compiled many times with other keymaps
+ * and failing compilations (including ones ending with exit()) in between, and every result must be identical
+ * to the first one. Streams, descriptors and working directory must be restored, and heap must not grow.
+ * Benchmark compares time per compilation with forked xkbcomp and reports heap growth per in-process compilation.
+ */
+
+#define RUNS 50
+
+// Same command line X server passes to xkbcomp (xkb/ddxLoad.c), keymap does not include anything from XKB root.
+char* xkbcomp_argv[16] = {
+        "xkbcomp", "-w", "1", "-R/", "-xkm", "-", "-em1", "Errors from xkbcomp are not fatal to the X server",
+        "-emp", "> ", "-eml", "The XKEYBOARD keymap compiler (xkbcomp) reports:", NULL,
+};
+int xkbcomp_argc = 13;
+
+// X server overrides exit() the same way in cmdentrypoint.c.
+void exit(int code) {
+    lorie_xkbcomp_exit(code);
+    fflush(NULL);
+    _exit(code);
+}
+
+#define KEYMAP(LETTER) \
+        "xkb_keymap {\n" \
+        "    xkb_keycodes \"test\" {\n" \
+        "        minimum = 8; maximum = 255;\n" \
+        "        <ESC> = 9; <AE01> = 10; <AE02> = 11; <AC01> = 38; <LFSH> = 50; <SPCE> = 65;\n" \
+        "    };\n" \
+        "    xkb_types \"test\" {\n" \
+        "        virtual_modifiers NumLock;\n" \
+        "        type \"ONE_LEVEL\" { modifiers = none; level_name[Level1] = \"Any\"; };\n" \
+        "        type \"TWO_LEVEL\" { modifiers = Shift; map[Shift] = Level2;\n" \
+        "            level_name[Level1] = \"Base\"; level_name[Level2] = \"Shift\"; };\n" \
+        "        type \"ALPHABETIC\" { modifiers = Shift+Lock; map[Shift] = Level2; map[Lock] = Level2;\n" \
+        "            level_name[Level1] = \"Base\"; level_name[Level2] = \"Caps\"; };\n" \
+        "        type \"KEYPAD\" { modifiers = Shift+NumLock; map[Shift] = Level2; map[NumLock] = Level2;\n" \
+        "            level_name[Level1] = \"Base\"; level_name[Level2] = \"Number\"; };\n" \
+        "    };\n" \
+        "    xkb_compatibility \"test\" {\n" \
+        "        interpret Shift_L { action = SetMods(modifiers = Shift); };\n" \
+        "    };\n" \
+        "    xkb_symbols \"test\" {\n" \
+        "        key <ESC> { [ Escape ] };\n" \
+        "        key <AE01> { [ 1, exclam ] };\n" \
+        "        key <AE02> { [ 2, at ] };\n" \
+        "        key <AC01> { [ " LETTER " ] };\n" \
+        "        key <LFSH> { [ Shift_L ] };\n" \
+        "        key <SPCE> { [ space ] };\n" \
+        "        modifier_map Shift { <LFSH> };\n" \
+        "    };\n" \
+        "};\n"
+
+static const char keymap[] = KEYMAP("a, A");
+static const char otherKeymap[] = KEYMAP("q, Q");
+// Syntax error, xkbcomp gives up parsing.
+static const char brokenKeymap[] = "xkb_keymap { xkb_keycodes { <AE01> = ; }; };\n";
+// Parsed, but keymap without symbols can not be compiled.
+static const char incompleteKeymap[] = "xkb_keymap { xkb_keycodes \"test\" { minimum = 8; maximum = 255; <AE01> = 10; }; };\n";
+
+static char dir[] = "/tmp/xkbcomp_test.XXXXXX", xkm[sizeof(dir) + 16];
+
+static size_t readXkm(char* data, size_t max) {
+    FILE* f = fopen(xkm, "rb");
+    size_t size;
+    CHECK(f);
+    size = fread(data, 1, max, f);
+    CHECK(size < max);
+    fclose(f);
+    unlink(xkm);
+    return size;
+}
+
+static bool compile(const char* source) {
+    unlink(xkm);
+    return lorie_xkbcomp_run(source, strlen(source), xkm);
+}
+
+static int countDescriptors(void) {
+    DIR* d = opendir("/proc/self/fd");
+    int count = 0;
+    CHECK(d);
+    while (readdir(d))
+        count++;
+    closedir(d);
+    return count;
+}
+
+static void testRepeatedCompilation(void) {
+    static char expected[1 << 16], other[1 << 16], actual[1 << 16];
+    char cwd[PATH_MAX], cwdAfter[PATH_MAX];
+    size_t expectedSize, otherSize, actualSize, heap = 0;
+    int descriptors;
+
+    CHECK(getcwd(cwd, sizeof(cwd)));
+    CHECK(compile(keymap));
+    expectedSize = readXkm(expected, sizeof(expected));
+    CHECK(expectedSize > 0);
+    CHECK(compile(otherKeymap));
+    otherSize = readXkm(other, sizeof(other));
+    CHECK(otherSize != expectedSize || memcmp(other, expected, expectedSize));
+
+    descriptors = countDescriptors();
+    for (int i = 0; i < RUNS; i++) {
+        // First pass interns atoms of every keymap, they are kept for next runs.
+        if (i == 1)
+            heap = mallinfo2().uordblks;
+
+        // Failed compilations must not leave an xkm file nor affect the next compilation.
+        CHECK(!compile(brokenKeymap));
+        CHECK(access(xkm, F_OK));
+        CHECK(!compile(incompleteKeymap));
+        CHECK(access(xkm, F_OK));
+        CHECK(!compile(""));
+
+        CHECK(compile(keymap));
+        actualSize = readXkm(actual, sizeof(actual));
+        CHECK(actualSize == expectedSize && !memcmp(actual, expected, expectedSize));
+
+        CHECK(compile(otherKeymap));
+        actualSize = readXkm(actual, sizeof(actual));
+        CHECK(actualSize == otherSize && !memcmp(actual, other, otherSize));
+    }
+
+    CHECK(mallinfo2().uordblks == heap);
+    CHECK(countDescriptors() == descriptors);
+    CHECK(getcwd(cwdAfter, sizeof(cwdAfter)) && !strcmp(cwd, cwdAfter));
+    CHECK(!xkbcomp_input && !xkbcomp_output && !lorie_xkbcomp_exit_jump);
+}
+
+// Runs xkbcomp in a child writing the source to its stdin, like xkbcompRunForked() does with Popen().
+static bool compileForked(const char* source) {
+    int fds[2], status;
+    pid_t pid;
+
+    CHECK(!pipe(fds));
+    CHECK((pid = fork()) != -1);
+    if (!pid) {
+        dup2(fds[0], STDIN_FILENO);
+        close(fds[0]);
+        close(fds[1]);
+        _exit(xkbcomp_main(xkbcomp_argc, xkbcomp_argv));
+    }
+
+    close(fds[0]);
+    CHECK(write(fds[1], source, strlen(source)) == (ssize_t) strlen(source));
+    close(fds[1]);
+    CHECK(waitpid(pid, &status, 0) == pid);
+    return WIFEXITED(status) && !WEXITSTATUS(status);
+}
+
+static void bench(void) {
+    // X server maps hundreds of MB, forking it copies all of these page tables.
+    size_t mappedSize = 256 << 20;
+    char* mapped = mmap(NULL, mappedSize, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    size_t heap;
+    uint64_t start, elapsed;
+
+    CHECK(mapped != MAP_FAILED);
+    memset(mapped, 1, mappedSize);
+
+    for (int forked = 0; forked < 2; forked++) {
+        // Same keymap is compiled once to allocate everything xkbcomp keeps for next runs.
+        CHECK(compile(keymap));
+        heap = mallinfo2().uordblks;
+        start = test_now_ns();
+        for (int i = 0; i < RUNS; i++)
+            CHECK(forked ? compileForked(keymap) : compile(keymap));
+        elapsed = test_now_ns() - start;
+        heap = mallinfo2().uordblks - heap; // Before stdout allocates its buffer
+        printf("%-12s %8.2f ms per compilation", forked ? "forked" : "in process", (double) elapsed / RUNS / 1e6);
+        if (!forked)
+            printf(", heap grows by %ld bytes per compilation", (long) heap / RUNS);
+        printf("\n");
+    }
+
+    munmap(mapped, mappedSize);
+}
+
+int main(int argc, char** argv) {
+    // Blocks cached by glibc for the thread are counted as used, heap growth is exact without the cache.
+    if (!getenv("GLIBC_TUNABLES")) {
+        setenv("GLIBC_TUNABLES", "glibc.malloc.tcache_count=0", 1);
+        execv("/proc/self/exe", argv);
+    }
+
+    CHECK(mkdtemp(dir));
+    snprintf(xkm, sizeof(xkm), "%s/keymap.xkm", dir);
+    xkbcomp_argv[12] = xkm;
+
+    if (test_is_bench(argc, argv))
+        bench();
+    else
+        testRepeatedCompilation();
+
+    unlink(xkm);
+    rmdir(dir);
+    return 0;
+}
@@ -0,0 +1,212 @@
+package com.termux.x11.input;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import android.view.ViewConfiguration;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/** Feeds synthesized finger events to {@link GestureRecognizer} and checks the recognized gestures. */
+@RunWith(RobolectricTestRunner.class)
+public class GestureRecognizerTest {
+    private RecordingGestureListener listener;
+    private GestureRecognizer recognizer;
+    private long start, downTime;
+
+    @Before
+    public void setUp() {
+        listener = new RecordingGestureListener();
+        recognizer = new GestureRecognizer(RuntimeEnvironment.getApplication(), listener);
+        start = SystemClock.uptimeMillis() + 1000;
+    }
+
+    /** Sends the event at the given time relative to the test start, running timers which are due before it. */
+    private void send(long time, int action, float... pointers) {
+        long eventTime = start + time;
+        if (action == MotionEvent.ACTION_DOWN)
+            downTime = eventTime;
+        idleUntil(time);
+
+        int count = pointers.length / 2;
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[count];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[count];
+        for (int i = 0; i < count; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = pointers[2 * i];
+            coords[i].y = pointers[2 * i + 1];
+            coords[i].pressure = 1;
+        }
+
+        MotionEvent e = MotionEvent.obtain(downTime, eventTime, action, count, properties, coords, 0, 0, 1, 1, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+        recognizer.onTouchEvent(e);
+        e.recycle();
+    }
+
+    private void idleUntil(long time) {
+        long now = SystemClock.uptimeMillis();
+        if (start + time > now)
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(start + time - now));
+    }
+
+    private static int pointerAction(int action, int index) {
+        return action | (index << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+    }
+
+    private void tap(long time, float x, float y) {
+        send(time, MotionEvent.ACTION_DOWN, x, y);
+        send(time + 50, MotionEvent.ACTION_UP, x, y);
+    }
+
+    private void assertCalls(String... expected) {
+        assertEquals(Arrays.asList(expected), listener.calls);
+    }
+
+    @Test
+    public void tap() {
+        tap(0, 100, 100);
+        idleUntil(1000);
+        assertCalls("tap-up 1 100.0 100.0", "tap 1 100.0 100.0");
+        assertEquals(GestureRecognizer.State.IDLE, recognizer.getState());
+    }
+
+    @Test
+    public void tapWaitsForDoubleTapTimeout() {
+        recognizer.waitForDoubleTap = true;
+        tap(0, 100, 100);
+        // Only the click waits, the cursor is moved as soon as the finger goes up.
+        idleUntil(50 + ViewConfiguration.getDoubleTapTimeout() - 1);
+        assertCalls("tap-up 1 100.0 100.0");
+        idleUntil(50 + ViewConfiguration.getDoubleTapTimeout());
+        assertCalls("tap-up 1 100.0 100.0", "tap 1 100.0 100.0");
+    }
+
+    @Test
+    public void cancelDropsTapWaitingForDoubleTap() {
+        recognizer.waitForDoubleTap = true;
+        tap(0, 100, 100);
+        send(100, MotionEvent.ACTION_CANCEL, 100, 100);
+        idleUntil(1000);
+        assertCalls("tap-up 1 100.0 100.0");
+
+        // Cancelled tap does not begin a double-tap either.
+        tap(1000, 100, 100);
+        send(1100, MotionEvent.ACTION_DOWN, 100, 100);
+        assertCalls("tap-up 1 100.0 100.0", "tap-up 1 100.0 100.0", "double-tap-down 100.0 100.0");
+        send(1150, MotionEvent.ACTION_CANCEL, 100, 100);
+        tap(1200, 100, 100);
+        idleUntil(2000);
+        assertCalls("tap-up 1 100.0 100.0", "tap-up 1 100.0 100.0", "double-tap-down 100.0 100.0", "tap-up 1 100.0 100.0", "tap 1 100.0 100.0");
+        assertEquals(GestureRecognizer.State.IDLE, recognizer.getState());
+    }
+
+    @Test
+    public void longPress() {
+        send(0, MotionEvent.ACTION_DOWN, 100, 100);
+        idleUntil(ViewConfiguration.getLongPressTimeout() + 10);
+        assertCalls("long-press 1 100.0 100.0");
+        assertEquals(GestureRecognizer.State.HOLD, recognizer.getState());
+
+        send(ViewConfiguration.getLongPressTimeout() + 50, MotionEvent.ACTION_UP, 100, 100);
+        assertCalls("long-press 1 100.0 100.0");
+    }
+
+    @Test
+    public void drag() {
+        send(0, MotionEvent.ACTION_DOWN, 100, 100);
+        send(16, MotionEvent.ACTION_MOVE, 150, 100);
+        send(32, MotionEvent.ACTION_MOVE, 200, 120);
+        send(48, MotionEvent.ACTION_UP, 200, 120);
+        idleUntil(1000);
+        assertCalls("drag 150.0 100.0 -50.0 0.0", "drag 200.0 120.0 -50.0 -20.0");
+    }
+
+    @Test
+    public void twoFingersMovingTogetherScroll() {
+        send(0, MotionEvent.ACTION_DOWN, 100, 100);
+        send(10, pointerAction(MotionEvent.ACTION_POINTER_DOWN, 1), 100, 100, 200, 100);
+        send(26, MotionEvent.ACTION_MOVE, 100, 150, 200, 150);
+        send(42, MotionEvent.ACTION_MOVE, 100, 200, 200, 200);
+        send(58, MotionEvent.ACTION_MOVE, 100, 250, 200, 250);
+        send(68, pointerAction(MotionEvent.ACTION_POINTER_UP, 1), 100, 250, 200, 250);
+        send(78, MotionEvent.ACTION_MOVE, 100, 300);
+        send(88, MotionEvent.ACTION_UP, 100, 300);
+        idleUntil(1000);
+        // The first motion leaves the touch slop, the gesture is classified on the next one.
+        assertCalls("scroll 100.0 100.0 0.0 -50.0", "scroll 100.0 100.0 0.0 -50.0");
+    }
+
+    @Test
+    public void twoFingersMovingApartPinch() {
+        send(0, MotionEvent.ACTION_DOWN, 100, 100);
+        send(10, pointerAction(MotionEvent.ACTION_POINTER_DOWN, 1), 100, 100, 200, 100);
+        send(26, MotionEvent.ACTION_MOVE, 50, 100, 250, 100);
+        send(42, MotionEvent.ACTION_MOVE, 0, 100, 300, 100);
+        assertEquals(GestureRecognizer.State.PINCH, recognizer.getState());
+        send(52, pointerAction(MotionEvent.ACTION_POINTER_UP, 1), 0, 100, 300, 100);
+        send(62, MotionEvent.ACTION_UP, 0, 100);
+        idleUntil(1000);
+        assertCalls();
+    }
+
+    @Test
+    public void threeFingerSwipe() {
+        send(0, MotionEvent.ACTION_DOWN, 100, 100);
+        send(10, pointerAction(MotionEvent.ACTION_POINTER_DOWN, 1), 100, 100, 200, 100);
+        send(20, pointerAction(MotionEvent.ACTION_POINTER_DOWN, 2), 100, 100, 200, 100, 300, 100);
+        for (int i = 1; i <= 10; i++)
+            send(20 + 16 * i, MotionEvent.ACTION_MOVE, 100, 100 - 30 * i, 200, 100 - 30 * i, 300, 100 - 30 * i);
+        assertEquals(GestureRecognizer.State.IGNORE, recognizer.getState());
+        send(200, pointerAction(MotionEvent.ACTION_POINTER_UP, 2), 100, -200, 200, -200, 300, -200);
+        send(210, pointerAction(MotionEvent.ACTION_POINTER_UP, 1), 100, -200, 200, -200);
+        send(220, MotionEvent.ACTION_UP, 100, -200);
+        idleUntil(1000);
+        assertCalls("swipe up");
+    }
+
+    @Test
+    public void doubleTap() {
+        tap(0, 100, 100);
+        send(150, MotionEvent.ACTION_DOWN, 102, 101);
+        send(200, MotionEvent.ACTION_MOVE, 112, 101);
+        send(250, MotionEvent.ACTION_UP, 112, 101);
+        idleUntil(1000);
+        assertCalls("tap-up 1 100.0 100.0", "tap 1 100.0 100.0", "double-tap-down 102.0 101.0", "drag 112.0 101.0 -10.0 0.0",
+                "tap-up 1 102.0 101.0", "tap 1 102.0 101.0");
+    }
+
+    @Test
+    public void doubleTapWindowStartsWhenFirstTapGoesUp() {
+        // The second finger goes down after the double-tap timeout counted from the first down, but within it counted from the first up.
+        int timeout = ViewConfiguration.getDoubleTapTimeout();
+        send(0, MotionEvent.ACTION_DOWN, 100, 100);
+        send(timeout - 50, MotionEvent.ACTION_UP, 100, 100);
+        send(2 * timeout - 100, MotionEvent.ACTION_DOWN, 100, 100);
+        List<String> calls = listener.calls;
+        assertEquals("double-tap-down 100.0 100.0", calls.get(calls.size() - 1));
+    }
+
+    @Test
+    public void secondTapAfterTimeoutIsNotDoubleTap() {
+        int timeout = ViewConfiguration.getDoubleTapTimeout();
+        tap(0, 100, 100);
+        tap(50 + timeout + 1, 100, 100);
+        idleUntil(1000);
+        assertCalls("tap-up 1 100.0 100.0", "tap 1 100.0 100.0", "tap-up 1 100.0 100.0", "tap 1 100.0 100.0");
+    }
+}
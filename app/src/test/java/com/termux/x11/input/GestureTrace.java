@@ -0,0 +1,125 @@
+package com.termux.x11.input;
+
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes a trace of finger gestures with {@link InputTrace.Recorder}, the same way the app records them.
+ * Every kind of gesture {@link GestureRecognizer} knows is performed once, moves carry one historical sample.
+ */
+class GestureTrace {
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+    private final InputTrace.Recorder mRecorder;
+    private final long mStart = SystemClock.uptimeMillis() + 1000;
+    private long mDownTime;
+    private int mEvents = 0;
+
+    private GestureTrace() throws IOException {
+        mRecorder = new InputTrace.Recorder(mOutput);
+    }
+
+    /** Recorded trace and the number of events in it. */
+    static final class Result {
+        final byte[] trace;
+        final int events;
+
+        Result(byte[] trace, int events) {
+            this.trace = trace;
+            this.events = events;
+        }
+    }
+
+    static Result generate() throws IOException {
+        GestureTrace t = new GestureTrace();
+        t.tap(0, 100, 100, 80);
+        t.tap(1000, 300, 300, 60); // Double tap
+        t.tap(1200, 305, 302, 60);
+        t.move(2000, new float[][] {{200, 200}}, new float[][] {{10, 4}}, 10); // Drag
+        t.tap(4000, 400, 400, 700); // Long press
+        t.move(6000, new float[][] {{100, 500}, {200, 500}}, new float[][] {{0, 12}, {0, 12}}, 10); // Scroll
+        t.move(8000, new float[][] {{300, 600}, {400, 600}}, new float[][] {{-10, 0}, {10, 0}}, 10); // Pinch
+        t.move(10000, new float[][] {{100, 300}, {200, 300}, {300, 300}}, new float[][] {{0, 15}, {0, 15}, {0, 15}}, 10); // Swipe down
+        t.move(12000, new float[][] {{500, 500}, {600, 500}}, new float[][] {{0, 0}, {0, 0}}, 0); // Two finger tap
+        t.mRecorder.close();
+        return new Result(t.mOutput.toByteArray(), t.mEvents);
+    }
+
+    private static MotionEvent.PointerCoords coords(float x, float y) {
+        MotionEvent.PointerCoords c = new MotionEvent.PointerCoords();
+        c.x = x;
+        c.y = y;
+        c.pressure = 1;
+        c.size = 0.1f;
+        return c;
+    }
+
+    private MotionEvent obtain(long time, int action, int count, float[][] pointers) {
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[count];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[count];
+        for (int i = 0; i < count; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = coords(pointers[i][0], pointers[i][1]);
+        }
+        return MotionEvent.obtain(mDownTime, mStart + time, action, count, properties, coords, 0, 0, 1, 1, 4, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+    }
+
+    private void record(MotionEvent e) {
+        mRecorder.record(e);
+        mEvents++;
+        e.recycle();
+    }
+
+    private void tap(long time, float x, float y, long hold) {
+        float[][] pointer = {{x, y}};
+        mDownTime = mStart + time;
+        record(obtain(time, MotionEvent.ACTION_DOWN, 1, pointer));
+        record(obtain(time + hold, MotionEvent.ACTION_UP, 1, pointer));
+    }
+
+    /**
+     * Puts fingers down one by one, moves every finger by its step the given number of times and lifts them in reverse order.
+     * Every move event also carries the sample halfway from the previous position.
+     */
+    private void move(long time, float[][] start, float[][] step, int steps) {
+        int count = start.length;
+        float[][] position = new float[count][2];
+        for (int i = 0; i < count; i++)
+            position[i] = start[i].clone();
+
+        mDownTime = mStart + time;
+        for (int i = 0; i < count; i++, time += 10)
+            record(obtain(time, i == 0 ? MotionEvent.ACTION_DOWN : pointerAction(MotionEvent.ACTION_POINTER_DOWN, i), i + 1, position));
+
+        for (int s = 0; s < steps; s++) {
+            time += 16;
+            MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[count];
+            for (int i = 0; i < count; i++) {
+                position[i][0] += step[i][0] / 2;
+                position[i][1] += step[i][1] / 2;
+            }
+            MotionEvent e = obtain(time - 8, MotionEvent.ACTION_MOVE, count, position);
+            for (int i = 0; i < count; i++) {
+                position[i][0] += step[i][0] / 2;
+                position[i][1] += step[i][1] / 2;
+                coords[i] = coords(position[i][0], position[i][1]);
+            }
+            e.addBatch(mStart + time, coords, 0);
+            record(e);
+        }
+
+        for (int i = count - 1; i >= 0; i--) {
+            time += 10;
+            record(obtain(time, i == 0 ? MotionEvent.ACTION_UP : pointerAction(MotionEvent.ACTION_POINTER_UP, i), i + 1, position));
+        }
+    }
+
+    private static int pointerAction(int action, int index) {
+        return action | (index << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+    }
+}
@@ -0,0 +1,166 @@
+package com.termux.x11.input;
+
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowKeyCharacterMap;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that the input path from MotionEvent and KeyEvent to {@link InputStub} does not allocate in steady state.
+ * Events are created in advance and every path is warmed up first, so class loading and JIT do not count.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = InputAllocationTest.CachedKeyCharacterMap.class)
+public class InputAllocationTest {
+    private static final int WARMUP_EVENTS = 20000;
+    private static final int EVENTS = 10000;
+
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final RenderData renderData = new RenderData();
+    private InputEventSender sender;
+    private GestureRecognizer recognizer;
+    private MotionEvent down, up;
+    private final MotionEvent[] moves = new MotionEvent[2];
+    private final KeyEvent[] keys = new KeyEvent[4];
+    private int sent;
+
+    /** Counts calls so they can not be optimized out, nothing is kept. */
+    private final InputStub stub = new InputStub() {
+        @Override public void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative) { sent++; }
+        @Override public void sendMouseWheelEvent(float deltaX, float deltaY) { sent++; }
+        @Override public boolean sendKeyEvent(int scanCode, int keyCode, boolean keyDown) { sent++; return true; }
+        @Override public void sendTextEvent(byte[] utf8Bytes) { sent += utf8Bytes.length; }
+        @Override public void sendTouchEvent(int action, int pointerId, int x, int y) { sent++; }
+        @Override public void flushEvents(ByteBuffer events, int count) { sent += count; }
+        @Override public void sendStylusEvent(float x, float y, int pressure, int tiltX, int tiltY, int orientation, int buttons, boolean eraser, boolean mouseMode) { sent++; }
+    };
+
+    private final GestureRecognizer.Listener listener = new GestureRecognizer.Listener() {
+        @Override public void onTapUp(int pointerCount, float x, float y) { sent++; }
+        @Override public void onTap(int pointerCount, float x, float y) { sent++; }
+        @Override public void onLongPress(int pointerCount, float x, float y) { sent++; }
+        @Override public void onDoubleTapDown(float x, float y) { sent++; }
+        @Override public void onDrag(float x, float y, float distanceX, float distanceY) { sender.sendCursorMove(distanceX, distanceY, true); }
+        @Override public void onScroll(float x, float y, float distanceX, float distanceY) { sender.sendMouseWheelEvent(distanceX, distanceY); }
+        @Override public void onSwipe(boolean down) { sent++; }
+        @Override public void onTrackpadScroll(float deltaX, float deltaY) { sender.sendMouseWheelEvent(deltaX, deltaY); }
+    };
+
+    /** Robolectric loads a new KeyCharacterMap for every KeyEvent.getUnicodeChar() call, devices keep one per input device. */
+    @Implements(KeyCharacterMap.class)
+    public static class CachedKeyCharacterMap extends ShadowKeyCharacterMap {
+        private static KeyCharacterMap virtualKeyboard;
+
+        @Implementation
+        protected static KeyCharacterMap load(int deviceId) {
+            if (deviceId != KeyCharacterMap.VIRTUAL_KEYBOARD)
+                return ShadowKeyCharacterMap.load(deviceId);
+            if (virtualKeyboard == null)
+                virtualKeyboard = ShadowKeyCharacterMap.load(deviceId);
+            return virtualKeyboard;
+        }
+    }
+
+    private interface Step {
+        void run(int i);
+    }
+
+    private static MotionEvent finger(long downTime, long eventTime, int action, float x, float y) {
+        return MotionEvent.obtain(downTime, eventTime, action, x, y, 1, 1, 0, 1, 1, 0, 0);
+    }
+
+    @Before
+    public void setUp() {
+        sender = new InputEventSender(stub);
+        recognizer = new GestureRecognizer(RuntimeEnvironment.getApplication(), listener);
+        renderData.scale.set(1, 1);
+        renderData.screenWidth = renderData.imageWidth = 1920;
+        renderData.screenHeight = renderData.imageHeight = 1080;
+
+        long time = SystemClock.uptimeMillis();
+        down = finger(time, time, MotionEvent.ACTION_DOWN, 100, 100);
+        // Far enough from each other to leave touch slop and to change position of the touch every time.
+        moves[0] = finger(time, time + 10, MotionEvent.ACTION_MOVE, 300, 300);
+        moves[1] = finger(time, time + 20, MotionEvent.ACTION_MOVE, 400, 350);
+        up = finger(time, time + 30, MotionEvent.ACTION_UP, 400, 350);
+        for (MotionEvent e : new MotionEvent[] { down, moves[0], moves[1], up })
+            e.setSource(InputDevice.SOURCE_TOUCHSCREEN);
+
+        // Text key sent as text and a key sent as key.
+        keys[0] = new KeyEvent(time, time, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_A, 0);
+        keys[1] = new KeyEvent(time, time, KeyEvent.ACTION_UP, KeyEvent.KEYCODE_A, 0);
+        // Robolectric boxes key codes looking up characters, only the ones below 128 are not allocated.
+        keys[2] = new KeyEvent(time, time, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DPAD_LEFT, 0);
+        keys[3] = new KeyEvent(time, time, KeyEvent.ACTION_UP, KeyEvent.KEYCODE_DPAD_LEFT, 0);
+    }
+
+    @After
+    public void tearDown() {
+        for (MotionEvent e : new MotionEvent[] { down, moves[0], moves[1], up })
+            e.recycle();
+    }
+
+    /**
+     * Runs the step for every event after warming it up and checks the bytes allocated by the current thread meanwhile.
+     * JVM may allocate a few objects once (i.e. compiling the loop), a single allocation per event takes at least 16 bytes.
+     */
+    private void assertNoAllocations(Step step) {
+        for (int i = 0; i < WARMUP_EVENTS; i++)
+            step.run(i);
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < EVENTS; i++)
+            step.run(i);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertTrue(allocated + " bytes allocated for " + EVENTS + " events", allocated < EVENTS);
+    }
+
+    @Test
+    public void measuringDoesNotAllocate() {
+        assertNoAllocations(i -> sent++);
+    }
+
+    @Test
+    public void touchEventsDoNotAllocate() {
+        sender.sendTouchEvent(down, renderData);
+        assertNoAllocations(i -> sender.sendTouchEvent(moves[i & 1], renderData));
+        sender.sendTouchEvent(up, renderData);
+    }
+
+    @Test
+    public void dragDoesNotAllocate() {
+        recognizer.onTouchEvent(down);
+        assertNoAllocations(i -> recognizer.onTouchEvent(moves[i & 1]));
+        recognizer.onTouchEvent(up);
+    }
+
+    @Test
+    public void cursorMovesDoNotAllocate() {
+        assertNoAllocations(i -> {
+            sender.sendCursorMove(i & 7, 1, true);
+            renderData.setCursorPosition(renderData.getCursorX() + 1, renderData.getCursorY());
+        });
+    }
+
+    @Test
+    public void keyEventsDoNotAllocate() {
+        assertNoAllocations(i -> sender.sendKeyEvent(keys[i & 3]));
+    }
+}
@@ -0,0 +1,108 @@
+package com.termux.x11.input;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.stream.Collectors;
+
+/**
+ * Replays the trace written by {@link GestureTrace} through {@link TouchInputHandler} and compares everything
+ * it sends to {@link InputTrace.RecordingInputStub} with the golden output.
+ * Main looper clock follows event times, so long-press and tap timers fire the same way they do on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InputTraceTest {
+    private static final int BENCHMARK_WARMUP_PASSES = 200;
+    private static final int BENCHMARK_PASSES = 1000;
+
+    private final Context context = RuntimeEnvironment.getApplication();
+    private final View view = new View(context);
+    private GestureTrace.Result trace;
+
+    @Before
+    public void setUp() throws IOException {
+        trace = GestureTrace.generate();
+    }
+
+    private static void advanceTo(long eventTime) {
+        long now = SystemClock.uptimeMillis();
+        if (eventTime > now)
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(eventTime - now));
+    }
+
+    private static String read(String name) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(InputTraceTest.class.getResourceAsStream(name), StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.joining("\n", "", "\n"));
+        }
+    }
+
+    private TouchInputHandler handler(InputStub stub) {
+        RenderData renderData = new RenderData();
+        renderData.imageWidth = 1920;
+        renderData.imageHeight = 1080;
+        TouchInputHandler handler = new TouchInputHandler(context, renderData, new InputEventSender(stub));
+        handler.handleClientSizeChanged(1920, 1080);
+        return handler;
+    }
+
+    @Test
+    public void replayMatchesGoldenOutput() throws IOException {
+        InputTrace.RecordingInputStub stub = new InputTrace.RecordingInputStub();
+        TouchInputHandler handler = handler(stub);
+
+        InputTrace.ReplayResult result = InputTrace.replay(new ByteArrayInputStream(trace.trace), e -> {
+            advanceTo(e.getEventTime());
+            return handler.handleTouchEvent(view, view, e);
+        }, handler::sendKeyEvent);
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1)); // Pending timers and frame callbacks
+
+        assertEquals(read("gestures.golden.txt"), stub.getOutput());
+        assertEquals(trace.events, result.events);
+    }
+
+    /** Reports how many events per second the handler takes, timers are not run and nothing is formatted. */
+    @Test
+    public void replayThroughput() throws IOException {
+        int[] sent = new int[1];
+        TouchInputHandler handler = handler(new InputStub() {
+            @Override public void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative) { sent[0]++; }
+            @Override public void sendMouseWheelEvent(float deltaX, float deltaY) { sent[0]++; }
+            @Override public boolean sendKeyEvent(int scanCode, int keyCode, boolean keyDown) { sent[0]++; return true; }
+            @Override public void sendTextEvent(byte[] utf8Bytes) { sent[0]++; }
+            @Override public void sendTouchEvent(int action, int pointerId, int x, int y) { sent[0]++; }
+            @Override public void flushEvents(ByteBuffer events, int count) { sent[0] += count; }
+            @Override public void sendStylusEvent(float x, float y, int pressure, int tiltX, int tiltY, int orientation, int buttons, boolean eraser, boolean mouseMode) { sent[0]++; }
+        });
+
+        int events = 0;
+        long elapsed = 0;
+        for (int pass = 0; pass < BENCHMARK_WARMUP_PASSES + BENCHMARK_PASSES; pass++) {
+            InputTrace.ReplayResult result = InputTrace.replay(new ByteArrayInputStream(trace.trace), e -> handler.handleTouchEvent(view, view, e), handler::sendKeyEvent);
+            assertEquals(trace.events, result.events);
+            if (pass >= BENCHMARK_WARMUP_PASSES) {
+                events += result.events;
+                elapsed += result.elapsedNanos;
+            }
+        }
+
+        System.out.println("TouchInputHandler replay: " + new InputTrace.ReplayResult(events, elapsed) + ", " + sent[0] + " calls to InputStub");
+    }
+}
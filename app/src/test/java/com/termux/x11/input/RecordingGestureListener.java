@@ -0,0 +1,54 @@
+package com.termux.x11.input;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** {@link GestureRecognizer.Listener} which records every notification in a textual form. */
+class RecordingGestureListener implements GestureRecognizer.Listener {
+    final List<String> calls = new ArrayList<>();
+
+    private void append(String format, Object... args) {
+        calls.add(String.format(Locale.ROOT, format, args));
+    }
+
+    @Override
+    public void onTapUp(int pointerCount, float x, float y) {
+        append("tap-up %d %.1f %.1f", pointerCount, x, y);
+    }
+
+    @Override
+    public void onTap(int pointerCount, float x, float y) {
+        append("tap %d %.1f %.1f", pointerCount, x, y);
+    }
+
+    @Override
+    public void onLongPress(int pointerCount, float x, float y) {
+        append("long-press %d %.1f %.1f", pointerCount, x, y);
+    }
+
+    @Override
+    public void onDoubleTapDown(float x, float y) {
+        append("double-tap-down %.1f %.1f", x, y);
+    }
+
+    @Override
+    public void onDrag(float x, float y, float distanceX, float distanceY) {
+        append("drag %.1f %.1f %.1f %.1f", x, y, distanceX, distanceY);
+    }
+
+    @Override
+    public void onScroll(float x, float y, float distanceX, float distanceY) {
+        append("scroll %.1f %.1f %.1f %.1f", x, y, distanceX, distanceY);
+    }
+
+    @Override
+    public void onSwipe(boolean down) {
+        append("swipe %s", down ? "down" : "up");
+    }
+
+    @Override
+    public void onTrackpadScroll(float deltaX, float deltaY) {
+        append("trackpad-scroll %.1f %.1f", deltaX, deltaY);
+    }
+}